@@ -0,0 +1,71 @@
+package Bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import Protocol.JsonProtocol;
+import Protocol.MetadataCodec;
+import Protocol.Operation;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"upload", "list"})
+    public String message;
+
+    @Param({"json", "binary"})
+    public String codecName;
+
+    private MetadataCodec codec;
+    private JsonProtocol msg;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setup() {
+        codec = MetadataCodec.forName(codecName);
+        msg = message.equals("list") ? listReply(200) : uploadRequest();
+
+        ByteBuffer buffer = codec.encode(msg, 0, 0);
+        buffer.flip();
+        encoded = buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return codec.encode(msg, 0, 0);
+    }
+
+    @Benchmark
+    public JsonProtocol decode() {
+        return codec.decode(encoded.duplicate());
+    }
+
+    static JsonProtocol uploadRequest() {
+        JsonProtocol msg = new JsonProtocol();
+        msg.operation = Operation.UPLOAD;
+        msg.fileName = "holiday-photos-2024.zip";
+        msg.size = 734_003_200L;
+        return msg;
+    }
+
+    static JsonProtocol listReply(int count) {
+        List<String> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add("document-" + i + ".pdf");
+        }
+
+        JsonProtocol msg = new JsonProtocol();
+        msg.operation = Operation.LIST_REPLY;
+        msg.status = "OK";
+        msg.files = files;
+        return msg;
+    }
+}
@@ -0,0 +1,89 @@
+package Bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import Protocol.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramingBenchmark {
+    @Param({"json", "binary"})
+    public String codecName;
+
+    @Param({"0", "4096", "65536"})
+    public int payloadSize;
+
+    private MetadataCodec codec;
+    private JsonProtocol upload;
+    private JsonProtocol list;
+    private byte[] payload;
+    private ByteBuffer uploadPacket;
+    private ByteBuffer listPacket;
+
+    @Setup
+    public void setup() {
+        codec = MetadataCodec.forName(codecName);
+        upload = CodecBenchmark.uploadRequest();
+        upload.size = payloadSize;
+        list = CodecBenchmark.listReply(50);
+        payload = new byte[payloadSize];
+
+        uploadPacket = ProtocolWriter.buildPacket(codec, upload, payload);
+        listPacket = ProtocolWriter.buildPacket(codec, list, null);
+    }
+
+    @Benchmark
+    public ByteBuffer buildUploadPacket() {
+        return ProtocolWriter.buildPacket(codec, upload, payload);
+    }
+
+    @Benchmark
+    public ByteBuffer buildUploadHeader() {
+        return ProtocolWriter.buildHeader(codec, upload, payloadSize);
+    }
+
+    @Benchmark
+    public ByteBuffer buildListPacket() {
+        return ProtocolWriter.buildPacket(codec, list, null);
+    }
+
+    @Benchmark
+    public ByteBuffer buildLegacyUploadPacket() {
+        return ProtocolWriter.buildPacket(upload.operation, JsonProtocol.toJson(upload), payload);
+    }
+
+    @Benchmark
+    public long parseUploadPacket() {
+        return parse(uploadPacket.duplicate());
+    }
+
+    @Benchmark
+    public long parseListPacket() {
+        return parse(listPacket.duplicate());
+    }
+
+    private static long parse(ByteBuffer packet) {
+        MetadataCodec frameCodec = MetadataCodec.forMagic(packet.getShort());
+        if (frameCodec == null) {
+            throw new IllegalStateException("Invalid magic");
+        }
+        Operation op = Operation.fromCode(packet.get());
+        int metadataLength = packet.getInt();
+        long binaryLength = packet.getLong();
+
+        ByteBuffer metadata = packet.slice(packet.position(), metadataLength);
+        JsonProtocol msg = frameCodec.decode(metadata);
+        packet.position(packet.position() + metadataLength);
+        if (msg.operation != op || packet.remaining() != binaryLength) {
+            throw new IllegalStateException("Corrupt frame");
+        }
+        return binaryLength + msg.size;
+    }
+}
@@ -0,0 +1,152 @@
+package Bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+import Protocol.MetadataCodec;
+import Server.Server;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Threads(8)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final String DOWNLOAD_NAME = "download.bin";
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        @Param({"4"})
+        public int reactors;
+
+        @Param({"1024", "65536", "1048576", "16777216"})
+        public int fileSize;
+
+        @Param({"binary", "json"})
+        public String codecName;
+
+        int port;
+        MetadataCodec codec;
+        ByteBuffer content;
+        private Path root;
+        private PrintStream stdout;
+        private final AtomicInteger clientIds = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            root = Files.createTempDirectory("dropbox-bench");
+            codec = MetadataCodec.forName(codecName);
+            port = freePort();
+
+            Server server = new Server(port, reactors, root);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.start();
+                }
+                catch (IOException e) {
+                    stdout.println("[-] Server failed: " + e.getMessage());
+                }
+            }, "acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            byte[] data = new byte[fileSize];
+            ThreadLocalRandom.current().nextBytes(data);
+            content = ByteBuffer.allocateDirect(fileSize);
+            content.put(data).flip();
+
+            try (LoopbackClient client = connect()) {
+                client.upload(DOWNLOAD_NAME, content);
+            }
+        }
+
+        LoopbackClient connect() throws Exception {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (true) {
+                try {
+                    return new LoopbackClient(port, codec);
+                }
+                catch (IOException e) {
+                    if (System.nanoTime() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            System.setOut(stdout);
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+
+        private static int freePort() throws IOException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                return socket.getLocalPort();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class ClientState {
+        public double megabytes;
+
+        private LoopbackClient client;
+        private String uploadName;
+
+        @Setup(Level.Trial)
+        public void connect(ServerState server) throws Exception {
+            client = server.connect();
+            uploadName = "upload-" + server.clientIds.incrementAndGet() + ".bin";
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public Object list(ClientState state) throws IOException {
+        return state.client.list();
+    }
+
+    @Benchmark
+    public Object upload(ServerState server, ClientState state) throws IOException {
+        Object reply = state.client.upload(state.uploadName, server.content);
+        state.megabytes += server.fileSize / 1e6;
+        return reply;
+    }
+
+    @Benchmark
+    public long download(ClientState state) throws IOException {
+        long received = state.client.download(DOWNLOAD_NAME);
+        state.megabytes += received / 1e6;
+        return received;
+    }
+}
@@ -0,0 +1,118 @@
+package Bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import Protocol.*;
+
+final class LoopbackClient implements AutoCloseable {
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(ProtocolWriter.HEADER_SIZE);
+    private final ByteBuffer sink = ByteBuffer.allocateDirect(256 * 1024);
+    private final MetadataCodec codec;
+    private long lastBinaryLength;
+
+    LoopbackClient(int port, MetadataCodec codec) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        this.channel.socket().setTcpNoDelay(true);
+        this.codec = codec;
+
+        expect(receive(), Operation.LIST_REPLY);
+        if (codec != MetadataCodec.JSON) {
+            JsonProtocol hello = new JsonProtocol();
+            hello.operation = Operation.HELLO;
+            hello.codec = codec.name();
+            send(hello, null);
+            expect(receive(), Operation.HELLO_OK);
+        }
+    }
+
+    JsonProtocol list() throws IOException {
+        JsonProtocol msg = new JsonProtocol();
+        msg.operation = Operation.LIST;
+        send(msg, null);
+        return expect(receive(), Operation.LIST_REPLY);
+    }
+
+    JsonProtocol upload(String fileName, ByteBuffer content) throws IOException {
+        JsonProtocol msg = new JsonProtocol();
+        msg.operation = Operation.UPLOAD;
+        msg.fileName = fileName;
+        msg.size = content.remaining();
+
+        writeFully(ProtocolWriter.buildHeader(codec, msg, content.remaining()));
+        writeFully(content.duplicate());
+        return expect(receive(), Operation.UPLOAD_OK);
+    }
+
+    long download(String fileName) throws IOException {
+        JsonProtocol msg = new JsonProtocol();
+        msg.operation = Operation.DOWNLOAD;
+        msg.fileName = fileName;
+        send(msg, null);
+        expect(receive(), Operation.DOWNLOAD_REPLY);
+        return lastBinaryLength;
+    }
+
+    private void send(JsonProtocol msg, byte[] binary) throws IOException {
+        writeFully(ProtocolWriter.buildPacket(codec, msg, binary));
+    }
+
+    private JsonProtocol receive() throws IOException {
+        header.clear();
+        readFully(header);
+        header.flip();
+
+        MetadataCodec frameCodec = MetadataCodec.forMagic(header.getShort());
+        if (frameCodec == null) {
+            throw new IOException("Invalid magic");
+        }
+        header.get();
+        int metadataLength = header.getInt();
+        lastBinaryLength = header.getLong();
+
+        ByteBuffer metadata = ByteBuffer.allocate(metadataLength);
+        readFully(metadata);
+        metadata.flip();
+        JsonProtocol msg = frameCodec.decode(metadata);
+
+        long remaining = lastBinaryLength;
+        while (remaining > 0) {
+            sink.clear();
+            if (remaining < sink.capacity()) {
+                sink.limit((int) remaining);
+            }
+            readFully(sink);
+            remaining -= sink.position();
+        }
+        return msg;
+    }
+
+    private static JsonProtocol expect(JsonProtocol msg, Operation op) throws IOException {
+        if (msg.operation != op) {
+            throw new IOException("Expected " + op + " but got " + msg.operation + ": " + msg.message);
+        }
+        return msg;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new IOException("Server closed the connection");
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,113 @@
+package Bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+import Client.ParallelTransfer;
+import Protocol.JsonProtocol;
+import Server.Server;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Threads(1)
+@Fork(1)
+public class ParallelTransferBenchmark {
+    private static final String FILE_NAME = "parallel.bin";
+
+    @State(Scope.Benchmark)
+    public static class TransferState {
+        @Param({"1", "2", "4", "8"})
+        public int streams;
+
+        @Param({"67108864"})
+        public int fileSize;
+
+        Path source;
+        Path downloads;
+        ParallelTransfer transfer;
+        private Path root;
+        private PrintStream stdout;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            root = Files.createTempDirectory("dropbox-bench");
+            int port = freePort();
+            Path storage = Files.createDirectories(root.resolve("server"));
+            Server server = new Server(port, 4, storage);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.start();
+                }
+                catch (IOException e) {
+                    stdout.println("[-] Server failed: " + e.getMessage());
+                }
+            }, "acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            byte[] data = new byte[fileSize];
+            ThreadLocalRandom.current().nextBytes(data);
+            source = root.resolve(FILE_NAME);
+            Files.write(source, data);
+            downloads = root.resolve("downloads");
+
+            transfer = new ParallelTransfer("127.0.0.1", port, streams);
+            transfer.upload(source).get(1, TimeUnit.MINUTES);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            transfer.close();
+            System.setOut(stdout);
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+
+        private static int freePort() throws IOException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                return socket.getLocalPort();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Benchmark
+    public JsonProtocol upload(TransferState state, Counters counters) throws Exception {
+        JsonProtocol reply = state.transfer.upload(state.source).get();
+        counters.megabytes += state.fileSize / 1e6;
+        return reply;
+    }
+
+    @Benchmark
+    public Path download(TransferState state, Counters counters) throws Exception {
+        Path path = state.transfer.download(FILE_NAME, state.downloads).get();
+        counters.megabytes += state.fileSize / 1e6;
+        return path;
+    }
+}
@@ -1,94 +1,134 @@
-package App;
-
-import javafx.application.Platform;
-import javafx.fxml.FXML;
-import javafx.scene.control.Button;
-import javafx.scene.control.Label;
-import javafx.scene.control.ListView;
-import Client.*;
-import javafx.stage.FileChooser;
-import java.io.File;
-import java.io.IOException;
-import java.util.List;
-
-public class Controller {
-    @FXML
-    public void initialize() throws IOException {
-        client = new Client("127.0.0.1", 8888);
-        client.setListCallback(files -> {
-            Platform.runLater(() -> {
-                fileList.getItems().setAll(files);
-            });
-        });
-        new Thread(() -> {
-            client.start();
-        }).start();
-        fileList.setOnDragOver(event -> {
-            if (event.getGestureSource() != fileList && event.getDragboard().hasFiles()) {
-                event.acceptTransferModes(javafx.scene.input.TransferMode.COPY);
-            }
-            event.consume();
-        });
-
-        fileList.setOnDragDropped(event -> {
-            var db = event.getDragboard();
-            boolean success = false;
-
-            if (db.hasFiles()) {
-                success = true;
-                for (File file : db.getFiles()) {
-                    client.sendUpload(file.getAbsolutePath());
-                }
-                client.sendList();
-            }
-            event.setDropCompleted(success);
-            event.consume();
-        });
-    }
-
-    @FXML
-    private void onUpload() {
-        FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Upload Files to Server");
-        List<File> files = fileChooser.showOpenMultipleDialog(null);
-
-        if (files != null && !files.isEmpty()) {
-            for (File file : files) {
-                client.sendUpload(file.getAbsolutePath());
-            }
-        }
-        client.sendList();
-    }
-
-    @FXML
-    private void onDownload() {
-        String selected = fileList.getSelectionModel().getSelectedItem();
-        if (selected != null) {
-            client.sendDownload(selected);
-            client.sendList();
-        }
-        else {
-            System.out.println("[-] No file selected for download.");
-        }
-    }
-
-    @FXML
-    private void onDelete() {
-        String selected = fileList.getSelectionModel().getSelectedItem();
-        if (selected != null) {
-            client.sendDelete(selected);
-            client.sendList();
-        }
-        else {
-            System.out.println("[-] No file selected for deletion.");
-        }
-    }
-
-    @FXML
-    private void onRefresh() {
-        client.sendList();
-    }
-
-    @FXML private ListView<String> fileList;
-    private Client client;
-}
\ No newline at end of file
+package App;
+
+import javafx.application.Platform;
+import javafx.fxml.FXML;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
+import Client.*;
+import javafx.stage.FileChooser;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class Controller {
+    @FXML
+    public void initialize() throws IOException {
+        client = new Client("127.0.0.1", 8888);
+        client.setListCallback(files -> {
+            Platform.runLater(() -> {
+                fileList.getItems().setAll(files);
+            });
+        });
+        client.setListChangeCallback((updated, removed) -> {
+            Platform.runLater(() -> {
+                applyChanges(updated, removed);
+            });
+        });
+        new Thread(() -> {
+            client.start();
+        }).start();
+        String syncDir = System.getProperty("dropbox.sync.dir");
+        if (syncDir != null) {
+            sync = new FolderSync(client, Path.of(syncDir));
+            sync.start();
+        }
+        fileList.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        fileList.setOnDragOver(event -> {
+            if (event.getGestureSource() != fileList && event.getDragboard().hasFiles()) {
+                event.acceptTransferModes(javafx.scene.input.TransferMode.COPY);
+            }
+            event.consume();
+        });
+
+        fileList.setOnDragDropped(event -> {
+            var db = event.getDragboard();
+            boolean success = false;
+
+            if (db.hasFiles()) {
+                success = true;
+                client.sendUploads(toPaths(db.getFiles()));
+            }
+            event.setDropCompleted(success);
+            event.consume();
+        });
+    }
+
+    private void applyChanges(List<String> updated, List<String> removed) {
+        List<String> items = fileList.getItems();
+        for (String name : removed) {
+            int index = Collections.binarySearch(items, name);
+            if (index >= 0) {
+                items.remove(index);
+            }
+        }
+        for (String name : updated) {
+            int index = Collections.binarySearch(items, name);
+            if (index < 0) {
+                items.add(-index - 1, name);
+            }
+        }
+    }
+
+    @FXML
+    private void onUpload() {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Upload Files to Server");
+        List<File> files = fileChooser.showOpenMultipleDialog(null);
+
+        if (files != null && !files.isEmpty()) {
+            client.sendUploads(toPaths(files));
+        }
+    }
+
+    private static List<Path> toPaths(List<File> files) {
+        List<Path> paths = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile()) {
+                paths.add(file.toPath());
+            }
+        }
+        return paths;
+    }
+
+    @FXML
+    private void onDownload() {
+        List<String> selected = List.copyOf(fileList.getSelectionModel().getSelectedItems());
+        if (selected.size() == 1) {
+            client.sendDownload(selected.get(0));
+        }
+        else if (!selected.isEmpty()) {
+            client.sendDownloads(selected);
+        }
+        else {
+            System.out.println("[-] No file selected for download.");
+        }
+    }
+
+    @FXML
+    private void onDelete() {
+        List<String> selected = List.copyOf(fileList.getSelectionModel().getSelectedItems());
+        if (selected.size() == 1) {
+            client.sendDelete(selected.get(0));
+        }
+        else if (!selected.isEmpty()) {
+            client.sendDeletes(selected);
+        }
+        else {
+            System.out.println("[-] No file selected for deletion.");
+        }
+    }
+
+    @FXML
+    private void onRefresh() {
+        client.sendList();
+    }
+
+    @FXML private ListView<String> fileList;
+    private Client client;
+    private FolderSync sync;
+}
@@ -1,310 +1,1405 @@
-package Client;
-
-import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.*;
-import java.nio.channels.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.*;
-import java.util.function.Consumer;
-
-import Protocol.*;
-
-enum ReadState {
-    READING_HEADER,
-    READING_JSON,
-    READING_BINARY
-}
-
-public class Client {
-    private final String host;
-    private final int port;
-
-    private Selector selector;
-    private SocketChannel channel;
-    private final Queue<ByteBuffer> outgoing = new ArrayDeque<>();
-    private boolean writing = false;
-    private final ByteBuffer headerBuffer = ByteBuffer.allocate(15);
-    private ByteBuffer jsonBuffer;
-    private ByteBuffer binaryBuffer;
-    private ReadState state = ReadState.READING_HEADER;
-    private int jsonLength = 0;
-    private long binaryLength = 0;
-    private final String pathStorage = "D:\\Java\\Projects\\Dropbox\\ClientStorage\\";
-    private Consumer<List<String>> listCallback;
-
-    public Client(String host, int port) {
-        this.host = host;
-        this.port = port;
-    }
-
-    private void connect() throws IOException {
-        selector = Selector.open();
-
-        channel = SocketChannel.open();
-        channel.configureBlocking(false);
-        channel.connect(new InetSocketAddress(host, port));
-        channel.register(selector, SelectionKey.OP_CONNECT);
-    }
-
-    public void start() {
-        while (true) {
-            try {
-                connect();
-
-                System.out.println("[*] Connecting to server...");
-
-                while (channel.isOpen()) {
-                    selector.select();
-
-                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                    while (keys.hasNext()) {
-                        SelectionKey key = keys.next();
-                        keys.remove();
-
-                        if (key.isConnectable()) {
-                            handleConnect(key);
-                        }
-
-                        if (key.isWritable()) {
-                            handleWrite(key);
-                        }
-
-                        if (key.isReadable()) {
-                            handleRead(key);
-                        }
-                    }
-                }
-
-            } catch (IOException e) {
-                System.out.println("[-] Connection error: " + e.getMessage());
-            }
-
-            System.out.println("[*] Reconnecting in 2 seconds...");
-            try {
-                Thread.sleep(2000);
-            }
-            catch (InterruptedException ignored) {}
-        }
-    }
-
-    private void handleConnect(SelectionKey key) throws IOException {
-        if (channel.finishConnect()) {
-            System.out.println("[+] Connected to server");
-            channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-        }
-    }
-
-    private void handleRead(SelectionKey key) throws IOException {
-        if (state == ReadState.READING_HEADER) {
-            int read = channel.read(headerBuffer);
-            if (read == -1) {
-                System.out.println("[-] Server closed connection");
-                channel.close();
-                key.cancel();
-                return;
-            }
-
-            if (headerBuffer.remaining() == 0) {
-                headerBuffer.flip();
-                short magic = headerBuffer.getShort();
-                if (magic != ProtocolWriter.MAGIC) {
-                    System.out.println("[-] Invalid magic, disconnecting");
-                    return;
-                }
-
-                byte opCode = headerBuffer.get();
-                Operation op = Operation.fromCode(opCode);
-
-                jsonLength = headerBuffer.getInt();
-                binaryLength = headerBuffer.getLong();
-                headerBuffer.clear();
-
-                jsonBuffer = ByteBuffer.allocate(jsonLength);
-                if (jsonLength == 0) {
-                    if (binaryLength > 0) {
-                        state = ReadState.READING_BINARY;
-                    }
-                    else {
-                        state = ReadState.READING_HEADER;
-                    }
-                }
-                else {
-                    state = ReadState.READING_JSON;
-                }
-            }
-        }
-
-        if (state == ReadState.READING_JSON) {
-            int read = channel.read(jsonBuffer);
-            if (read == -1) {
-                System.out.println("[-] Server closed connection");
-                channel.close();
-                key.cancel();
-                return;
-            }
-
-            if (!jsonBuffer.hasRemaining()) {
-                jsonBuffer.flip();
-                if (binaryLength > 0) {
-                    state = ReadState.READING_BINARY;
-                }
-                else {
-                    handlePacket(jsonBuffer, null);
-                    state = ReadState.READING_HEADER;
-                }
-            }
-        }
-
-        if (state == ReadState.READING_BINARY) {
-            if (binaryBuffer == null) {
-                binaryBuffer = ByteBuffer.allocate((int) binaryLength);
-            }
-
-            int read = channel.read(binaryBuffer);
-            if (read == -1) {
-                System.out.println("[-] Server closed connection");
-                channel.close();
-                key.cancel();
-                return;
-            }
-
-            if (!binaryBuffer.hasRemaining()) {
-                binaryBuffer.flip();
-                handlePacket(jsonBuffer, binaryBuffer);
-
-                jsonBuffer = null;
-                binaryBuffer = null;
-                jsonLength = 0;
-                binaryLength = 0;
-                state = ReadState.READING_HEADER;
-            }
-        }
-    }
-
-    private void handlePacket(ByteBuffer jsonBuf, ByteBuffer binBuf) {
-        String msg = new String(jsonBuf.array(), StandardCharsets.UTF_8);
-        JsonProtocol reply = JsonProtocol.fromJson(msg);
-        System.out.println("\n[<] Got operation: " + reply.operation);
-
-        switch (reply.operation) {
-            case LIST_REPLY -> {
-                if (reply.files != null) {
-                    System.out.println("[✓] File list received (" + reply.files.size() + " files):");
-                    for (String file : reply.files) {
-                        System.out.println(" - " + file);
-                    }
-                    if (listCallback != null) {
-                        listCallback.accept(reply.files);
-                    }
-                }
-                else {
-                    System.out.println("[-] Empty file list or missing field");
-                }
-            }
-
-            case UPLOAD_OK -> {
-                System.out.println("[✓] Upload result:");
-                System.out.println("Status: " + reply.status);
-                System.out.println("Message: " + reply.message);
-            }
-
-            case DELETE_OK -> {
-                System.out.println("[✓] Delete result:");
-                System.out.println("Status: " + reply.status);
-                System.out.println("Message: " + reply.message);
-            }
-
-            case DOWNLOAD_REPLY -> {
-                if (binBuf == null || reply.fileName == null || reply.size <= 0) {
-                    System.out.println("[-] Invalid DOWNLOAD_REPLY");
-                    return;
-                }
-
-                File saveFile = new File(pathStorage + reply.fileName);
-                new File(pathStorage).mkdirs();
-
-                try (FileOutputStream fos = new FileOutputStream(saveFile)) {
-                    fos.write(binBuf.array(), 0, binBuf.remaining());
-                    System.out.println("[✓] File downloaded: " + saveFile.getAbsolutePath());
-                    System.out.println("Size: " + reply.size + " bytes");
-                }
-                catch (IOException e) {
-                    System.out.println("[-] Failed to save file: " + e.getMessage());
-                }
-            }
-
-            case ERROR -> {
-                System.out.println("[✗] Server error:");
-                System.out.println("Status: " + reply.status);
-                System.out.println("Message: " + reply.message);
-            }
-
-            default -> {
-                System.out.println("[-] Unknown operation: " + reply.operation);
-            }
-        }
-    }
-
-    private void handleWrite(SelectionKey key) throws IOException {
-        while (!outgoing.isEmpty()) {
-            ByteBuffer buf = outgoing.peek();
-            channel.write(buf);
-            if (buf.hasRemaining()) return;
-            outgoing.poll();
-        }
-
-        key.interestOps(SelectionKey.OP_READ);
-        writing = false;
-    }
-
-    private void queueToSend(ByteBuffer buf) {
-        outgoing.add(buf);
-        if (!writing) {
-            channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-            writing = true;
-            selector.wakeup();
-        }
-    }
-
-    public void sendList() {
-        JsonProtocol json = new JsonProtocol();
-        json.operation = Operation.LIST;
-        queueToSend(ProtocolWriter.buildPacket(Operation.LIST, JsonProtocol.toJson(json), null));
-    }
-
-    public void sendDelete(String fileName) {
-        JsonProtocol json = new JsonProtocol();
-        json.operation = Operation.DELETE;
-        json.fileName = fileName;
-        queueToSend(ProtocolWriter.buildPacket(Operation.DELETE, JsonProtocol.toJson(json), null));
-    }
-
-    public void sendDownload(String fileName) {
-        JsonProtocol json = new JsonProtocol();
-        json.operation = Operation.DOWNLOAD;
-        json.fileName = fileName;
-        queueToSend(ProtocolWriter.buildPacket(Operation.DOWNLOAD, JsonProtocol.toJson(json), null));
-    }
-
-    public void sendUpload(String filePath) {
-        try {
-            File file = new File(filePath);
-            byte[] data = Files.readAllBytes(file.toPath());
-            JsonProtocol json = new JsonProtocol();
-            json.operation = Operation.UPLOAD;
-            json.fileName = file.getName();
-            json.size = data.length;
-            String jsonS = JsonProtocol.toJson(json);
-            queueToSend(ProtocolWriter.buildPacket(Operation.UPLOAD, JsonProtocol.toJson(json), data));
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public void setListCallback(Consumer<List<String>> callback) {
-        this.listCallback = callback;
-    }
-}
\ No newline at end of file
+package Client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import Protocol.*;
+
+enum ReadState {
+    READING_HEADER,
+    READING_JSON,
+    READING_BINARY
+}
+
+public class Client {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int CHUNK_WINDOW = 4;
+    private static final int LIST_PAGE = 1000;
+    private static final int MAX_GATHER = 64;
+    private static final long HIGH_WATERMARK = 8 * 1024 * 1024;
+    private static final long LOW_WATERMARK = 2 * 1024 * 1024;
+    static final long BATCH_FILE_SIZE = 256 * 1024;
+    private static final long BATCH_BYTES = 4 * 1024 * 1024;
+    private static final int BATCH_FILES = 1000;
+
+    private final String host;
+    private final int port;
+
+    private volatile Selector selector;
+    private SocketChannel channel;
+    private final Queue<Outgoing> outgoing = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final BufferPool pool = new BufferPool();
+    private boolean writing = false;
+    private long queuedBytes = 0;
+    private long loadingBytes = 0;
+    private boolean writeBlocked = false;
+    private final Queue<Runnable> throttled = new ArrayDeque<>();
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(15);
+    private ByteBuffer jsonBuffer;
+    private ByteBuffer binaryBuffer;
+    private ReadState state = ReadState.READING_HEADER;
+    private int jsonLength = 0;
+    private long binaryLength = 0;
+    private MetadataCodec frameCodec = MetadataCodec.JSON;
+    private MetadataCodec codec = MetadataCodec.JSON;
+    private final String pathStorage = "D:\\Java\\Projects\\Dropbox\\ClientStorage\\";
+    private Consumer<List<String>> listCallback;
+    private BiConsumer<List<String>, List<String>> listChangeCallback;
+    private long listSeq = -1;
+    private boolean subscribed = false;
+    private long listPagesSeq = -1;
+    private final List<String> listPages = new ArrayList<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<String, UploadTransfer> uploads = new LinkedHashMap<>();
+    private final Map<String, DedupUpload> dedupUploads = new LinkedHashMap<>();
+    private final Map<String, Path> deltaUploads = new LinkedHashMap<>();
+    private final Set<String> remoteFiles = new HashSet<>();
+    private final Map<String, DownloadTransfer> downloads = new LinkedHashMap<>();
+    private final Map<String, CompletableFuture<JsonProtocol>> uploadResults = new HashMap<>();
+    private final Map<Long, CompletableFuture<JsonProtocol>> requests = new HashMap<>();
+    private final Map<Long, RangeWriter> rangeWriters = new HashMap<>();
+    private long nextRequestId = 1;
+    private long connection = 0;
+    private final boolean watchChanges;
+    private volatile boolean running = true;
+
+    public Client(String host, int port) {
+        this(host, port, true);
+    }
+
+    Client(String host, int port, boolean watchChanges) {
+        this.host = host;
+        this.port = port;
+        this.watchChanges = watchChanges;
+    }
+
+    private void connect() throws IOException {
+        while (!outgoing.isEmpty()) {
+            release(outgoing.poll());
+        }
+        queuedBytes = 0;
+        updateBlocked();
+        writing = false;
+        headerBuffer.clear();
+        releaseReadBuffers();
+        state = ReadState.READING_HEADER;
+        codec = MetadataCodec.JSON;
+        listSeq = -1;
+        listPagesSeq = -1;
+        listPages.clear();
+        subscribed = false;
+        for (CompletableFuture<JsonProtocol> request : requests.values()) {
+            request.completeExceptionally(new IOException("Connection lost"));
+        }
+        requests.clear();
+        rangeWriters.clear();
+        connection++;
+
+        selector = Selector.open();
+
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(new InetSocketAddress(host, port));
+        channel.register(selector, SelectionKey.OP_CONNECT);
+    }
+
+    public void start() {
+        while (running) {
+            try {
+                connect();
+
+                Log.info("[*] Connecting to server...");
+
+                while (channel.isOpen()) {
+                    selector.select();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (key.isConnectable()) {
+                            handleConnect(key);
+                        }
+
+                        if (key.isWritable()) {
+                            handleWrite(key);
+                        }
+
+                        if (key.isReadable()) {
+                            handleRead(key);
+                        }
+                    }
+
+                    if (channel.isConnected()) {
+                        runTasks();
+                    }
+                }
+
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("[-] Connection error: " + e.getMessage());
+                }
+            }
+
+            if (!running) {
+                break;
+            }
+            Log.info("[*] Reconnecting in 2 seconds...");
+            try {
+                Thread.sleep(2000);
+            }
+            catch (InterruptedException ignored) {}
+        }
+
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+        catch (IOException ignored) {}
+    }
+
+    public void close() {
+        running = false;
+        try {
+            SocketChannel current = channel;
+            if (current != null) {
+                current.close();
+            }
+        }
+        catch (IOException ignored) {}
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    private void handleConnect(SelectionKey key) throws IOException {
+        if (channel.finishConnect()) {
+            Log.info("[+] Connected to server");
+            channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            sendHello();
+            resumeTransfers();
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        while (!writeBlocked && (task = throttled.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void throttle(Runnable task) {
+        if (writeBlocked) {
+            throttled.add(task);
+            return;
+        }
+        task.run();
+    }
+
+    private void updateBlocked() {
+        long pending = queuedBytes + loadingBytes;
+        if (!writeBlocked && pending >= HIGH_WATERMARK) {
+            writeBlocked = true;
+        }
+        else if (writeBlocked && pending <= LOW_WATERMARK) {
+            writeBlocked = false;
+        }
+    }
+
+    private void sendHello() {
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.HELLO;
+        json.codec = MetadataCodec.BINARY.name();
+        send(json, null);
+    }
+
+    private void resumeTransfers() throws IOException {
+        for (Path path : deltaUploads.values()) {
+            Log.info("[*] Resuming upload: " + path.getFileName());
+            sendDeltaSignatures(path.getFileName().toString());
+        }
+        for (DedupUpload upload : dedupUploads.values()) {
+            Log.info("[*] Resuming upload: " + upload.fileName);
+            sendBlockQuery(upload);
+        }
+        for (UploadTransfer upload : uploads.values()) {
+            Log.info("[*] Resuming upload: " + upload.fileName);
+            sendUploadBegin(upload);
+        }
+        for (DownloadTransfer download : downloads.values()) {
+            Log.info("[*] Resuming download: " + download.fileName);
+            download.restart();
+            requestRanges(download);
+        }
+    }
+
+    private void handleRead(SelectionKey key) throws IOException {
+        if (state == ReadState.READING_HEADER) {
+            int read = channel.read(headerBuffer);
+            if (read == -1) {
+                Log.warn("[-] Server closed connection");
+                channel.close();
+                key.cancel();
+                return;
+            }
+
+            if (headerBuffer.remaining() == 0) {
+                headerBuffer.flip();
+                short magic = headerBuffer.getShort();
+                frameCodec = MetadataCodec.forMagic(magic);
+                if (frameCodec == null) {
+                    Log.warn("[-] Invalid magic, disconnecting");
+                    return;
+                }
+
+                byte opCode = headerBuffer.get();
+                Operation op = Operation.fromCode(opCode);
+
+                jsonLength = headerBuffer.getInt();
+                binaryLength = headerBuffer.getLong();
+                headerBuffer.clear();
+
+                jsonBuffer = pool.acquire(jsonLength);
+                if (jsonLength == 0) {
+                    if (binaryLength > 0) {
+                        state = ReadState.READING_BINARY;
+                    }
+                    else {
+                        releaseReadBuffers();
+                        state = ReadState.READING_HEADER;
+                    }
+                }
+                else {
+                    state = ReadState.READING_JSON;
+                }
+            }
+        }
+
+        if (state == ReadState.READING_JSON) {
+            int read = channel.read(jsonBuffer);
+            if (read == -1) {
+                Log.warn("[-] Server closed connection");
+                channel.close();
+                key.cancel();
+                return;
+            }
+
+            if (!jsonBuffer.hasRemaining()) {
+                jsonBuffer.flip();
+                if (binaryLength > 0) {
+                    state = ReadState.READING_BINARY;
+                }
+                else {
+                    handlePacket(jsonBuffer, null);
+                    releaseReadBuffers();
+                    state = ReadState.READING_HEADER;
+                }
+            }
+        }
+
+        if (state == ReadState.READING_BINARY) {
+            if (binaryBuffer == null) {
+                binaryBuffer = pool.acquire((int) binaryLength);
+            }
+
+            int read = channel.read(binaryBuffer);
+            if (read == -1) {
+                Log.warn("[-] Server closed connection");
+                channel.close();
+                key.cancel();
+                return;
+            }
+
+            if (!binaryBuffer.hasRemaining()) {
+                binaryBuffer.flip();
+                handlePacket(jsonBuffer, binaryBuffer);
+
+                releaseReadBuffers();
+                jsonLength = 0;
+                binaryLength = 0;
+                state = ReadState.READING_HEADER;
+            }
+        }
+    }
+
+    private void handlePacket(ByteBuffer jsonBuf, ByteBuffer binBuf) {
+        JsonProtocol reply = frameCodec.decode(jsonBuf);
+        if (reply.encoding != null && binBuf != null) {
+            byte[] packed = new byte[binBuf.remaining()];
+            binBuf.get(packed);
+            long current = connection;
+            Thread.ofVirtual().start(() -> {
+                try {
+                    ByteBuffer data = ByteBuffer.wrap(Compression.inflate(packed, (int) reply.length));
+                    execute(() -> {
+                        if (current == connection) {
+                            reply.encoding = null;
+                            handleReply(reply, data);
+                        }
+                    });
+                }
+                catch (IOException e) {
+                    execute(() -> {
+                        if (current == connection) {
+                            failReply(reply, e);
+                        }
+                    });
+                }
+            });
+            return;
+        }
+        handleReply(reply, binBuf);
+    }
+
+    private void handleReply(JsonProtocol reply, ByteBuffer binBuf) {
+        dispatch(reply, binBuf);
+
+        if (reply.id != 0 && !"PARTIAL".equals(reply.status)) {
+            rangeWriters.remove(reply.id);
+            CompletableFuture<JsonProtocol> request = requests.remove(reply.id);
+            if (request == null) {
+                return;
+            }
+            if (reply.operation == Operation.ERROR || "FAIL".equals(reply.status) || "NOT_FOUND".equals(reply.status)) {
+                request.completeExceptionally(new IOException(reply.message));
+            }
+            else {
+                request.complete(reply);
+            }
+        }
+    }
+
+    private void failReply(JsonProtocol reply, IOException error) {
+        Log.warn("[-] Failed to decompress " + reply.operation + ": " + error.getMessage());
+        rangeWriters.remove(reply.id);
+        CompletableFuture<JsonProtocol> request = requests.remove(reply.id);
+        if (request != null) {
+            request.completeExceptionally(error);
+        }
+        DownloadTransfer download = reply.fileName != null ? downloads.remove(reply.fileName) : null;
+        if (download != null) {
+            download.result.completeExceptionally(error);
+        }
+    }
+
+    private void dispatch(JsonProtocol reply, ByteBuffer binBuf) {
+        if (reply.operation != Operation.UPLOAD_CHUNK_OK && reply.operation != Operation.DOWNLOAD_REPLY
+                && reply.operation != Operation.BLOCK_PUT_OK) {
+            Log.debug(() -> "[<] Got operation: " + reply.operation);
+        }
+
+        switch (reply.operation) {
+            case LIST_REPLY -> {
+                if (reply.files == null) {
+                    Log.warn("[-] Empty file list or missing field");
+                    return;
+                }
+
+                if (listPagesSeq < 0) {
+                    listPagesSeq = reply.seq;
+                }
+                listPages.addAll(reply.files);
+                if (reply.cursor != null) {
+                    sendListPage(reply.cursor);
+                    return;
+                }
+
+                List<String> files = new ArrayList<>(listPages);
+                listSeq = listPagesSeq;
+                listPages.clear();
+                listPagesSeq = -1;
+                remoteFiles.clear();
+                remoteFiles.addAll(files);
+                Log.info("[✓] File list received (" + files.size() + " files)");
+                if (listCallback != null) {
+                    listCallback.accept(files);
+                }
+                if (!subscribed && watchChanges) {
+                    sendSubscribe();
+                }
+            }
+
+            case SUBSCRIBE_OK -> {
+                Log.debug(() -> "[*] " + reply.message);
+            }
+
+            case LIST_CHANGES_REPLY -> {
+                if (!"OK".equals(reply.status)) {
+                    Log.debug(() -> "[*] " + reply.message + ", reloading the file list");
+                    listSeq = -1;
+                    sendListPage(null);
+                    return;
+                }
+
+                List<String> updated = reply.files != null ? reply.files : List.of();
+                List<String> removed = reply.removed != null ? reply.removed : List.of();
+                listSeq = reply.seq;
+                remoteFiles.removeAll(removed);
+                remoteFiles.addAll(updated);
+                Log.info("[✓] File list changes: " + updated.size() + " updated, " + removed.size() + " removed");
+                if (listChangeCallback != null) {
+                    listChangeCallback.accept(updated, removed);
+                }
+                else if (listCallback != null) {
+                    listCallback.accept(new ArrayList<>(remoteFiles));
+                }
+            }
+
+            case STATS_REPLY -> {
+                Log.debug(() -> "[*] " + reply.message + ": " + (reply.stats != null ? reply.stats.size() : 0) + " values");
+            }
+
+            case CHECKSUM_REPLY -> {
+                Log.debug(() -> "[*] " + reply.fileName + ": " + reply.message);
+            }
+
+            case HELLO_OK -> {
+                codec = MetadataCodec.forName(reply.codec);
+                Log.debug(() -> "[*] " + reply.message);
+            }
+
+            case UPLOAD_OK, UPLOAD_COMMIT_OK -> {
+                if (reply.operation == Operation.UPLOAD_COMMIT_OK) {
+                    uploads.remove(reply.fileName);
+                }
+                finishUpload(reply.fileName, reply);
+                Log.info("[✓] Upload result: " + reply.status + ", " + reply.message);
+            }
+
+            case UPLOAD_BEGIN_OK -> {
+                UploadTransfer upload = uploads.get(reply.fileName);
+                if (upload == null) {
+                    return;
+                }
+                if (!"OK".equals(reply.status)) {
+                    uploads.remove(reply.fileName);
+                    finishUpload(reply.fileName, reply);
+                    Log.warn("[-] Upload rejected: " + reply.message);
+                    return;
+                }
+
+                upload.restart(reply.offset);
+                if (reply.offset > 0) {
+                    Log.debug(() -> "[*] Server already holds " + reply.offset + " bytes of " + upload.fileName);
+                }
+                sendChunks(upload);
+            }
+
+            case UPLOAD_CHUNK_OK -> {
+                UploadTransfer upload = uploads.get(reply.fileName);
+                if (upload == null) {
+                    return;
+                }
+                if (!"OK".equals(reply.status)) {
+                    uploads.remove(reply.fileName);
+                    finishUpload(reply.fileName, reply);
+                    Log.warn("[-] Chunk rejected: " + reply.message);
+                    return;
+                }
+
+                upload.inFlight--;
+                upload.acked = reply.offset;
+                sendChunks(upload);
+            }
+
+            case BLOCK_QUERY_REPLY -> {
+                DedupUpload upload = dedupUploads.get(reply.fileName);
+                if (upload == null) {
+                    return;
+                }
+                if (!"OK".equals(reply.status)) {
+                    dedupUploads.remove(reply.fileName);
+                    finishUpload(reply.fileName, reply);
+                    Log.warn("[-] Upload rejected: " + reply.message);
+                    return;
+                }
+
+                List<String> missing = reply.hashes != null ? reply.hashes : List.of();
+                Log.debug(() -> "[*] " + upload.fileName + ": " + missing.size() + " of "
+                        + upload.byHash.size() + " blocks need uploading");
+                upload.restart(missing);
+                sendBlocks(upload);
+            }
+
+            case BLOCK_PUT_OK -> {
+                DedupUpload upload = dedupUploads.get(reply.fileName);
+                if (upload == null) {
+                    return;
+                }
+                if (!"OK".equals(reply.status)) {
+                    dedupUploads.remove(reply.fileName);
+                    finishUpload(reply.fileName, reply);
+                    Log.warn("[-] Block rejected: " + reply.message);
+                    return;
+                }
+
+                upload.inFlight--;
+                sendBlocks(upload);
+            }
+
+            case MANIFEST_COMMIT_OK -> {
+                DedupUpload upload = dedupUploads.get(reply.fileName);
+                if ("NOT_FOUND".equals(reply.status) && upload != null) {
+                    sendBlockQuery(upload);
+                    return;
+                }
+
+                dedupUploads.remove(reply.fileName);
+                finishUpload(reply.fileName, reply);
+                Log.info("[✓] Upload result: " + reply.status + ", " + reply.message);
+            }
+
+            case DELTA_SIGNATURES_REPLY -> {
+                Path path = deltaUploads.get(reply.fileName);
+                if (path == null) {
+                    return;
+                }
+                if (!"OK".equals(reply.status) || binBuf == null) {
+                    deltaUploads.remove(reply.fileName);
+                    sendUploadDeduplicated(path);
+                    return;
+                }
+
+                byte[] signatures = new byte[binBuf.remaining()];
+                binBuf.get(signatures);
+                sendDelta(path, signatures, (int) reply.length);
+            }
+
+            case DELTA_APPLY_OK -> {
+                Path path = deltaUploads.remove(reply.fileName);
+                if (!"OK".equals(reply.status) && path != null) {
+                    Log.warn("[-] Delta rejected (" + reply.message + "), sending blocks instead");
+                    sendUploadDeduplicated(path);
+                    return;
+                }
+
+                finishUpload(reply.fileName, reply);
+                Log.info("[✓] Upload result: " + reply.status + ", " + reply.message);
+            }
+
+            case BATCH_UPLOAD_OK, BATCH_DELETE_OK -> {
+                Log.debug(() -> "[*] " + reply.operation + ": " + reply.message);
+            }
+
+            case BATCH_DOWNLOAD_REPLY -> {
+                RangeWriter writer = rangeWriters.get(reply.id);
+                if (writer != null && binBuf != null) {
+                    try {
+                        writer.write(reply, binBuf);
+                    }
+                    catch (IOException e) {
+                        rangeWriters.remove(reply.id);
+                        CompletableFuture<JsonProtocol> request = requests.remove(reply.id);
+                        if (request != null) {
+                            request.completeExceptionally(e);
+                        }
+                    }
+                }
+                Log.debug(() -> "[*] " + reply.operation + ": " + reply.message);
+            }
+
+            case DELETE_OK -> {
+                Log.info("[✓] Delete result: " + reply.status + ", " + reply.message);
+            }
+
+            case DOWNLOAD_REPLY -> {
+                RangeWriter writer = rangeWriters.get(reply.id);
+                if (writer != null) {
+                    try {
+                        if (binBuf != null) {
+                            writer.write(reply, binBuf);
+                        }
+                    }
+                    catch (IOException e) {
+                        rangeWriters.remove(reply.id);
+                        CompletableFuture<JsonProtocol> request = requests.remove(reply.id);
+                        if (request != null) {
+                            request.completeExceptionally(e);
+                        }
+                    }
+                    return;
+                }
+
+                if (reply.fileName == null) {
+                    Log.warn("[-] Invalid DOWNLOAD_REPLY");
+                    return;
+                }
+
+                DownloadTransfer download = downloads.get(reply.fileName);
+                try {
+                    if (download == null) {
+                        if (reply.offset != 0) {
+                            return;
+                        }
+                        download = new DownloadTransfer(reply.fileName, Path.of(pathStorage));
+                        download.received = reply.offset;
+                        download.inFlight = 1;
+                    }
+                    download.size = reply.size;
+                    download.expectedCrc = reply.crc;
+                    if (!"PARTIAL".equals(reply.status)) {
+                        download.inFlight--;
+                    }
+                    if (binBuf != null) {
+                        download.write(reply.offset, binBuf);
+                    }
+
+                    if (download.isComplete()) {
+                        downloads.remove(reply.fileName);
+                        download.complete();
+                        download.result.complete(download.target);
+                        Log.info("[✓] File downloaded: " + download.target.toAbsolutePath() + " (" + reply.size + " bytes)");
+                    }
+                    else {
+                        requestRanges(download);
+                    }
+                }
+                catch (IOException e) {
+                    downloads.remove(reply.fileName);
+                    if (download != null) {
+                        download.result.completeExceptionally(e);
+                    }
+                    Log.warn("[-] Failed to save file: " + e.getMessage());
+                }
+            }
+
+            case ERROR -> {
+                if (reply.fileName != null) {
+                    DownloadTransfer download = downloads.remove(reply.fileName);
+                    if (download != null) {
+                        try {
+                            download.discard();
+                        }
+                        catch (IOException ignored) {}
+                        download.result.completeExceptionally(new IOException(reply.message));
+                    }
+                }
+                Log.warn("[✗] Server error: " + reply.status + ", " + reply.message);
+            }
+
+            default -> {
+                Log.warn("[-] Unknown operation: " + reply.operation);
+            }
+        }
+    }
+
+    private void handleWrite(SelectionKey key) throws IOException {
+        while (!outgoing.isEmpty()) {
+            int count = 0;
+            for (Outgoing next : outgoing) {
+                if (count == MAX_GATHER) {
+                    break;
+                }
+                gather[count++] = next.buffer();
+            }
+            queuedBytes -= channel.write(gather, 0, count);
+            updateBlocked();
+            Arrays.fill(gather, 0, count, null);
+
+            int done = 0;
+            while (!outgoing.isEmpty() && !outgoing.peek().buffer().hasRemaining()) {
+                release(outgoing.poll());
+                done++;
+            }
+            if (done < count) {
+                return;
+            }
+        }
+
+        key.interestOps(SelectionKey.OP_READ);
+        writing = false;
+    }
+
+    private void send(JsonProtocol json, byte[] binary) {
+        if (json.id == 0) {
+            json.id = nextRequestId++;
+        }
+        if (binary == null) {
+            queueToSend(new Outgoing(ProtocolWriter.buildPacket(pool, codec, json, null), true));
+            return;
+        }
+        queueToSend(new Outgoing(ProtocolWriter.buildHeader(pool, codec, json, binary.length), true));
+        queueToSend(new Outgoing(ByteBuffer.wrap(binary), false));
+    }
+
+    private void release(Outgoing write) {
+        if (write.pooled()) {
+            pool.release(write.buffer());
+        }
+    }
+
+    private void releaseReadBuffers() {
+        if (jsonBuffer != null) {
+            pool.release(jsonBuffer);
+            jsonBuffer = null;
+        }
+        if (binaryBuffer != null) {
+            pool.release(binaryBuffer);
+            binaryBuffer = null;
+        }
+    }
+
+    private void queueToSend(Outgoing write) {
+        outgoing.add(write);
+        queuedBytes += write.buffer().remaining();
+        updateBlocked();
+        if (!writing) {
+            channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            writing = true;
+            selector.wakeup();
+        }
+    }
+
+    public void sendList() {
+        execute(() -> {
+            if (listSeq < 0) {
+                sendListPage(null);
+                return;
+            }
+            JsonProtocol json = new JsonProtocol();
+            json.operation = Operation.LIST_CHANGES;
+            json.seq = listSeq;
+            send(json, null);
+        });
+    }
+
+    private void sendSubscribe() {
+        subscribed = true;
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.SUBSCRIBE;
+        json.seq = listSeq;
+        send(json, null);
+    }
+
+    private void sendListPage(String cursor) {
+        if (cursor == null) {
+            listPages.clear();
+            listPagesSeq = -1;
+        }
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.LIST;
+        json.cursor = cursor;
+        json.limit = LIST_PAGE;
+        send(json, null);
+    }
+
+    public CompletableFuture<JsonProtocol> request(JsonProtocol json) {
+        return request(json, null);
+    }
+
+    public CompletableFuture<JsonProtocol> request(JsonProtocol json, byte[] binary) {
+        return request(json, binary, null);
+    }
+
+    CompletableFuture<JsonProtocol> downloadRange(String fileName, long offset, long length, RangeWriter writer) {
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.DOWNLOAD;
+        json.fileName = fileName;
+        json.offset = offset;
+        json.length = length;
+        json.encoding = Compression.DEFLATE;
+        return request(json, null, writer);
+    }
+
+    private CompletableFuture<JsonProtocol> request(JsonProtocol json, byte[] binary, RangeWriter writer) {
+        CompletableFuture<JsonProtocol> request = new CompletableFuture<>();
+        execute(() -> {
+            json.id = nextRequestId++;
+            requests.put(json.id, request);
+            if (writer != null) {
+                rangeWriters.put(json.id, writer);
+            }
+            send(json, binary);
+        });
+        return request;
+    }
+
+    public CompletableFuture<List<String>> list() {
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.LIST;
+        return request(json).thenApply(reply -> reply.files != null ? reply.files : List.of());
+    }
+
+    public CompletableFuture<Map<String, Long>> stats() {
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.STATS;
+        return request(json).thenApply(reply -> reply.stats != null ? reply.stats : Map.of());
+    }
+
+    public CompletableFuture<JsonProtocol> delete(String fileName) {
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.DELETE;
+        json.fileName = fileName;
+        return request(json);
+    }
+
+    public CompletableFuture<JsonProtocol> checksum(String fileName) {
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.CHECKSUM;
+        json.fileName = fileName;
+        return request(json);
+    }
+
+    public void sendDelete(String fileName) {
+        delete(fileName);
+    }
+
+    public CompletableFuture<Path> download(String fileName) {
+        return download(fileName, Path.of(pathStorage));
+    }
+
+    public CompletableFuture<Path> download(String fileName, Path directory) {
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        execute(() -> {
+            DownloadTransfer existing = downloads.get(fileName);
+            if (existing != null) {
+                existing.result.whenComplete((path, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    }
+                    else {
+                        result.complete(path);
+                    }
+                });
+                return;
+            }
+            try {
+                DownloadTransfer download = new DownloadTransfer(fileName, directory);
+                download.result = result;
+                downloads.put(fileName, download);
+                requestRanges(download);
+            }
+            catch (IOException e) {
+                result.completeExceptionally(e);
+                Log.warn("[-] Failed to start download: " + e.getMessage());
+            }
+        });
+        return result;
+    }
+
+    public void sendDownload(String fileName) {
+        download(fileName);
+    }
+
+    public CompletableFuture<JsonProtocol> upload(String filePath) {
+        File file = new File(filePath);
+        CompletableFuture<JsonProtocol> result = new CompletableFuture<>();
+        execute(() -> {
+            if (uploadResults.putIfAbsent(file.getName(), result) != null) {
+                result.completeExceptionally(new IOException("Upload already in progress: " + file.getName()));
+                return;
+            }
+
+            if (file.length() > CHUNK_SIZE) {
+                if (!remoteFiles.contains(file.getName())) {
+                    sendUploadDeduplicated(file.toPath());
+                }
+                else if (deltaUploads.putIfAbsent(file.getName(), file.toPath()) == null) {
+                    sendDeltaSignatures(file.getName());
+                }
+                return;
+            }
+
+            throttle(() -> loadUpload(file));
+        });
+        return result;
+    }
+
+    private void loadUpload(File file) {
+        long size = file.length();
+        loadingBytes += size;
+        updateBlocked();
+        Thread.ofVirtual().start(() -> {
+            try {
+                byte[] data = Files.readAllBytes(file.toPath());
+                JsonProtocol json = new JsonProtocol();
+                json.operation = Operation.UPLOAD;
+                json.fileName = file.getName();
+                json.size = data.length;
+                json.crc = Checksum.of(data);
+                byte[] payload = compress(json, data);
+                execute(() -> {
+                    loadingBytes -= size;
+                    send(json, payload);
+                });
+            }
+            catch (IOException e) {
+                execute(() -> {
+                    loadingBytes -= size;
+                    updateBlocked();
+                    failUpload(file.getName(), e);
+                });
+            }
+        });
+    }
+
+    public void sendUpload(String filePath) {
+        upload(filePath);
+    }
+
+    public CompletableFuture<Map<String, String>> uploadAll(List<Path> files) {
+        Map<String, CompletableFuture<String>> results = new LinkedHashMap<>();
+        Map<String, Path> batch = new LinkedHashMap<>();
+        long bytes = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long size;
+            try {
+                size = Files.size(file);
+            }
+            catch (IOException e) {
+                results.put(name, CompletableFuture.completedFuture("I/O error: " + e.getMessage()));
+                continue;
+            }
+            if (size > BATCH_FILE_SIZE) {
+                results.put(name, outcome(upload(file.toString())));
+                continue;
+            }
+            if (batch.size() == BATCH_FILES || bytes + size > BATCH_BYTES) {
+                sendBatch(batch, bytes, results);
+                batch = new LinkedHashMap<>();
+                bytes = 0;
+            }
+            batch.put(name, file);
+            bytes += size;
+        }
+        if (!batch.isEmpty()) {
+            sendBatch(batch, bytes, results);
+        }
+        return collect(results);
+    }
+
+    public void sendUploads(List<Path> files) {
+        uploadAll(files).thenAccept(results -> report("Upload", results));
+    }
+
+    private void sendBatch(Map<String, Path> batch, long bytes, Map<String, CompletableFuture<String>> results) {
+        Map<String, CompletableFuture<String>> items = new LinkedHashMap<>();
+        for (String name : batch.keySet()) {
+            CompletableFuture<String> item = new CompletableFuture<>();
+            items.put(name, item);
+            results.put(name, item);
+        }
+        execute(() -> throttle(() -> loadBatch(batch, bytes, items)));
+    }
+
+    private void loadBatch(Map<String, Path> batch, long bytes, Map<String, CompletableFuture<String>> items) {
+        loadingBytes += bytes;
+        updateBlocked();
+        Thread.ofVirtual().start(() -> {
+            JsonProtocol json = new JsonProtocol();
+            json.operation = Operation.BATCH_UPLOAD;
+            json.files = new ArrayList<>();
+            json.sizes = new ArrayList<>();
+            ByteArrayOutputStream packed = new ByteArrayOutputStream((int) bytes);
+            batch.forEach((name, path) -> {
+                try {
+                    byte[] data = Files.readAllBytes(path);
+                    packed.write(data, 0, data.length);
+                    json.files.add(name);
+                    json.sizes.add((long) data.length);
+                }
+                catch (IOException e) {
+                    items.get(name).complete("I/O error: " + e.getMessage());
+                }
+            });
+            byte[] data = packed.toByteArray();
+            json.crc = Checksum.of(data);
+            byte[] payload = compress(json, data);
+            execute(() -> {
+                loadingBytes -= bytes;
+                updateBlocked();
+                if (json.files.isEmpty()) {
+                    return;
+                }
+                request(json, payload).whenComplete((reply, error) -> {
+                    for (int i = 0; i < json.files.size(); i++) {
+                        items.get(json.files.get(i)).complete(error != null ? describe(error) : reply.results.get(i));
+                    }
+                });
+            });
+        });
+    }
+
+    public CompletableFuture<Map<String, String>> downloadAll(List<String> fileNames) {
+        return downloadAll(fileNames, Path.of(pathStorage));
+    }
+
+    public CompletableFuture<Map<String, String>> downloadAll(List<String> fileNames, Path directory) {
+        Map<String, CompletableFuture<String>> results = new LinkedHashMap<>();
+        for (int from = 0; from < fileNames.size(); from += BATCH_FILES) {
+            List<String> names = fileNames.subList(from, Math.min(fileNames.size(), from + BATCH_FILES));
+            Map<String, CompletableFuture<String>> items = new LinkedHashMap<>();
+            for (String name : names) {
+                CompletableFuture<String> item = new CompletableFuture<>();
+                items.put(name, item);
+                results.put(name, item);
+            }
+
+            JsonProtocol json = new JsonProtocol();
+            json.operation = Operation.BATCH_DOWNLOAD;
+            json.files = new ArrayList<>(names);
+            json.encoding = Compression.DEFLATE;
+            byte[][] payload = new byte[1][];
+            request(json, null, (reply, data) -> {
+                payload[0] = new byte[data.remaining()];
+                data.get(payload[0]);
+            }).whenComplete((reply, error) -> {
+                if (error != null) {
+                    items.values().forEach(item -> item.complete(describe(error)));
+                    return;
+                }
+                Thread.ofVirtual().start(() -> saveBatch(reply, payload[0], directory, items));
+            });
+        }
+        return collect(results);
+    }
+
+    public void sendDownloads(List<String> fileNames) {
+        downloadAll(fileNames).thenAccept(results -> report("Download", results));
+    }
+
+    private void saveBatch(JsonProtocol reply, byte[] data, Path directory, Map<String, CompletableFuture<String>> items) {
+        if (data == null) {
+            data = new byte[0];
+        }
+        if (Checksum.isKnown(reply.crc) && Checksum.of(data) != reply.crc) {
+            items.values().forEach(item -> item.complete("Checksum mismatch"));
+            return;
+        }
+
+        int offset = 0;
+        for (int i = 0; i < reply.files.size(); i++) {
+            String name = reply.files.get(i);
+            String result = reply.results.get(i);
+            int size = reply.sizes.get(i).intValue();
+            CompletableFuture<String> item = items.get(name);
+            if ("SKIPPED".equals(result)) {
+                outcome(download(name, directory)).thenAccept(item::complete);
+                continue;
+            }
+            if ("OK".equals(result)) {
+                result = save(directory, name, data, offset, size);
+            }
+            offset += size;
+            item.complete(result);
+        }
+    }
+
+    private static String save(Path directory, String name, byte[] data, int offset, int size) {
+        Path part = directory.resolve(name + ".part");
+        try {
+            Files.createDirectories(directory);
+            try (OutputStream out = Files.newOutputStream(part)) {
+                out.write(data, offset, size);
+            }
+            try {
+                Files.move(part, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(part, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return "OK";
+        }
+        catch (IOException e) {
+            return "I/O error: " + e.getMessage();
+        }
+    }
+
+    public CompletableFuture<Map<String, String>> deleteAll(List<String> fileNames) {
+        Map<String, CompletableFuture<String>> results = new LinkedHashMap<>();
+        for (int from = 0; from < fileNames.size(); from += BATCH_FILES) {
+            List<String> names = new ArrayList<>(fileNames.subList(from, Math.min(fileNames.size(), from + BATCH_FILES)));
+            JsonProtocol json = new JsonProtocol();
+            json.operation = Operation.BATCH_DELETE;
+            json.files = names;
+            CompletableFuture<JsonProtocol> reply = request(json);
+            for (int i = 0; i < names.size(); i++) {
+                int index = i;
+                results.put(names.get(i), reply.handle((done, error) -> error != null ? describe(error)
+                        : done.results.get(index)));
+            }
+        }
+        return collect(results);
+    }
+
+    public void sendDeletes(List<String> fileNames) {
+        deleteAll(fileNames).thenAccept(results -> report("Delete", results));
+    }
+
+    private static CompletableFuture<String> outcome(CompletableFuture<?> transfer) {
+        return transfer.handle((done, error) -> error != null ? describe(error) : "OK");
+    }
+
+    private static CompletableFuture<Map<String, String>> collect(Map<String, CompletableFuture<String>> results) {
+        return CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, String> collected = new LinkedHashMap<>();
+            results.forEach((name, result) -> collected.put(name, result.join()));
+            return collected;
+        });
+    }
+
+    private static String describe(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause.getMessage();
+    }
+
+    private static void report(String action, Map<String, String> results) {
+        long done = results.values().stream().filter("OK"::equals).count();
+        Log.info("[✓] " + action + ": " + done + " of " + results.size() + " files");
+        results.forEach((name, result) -> {
+            if (!"OK".equals(result)) {
+                Log.warn("[-] " + name + ": " + result);
+            }
+        });
+    }
+
+    public void sendUploadChunked(String filePath) {
+        execute(() -> {
+            File file = new File(filePath);
+            if (uploads.containsKey(file.getName())) {
+                return;
+            }
+            UploadTransfer upload = new UploadTransfer(file.toPath(), file.length());
+            uploads.put(upload.fileName, upload);
+            sendUploadBegin(upload);
+        });
+    }
+
+    private void finishUpload(String fileName, JsonProtocol reply) {
+        if (!"OK".equals(reply.status)) {
+            failUpload(fileName, new IOException(reply.message));
+            return;
+        }
+        CompletableFuture<JsonProtocol> result = uploadResults.remove(fileName);
+        if (result != null) {
+            result.complete(reply);
+        }
+    }
+
+    private void failUpload(String fileName, IOException error) {
+        CompletableFuture<JsonProtocol> result = uploadResults.remove(fileName);
+        if (result != null) {
+            result.completeExceptionally(error);
+        }
+    }
+
+    private void sendUploadDeduplicated(Path path) {
+        Thread.ofVirtual().start(() -> {
+            try {
+                long size = Files.size(path);
+                List<Chunker.Chunk> chunks = Chunker.split(path);
+                DedupUpload upload = new DedupUpload(path, size, chunks);
+                execute(() -> {
+                    if (dedupUploads.putIfAbsent(upload.fileName, upload) == null) {
+                        sendBlockQuery(upload);
+                    }
+                });
+            }
+            catch (IOException e) {
+                execute(() -> failUpload(path.getFileName().toString(), e));
+                Log.warn("[-] Failed to read file: " + e.getMessage());
+            }
+        });
+    }
+
+    private void sendDeltaSignatures(String fileName) {
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.DELTA_SIGNATURES;
+        json.fileName = fileName;
+        send(json, null);
+    }
+
+    private void sendDelta(Path path, byte[] signatures, int blockSize) {
+        Thread.ofVirtual().start(() -> {
+            try {
+                long size = Files.size(path);
+                Delta.Encoded delta = Delta.encode(path, signatures, blockSize, (int) Math.min(size / 2, 64L * 1024 * 1024));
+                execute(() -> {
+                    String fileName = path.getFileName().toString();
+                    if (delta == null) {
+                        deltaUploads.remove(fileName);
+                        sendUploadDeduplicated(path);
+                        return;
+                    }
+
+                    JsonProtocol json = new JsonProtocol();
+                    json.operation = Operation.DELTA_APPLY;
+                    json.fileName = fileName;
+                    json.size = size;
+                    json.length = blockSize;
+                    json.hash = HexFormat.of().formatHex(delta.hash());
+                    json.crc = Checksum.of(delta.instructions());
+                    Log.debug(() -> "[*] " + fileName + ": sending " + delta.instructions().length + " byte delta");
+                    send(json, delta.instructions());
+                });
+            }
+            catch (IOException e) {
+                execute(() -> {
+                    deltaUploads.remove(path.getFileName().toString());
+                    failUpload(path.getFileName().toString(), e);
+                });
+                Log.warn("[-] Failed to read file: " + e.getMessage());
+            }
+        });
+    }
+
+    private void sendBlockQuery(DedupUpload upload) {
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.BLOCK_QUERY;
+        json.fileName = upload.fileName;
+        json.hashes = new ArrayList<>(upload.byHash.keySet());
+        send(json, null);
+    }
+
+    private void sendBlocks(DedupUpload upload) {
+        while (upload.inFlight < CHUNK_WINDOW && !upload.toSend.isEmpty()) {
+            Chunker.Chunk chunk = upload.toSend.poll();
+            upload.inFlight++;
+            long current = connection;
+            Thread.ofVirtual().start(() -> {
+                try {
+                    JsonProtocol json = new JsonProtocol();
+                    json.operation = Operation.BLOCK_PUT;
+                    json.fileName = upload.fileName;
+                    json.hash = chunk.hash();
+                    byte[] data = upload.read(chunk);
+                    json.crc = Checksum.of(data);
+                    byte[] payload = compress(json, data);
+                    execute(() -> {
+                        if (current == connection && dedupUploads.get(upload.fileName) == upload) {
+                            send(json, payload);
+                        }
+                    });
+                }
+                catch (IOException e) {
+                    execute(() -> {
+                        if (dedupUploads.remove(upload.fileName, upload)) {
+                            failUpload(upload.fileName, e);
+                            Log.warn("[-] Failed to read file: " + e.getMessage());
+                        }
+                    });
+                }
+            });
+        }
+
+        if (upload.isComplete()) {
+            JsonProtocol json = new JsonProtocol();
+            json.operation = Operation.MANIFEST_COMMIT;
+            json.fileName = upload.fileName;
+            json.size = upload.size;
+            json.hashes = upload.hashes();
+            send(json, null);
+        }
+    }
+
+    private static byte[] compress(JsonProtocol json, byte[] data) {
+        if (!Compression.worthCompressing(data, 0, data.length)) {
+            return data;
+        }
+        byte[] packed = Compression.deflate(data, 0, data.length);
+        if (packed == null) {
+            return data;
+        }
+        json.encoding = Compression.DEFLATE;
+        json.length = data.length;
+        return packed;
+    }
+
+    private void sendUploadBegin(UploadTransfer upload) {
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.UPLOAD_BEGIN;
+        json.fileName = upload.fileName;
+        json.size = upload.size;
+        send(json, null);
+    }
+
+    private void sendChunks(UploadTransfer upload) {
+        try {
+            while (upload.inFlight < CHUNK_WINDOW && upload.hasMore()) {
+                byte[] chunk = upload.readChunk(CHUNK_SIZE);
+                JsonProtocol json = new JsonProtocol();
+                json.operation = Operation.UPLOAD_CHUNK;
+                json.fileName = upload.fileName;
+                json.offset = upload.nextOffset;
+                json.length = chunk.length;
+                json.crc = Checksum.of(chunk);
+                upload.checksum.add(json.offset, chunk);
+                send(json, chunk);
+                upload.nextOffset += chunk.length;
+                upload.inFlight++;
+            }
+        }
+        catch (IOException e) {
+            uploads.remove(upload.fileName);
+            failUpload(upload.fileName, e);
+            Log.warn("[-] Failed to read file: " + e.getMessage());
+            return;
+        }
+
+        if (upload.isComplete()) {
+            JsonProtocol json = new JsonProtocol();
+            json.operation = Operation.UPLOAD_COMMIT;
+            json.fileName = upload.fileName;
+            json.size = upload.size;
+            json.crc = upload.checksum.value(upload.size);
+            send(json, null);
+        }
+    }
+
+    private void requestRanges(DownloadTransfer download) {
+        while (download.inFlight < CHUNK_WINDOW && download.hasMore()) {
+            JsonProtocol json = new JsonProtocol();
+            json.operation = Operation.DOWNLOAD;
+            json.fileName = download.fileName;
+            json.offset = download.nextOffset;
+            json.length = CHUNK_SIZE;
+            json.encoding = Compression.DEFLATE;
+            send(json, null);
+            download.nextOffset += CHUNK_SIZE;
+            download.inFlight++;
+        }
+    }
+
+    public void setListCallback(Consumer<List<String>> callback) {
+        this.listCallback = callback;
+    }
+
+    public void setListChangeCallback(BiConsumer<List<String>, List<String>> callback) {
+        this.listChangeCallback = callback;
+    }
+
+    interface RangeWriter {
+        void write(JsonProtocol reply, ByteBuffer data) throws IOException;
+    }
+
+    private record Outgoing(ByteBuffer buffer, boolean pooled) {}
+}
@@ -0,0 +1,70 @@
+package Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import Protocol.Chunker;
+
+class DedupUpload {
+    final String fileName;
+    final Path path;
+    final long size;
+    final List<Chunker.Chunk> chunks;
+    final Map<String, Chunker.Chunk> byHash = new HashMap<>();
+    final Queue<Chunker.Chunk> toSend = new ArrayDeque<>();
+    int inFlight;
+
+    DedupUpload(Path path, long size, List<Chunker.Chunk> chunks) {
+        this.fileName = path.getFileName().toString();
+        this.path = path;
+        this.size = size;
+        this.chunks = chunks;
+        for (Chunker.Chunk chunk : chunks) {
+            byHash.putIfAbsent(chunk.hash(), chunk);
+        }
+    }
+
+    List<String> hashes() {
+        List<String> hashes = new ArrayList<>(chunks.size());
+        for (Chunker.Chunk chunk : chunks) {
+            hashes.add(chunk.hash());
+        }
+        return hashes;
+    }
+
+    void restart(List<String> missing) {
+        toSend.clear();
+        inFlight = 0;
+        for (String hash : missing) {
+            Chunker.Chunk chunk = byHash.get(hash);
+            if (chunk != null) {
+                toSend.add(chunk);
+            }
+        }
+    }
+
+    boolean isComplete() {
+        return toSend.isEmpty() && inFlight == 0;
+    }
+
+    byte[] read(Chunker.Chunk chunk) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(chunk.length());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (data.hasRemaining()) {
+                if (channel.read(data, chunk.offset() + data.position()) == -1) {
+                    throw new IOException("File shrank during upload: " + path);
+                }
+            }
+        }
+        return data.array();
+    }
+}
@@ -0,0 +1,125 @@
+package Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import Protocol.Checksum;
+
+class DownloadTransfer {
+    static final String MARK_SUFFIX = ".part.received";
+
+    final String fileName;
+    final Path part;
+    final Path mark;
+    final Path target;
+    long size = -1;
+    long received;
+    long nextOffset;
+    int inFlight;
+    long expectedCrc = Checksum.NONE;
+    CompletableFuture<Path> result = new CompletableFuture<>();
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private final RangeChecksum checksum = new RangeChecksum();
+
+    DownloadTransfer(String fileName, Path directory) throws IOException {
+        this.fileName = fileName;
+        this.part = directory.resolve(fileName + ".part");
+        this.mark = directory.resolve(fileName + MARK_SUFFIX);
+        this.target = directory.resolve(fileName);
+        Files.createDirectories(directory);
+        restart();
+    }
+
+    void restart() throws IOException {
+        long held = Files.exists(part) ? Files.size(part) : 0;
+        received = Math.min(held, readMark());
+        if (held > received) {
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                channel.truncate(received);
+            }
+        }
+        nextOffset = received;
+        inFlight = 0;
+        ranges.clear();
+        checksum.clear();
+    }
+
+    boolean hasMore() {
+        return size < 0 ? inFlight == 0 : nextOffset < size;
+    }
+
+    void write(long offset, ByteBuffer data) throws IOException {
+        long start = offset;
+        checksum.add(offset, data);
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (offset == 0 && ranges.isEmpty()) {
+                channel.truncate(0);
+            }
+            while (data.hasRemaining()) {
+                offset += channel.write(data, offset);
+            }
+        }
+        if (offset <= received) {
+            return;
+        }
+        ranges.merge(start, offset, Math::max);
+
+        long before = received;
+        Map.Entry<Long, Long> range;
+        while ((range = ranges.firstEntry()) != null && range.getKey() <= received) {
+            ranges.pollFirstEntry();
+            received = Math.max(received, range.getValue());
+        }
+        if (received > before) {
+            Files.writeString(mark, Long.toString(received));
+        }
+    }
+
+    private long readMark() {
+        try {
+            return Long.parseLong(Files.readString(mark).trim());
+        }
+        catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    void discard() throws IOException {
+        Files.deleteIfExists(part);
+        Files.deleteIfExists(mark);
+    }
+
+    boolean isComplete() {
+        return size >= 0 && received == size;
+    }
+
+    void complete() throws IOException {
+        if (!Files.exists(part)) {
+            Files.createFile(part);
+        }
+        if (Checksum.isKnown(expectedCrc)) {
+            long actual = checksum.value(part, size);
+            if (actual != expectedCrc) {
+                discard();
+                throw new IOException("Checksum mismatch for " + fileName + ": expected "
+                        + Checksum.format(expectedCrc) + ", received " + Checksum.format(actual));
+            }
+        }
+        try {
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(mark);
+    }
+}
@@ -0,0 +1,528 @@
+package Client;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import Protocol.Checksum;
+import Protocol.Chunker;
+import Protocol.JsonProtocol;
+import Protocol.Log;
+import Protocol.Operation;
+
+public class FolderSync implements AutoCloseable {
+    private static final String STATE_FILE = ".sync-state";
+    private static final int STATE_MAGIC = 0x53594E31;
+    private static final long QUIET_MILLIS = 500;
+    private static final long MAX_DELAY_MILLIS = 5000;
+    private static final long REMOTE_INTERVAL_MILLIS = Long.getLong("dropbox.sync.interval", 10) * 1000;
+    private static final int MAX_TRANSFERS = 8;
+    private static final int LIST_PAGE = 1000;
+    private static final long LIST_TIMEOUT_SECONDS = 30;
+    private static final long UNKNOWN = -1;
+
+    record State(long size, long mtime, String hash, long remoteSize, long remoteMtime) {}
+
+    private record Local(long size, long mtime, String hash) {}
+
+    private record Remote(long size, long mtime) {}
+
+    private final Client client;
+    private final Path root;
+    private final Path statePath;
+    private final ForkJoinPool hashPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final Semaphore transfers = new Semaphore(MAX_TRANSFERS);
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+    private final AtomicInteger hashed = new AtomicInteger();
+    private WatchService watcher;
+    private Thread thread;
+    private volatile boolean running = true;
+
+    public FolderSync(Client client, Path root) {
+        this.client = client;
+        this.root = root.toAbsolutePath();
+        this.statePath = this.root.resolve(STATE_FILE);
+    }
+
+    public void start() throws IOException {
+        Files.createDirectories(root);
+        loadState();
+        watcher = root.getFileSystem().newWatchService();
+        root.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        thread = Thread.ofPlatform().daemon().name("folder-sync").start(this::run);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        try {
+            if (watcher != null) {
+                watcher.close();
+            }
+        }
+        catch (IOException ignored) {}
+        hashPool.shutdownNow();
+    }
+
+    private void run() {
+        Map<String, Local> locals = null;
+        Set<String> dirty = new HashSet<>();
+        while (running) {
+            try {
+                if (locals == null) {
+                    locals = scan();
+                }
+                else if (!dirty.isEmpty()) {
+                    rescan(locals, dirty);
+                }
+                dirty.clear();
+                reconcile(locals, listRemote());
+                saveState();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            catch (Exception e) {
+                Log.warn("[-] Sync pass failed: " + e.getMessage());
+            }
+
+            try {
+                if (awaitChanges(dirty)) {
+                    locals = null;
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    private boolean awaitChanges(Set<String> dirty) throws InterruptedException {
+        WatchKey key = watcher.poll(REMOTE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        boolean overflow = false;
+        long deadline = System.currentTimeMillis() + MAX_DELAY_MILLIS;
+        while (key != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                }
+                else if (event.context() instanceof Path name && !isIgnored(name.toString())) {
+                    dirty.add(name.toString());
+                }
+            }
+            if (!key.reset()) {
+                throw new ClosedWatchServiceException();
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                break;
+            }
+            key = watcher.poll(Math.min(QUIET_MILLIS, left), TimeUnit.MILLISECONDS);
+        }
+        return overflow;
+    }
+
+    private static boolean isIgnored(String name) {
+        return name.startsWith(STATE_FILE) || name.endsWith(".part")
+                || name.endsWith(DownloadTransfer.MARK_SUFFIX);
+    }
+
+    private Map<String, Local> scan() throws IOException, InterruptedException, ExecutionException {
+        long started = System.nanoTime();
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(root)) {
+            files = listing.filter(path -> !isIgnored(path.getFileName().toString()) && Files.isRegularFile(path))
+                    .toList();
+        }
+        hashed.set(0);
+        Map<String, Local> locals = new HashMap<>(inspectAll(files));
+        Log.info("[*] Scanned " + locals.size() + " files in " + root + ", hashed " + hashed.get() + " in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+        return locals;
+    }
+
+    private void rescan(Map<String, Local> locals, Collection<String> names)
+            throws InterruptedException, ExecutionException {
+        List<Path> files = new ArrayList<>();
+        for (String name : names) {
+            locals.remove(name);
+            files.add(root.resolve(name));
+        }
+        locals.putAll(inspectAll(files));
+    }
+
+    private Map<String, Local> inspectAll(List<Path> files) throws InterruptedException, ExecutionException {
+        return hashPool.submit(() -> files.parallelStream()
+                .map(this::inspect)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue))).get();
+    }
+
+    private Map.Entry<String, Local> inspect(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            long size = attributes.size();
+            long mtime = attributes.lastModifiedTime().toMillis();
+            State known = states.get(name);
+            if (known != null && known.size() == size && known.mtime() == mtime) {
+                return Map.entry(name, new Local(size, mtime, known.hash()));
+            }
+            hashed.incrementAndGet();
+            return Map.entry(name, new Local(size, mtime, hash(path)));
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+        catch (IOException e) {
+            Log.warn("[-] Skipping " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String hash(Path path) throws IOException {
+        MessageDigest digest = Chunker.sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static long crc(Path path) {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        catch (IOException e) {
+            return Checksum.NONE;
+        }
+        return Checksum.value(crc);
+    }
+
+    private Map<String, Remote> listRemote() throws InterruptedException, ExecutionException, TimeoutException {
+        Map<String, Remote> remotes = new HashMap<>();
+        String cursor = null;
+        do {
+            JsonProtocol json = new JsonProtocol();
+            json.operation = Operation.LIST;
+            json.cursor = cursor;
+            json.limit = LIST_PAGE;
+            JsonProtocol reply = client.request(json).get(LIST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            List<String> files = reply.files != null ? reply.files : List.of();
+            for (int i = 0; i < files.size(); i++) {
+                long size = reply.sizes != null ? reply.sizes.get(i) : UNKNOWN;
+                long mtime = reply.mtimes != null ? reply.mtimes.get(i) : UNKNOWN;
+                remotes.put(files.get(i), new Remote(size, mtime));
+            }
+            cursor = reply.cursor;
+        }
+        while (cursor != null);
+        return remotes;
+    }
+
+    private void reconcile(Map<String, Local> locals, Map<String, Remote> remotes) throws InterruptedException {
+        Set<String> names = new HashSet<>(locals.keySet());
+        names.addAll(remotes.keySet());
+        names.addAll(states.keySet());
+
+        Set<String> same = sameContent(locals, remotes);
+        long started = System.nanoTime();
+        int uploads = 0;
+        int downloads = 0;
+        int deletes = 0;
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        Map<String, Local> batched = new LinkedHashMap<>();
+        List<String> removals = new ArrayList<>();
+        for (String name : names) {
+            Local local = locals.get(name);
+            Remote remote = remotes.get(name);
+            State known = states.get(name);
+
+            if (known == null) {
+                if (same.contains(name)) {
+                    states.put(name, adopt(local, remote));
+                }
+                else if (local != null && (remote == null || local.mtime() >= remote.mtime())) {
+                    schedule(name, local, batched, pending);
+                    uploads++;
+                }
+                else if (remote != null) {
+                    pending.add(download(name, remote));
+                    downloads++;
+                }
+                continue;
+            }
+
+            boolean localChanged = local == null || !local.hash().equals(known.hash());
+            boolean remoteChanged = remote == null || remote.size() != known.remoteSize()
+                    || (known.remoteMtime() != UNKNOWN && remote.mtime() != known.remoteMtime());
+            if (!localChanged && !remoteChanged) {
+                if (local.mtime() != known.mtime() || known.remoteMtime() == UNKNOWN) {
+                    states.put(name, adopt(local, remote));
+                }
+            }
+            else if (local == null && remote == null) {
+                states.remove(name);
+            }
+            else if (localChanged && (!remoteChanged || remote == null
+                    || (local != null && local.mtime() >= remote.mtime()))) {
+                if (local != null) {
+                    schedule(name, local, batched, pending);
+                    uploads++;
+                }
+                else {
+                    removals.add(name);
+                    deletes++;
+                }
+            }
+            else if (remote != null) {
+                pending.add(download(name, remote));
+                downloads++;
+            }
+            else if (deleteLocal(name, local)) {
+                deletes++;
+            }
+        }
+
+        if (!batched.isEmpty()) {
+            pending.add(uploadBatch(batched));
+        }
+        if (!removals.isEmpty()) {
+            pending.add(deleteRemote(removals));
+        }
+        for (CompletableFuture<?> transfer : pending) {
+            try {
+                transfer.get();
+            }
+            catch (ExecutionException ignored) {}
+        }
+        if (uploads + downloads + deletes > 0) {
+            Log.info("[*] Sync: " + uploads + " uploads, " + downloads + " downloads, " + deletes
+                    + " deletes in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        }
+    }
+
+    private Set<String> sameContent(Map<String, Local> locals, Map<String, Remote> remotes)
+            throws InterruptedException {
+        Map<String, CompletableFuture<JsonProtocol>> checks = new HashMap<>();
+        for (Map.Entry<String, Local> entry : locals.entrySet()) {
+            Remote remote = remotes.get(entry.getKey());
+            if (!states.containsKey(entry.getKey()) && remote != null && remote.size() == entry.getValue().size()) {
+                checks.put(entry.getKey(), client.checksum(entry.getKey()));
+            }
+        }
+        if (checks.isEmpty()) {
+            return Set.of();
+        }
+
+        Map<String, Long> crcs;
+        try {
+            crcs = hashPool.submit(() -> checks.keySet().parallelStream()
+                    .collect(Collectors.toMap(name -> name, name -> crc(root.resolve(name))))).get();
+        }
+        catch (ExecutionException e) {
+            Log.warn("[-] Failed to checksum local files: " + e.getMessage());
+            return Set.of();
+        }
+
+        Set<String> same = new HashSet<>();
+        for (Map.Entry<String, CompletableFuture<JsonProtocol>> check : checks.entrySet()) {
+            String name = check.getKey();
+            try {
+                JsonProtocol reply = check.getValue().get(LIST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                long crc = crcs.get(name);
+                if ("OK".equals(reply.status) && Checksum.isKnown(crc) && reply.crc == crc) {
+                    same.add(name);
+                }
+            }
+            catch (ExecutionException | TimeoutException e) {
+                Log.warn("[-] Failed to compare " + name + " with the server: " + e.getMessage());
+            }
+        }
+        return same;
+    }
+
+    private static State adopt(Local local, Remote remote) {
+        return new State(local.size(), local.mtime(), local.hash(), remote.size(), remote.mtime());
+    }
+
+    private CompletableFuture<?> upload(String name, Local local) throws InterruptedException {
+        transfers.acquire();
+        return client.upload(root.resolve(name).toString()).whenComplete((reply, error) -> {
+            transfers.release();
+            if (error != null) {
+                Log.warn("[-] Sync upload of " + name + " failed: " + error.getMessage());
+                return;
+            }
+            states.put(name, new State(local.size(), local.mtime(), local.hash(), local.size(), UNKNOWN));
+        });
+    }
+
+    private void schedule(String name, Local local, Map<String, Local> batched, List<CompletableFuture<?>> pending)
+            throws InterruptedException {
+        if (local.size() <= Client.BATCH_FILE_SIZE) {
+            batched.put(name, local);
+        }
+        else {
+            pending.add(upload(name, local));
+        }
+    }
+
+    private CompletableFuture<?> uploadBatch(Map<String, Local> batched) {
+        List<Path> files = new ArrayList<>();
+        batched.keySet().forEach(name -> files.add(root.resolve(name)));
+        return client.uploadAll(files).thenAccept(results -> results.forEach((name, result) -> {
+            Local local = batched.get(name);
+            if (!"OK".equals(result)) {
+                Log.warn("[-] Sync upload of " + name + " failed: " + result);
+                return;
+            }
+            states.put(name, new State(local.size(), local.mtime(), local.hash(), local.size(), UNKNOWN));
+        }));
+    }
+
+    private CompletableFuture<?> download(String name, Remote remote) throws InterruptedException {
+        transfers.acquire();
+        return client.download(name, root)
+                .thenApplyAsync(this::inspect, hashPool)
+                .whenComplete((entry, error) -> {
+                    transfers.release();
+                    if (error != null) {
+                        Log.warn("[-] Sync download of " + name + " failed: " + error.getMessage());
+                        return;
+                    }
+                    if (entry != null) {
+                        Local local = entry.getValue();
+                        states.put(name, new State(local.size(), local.mtime(), local.hash(), remote.size(),
+                                remote.mtime()));
+                    }
+                });
+    }
+
+    private CompletableFuture<?> deleteRemote(List<String> names) {
+        return client.deleteAll(names).thenAccept(results -> results.forEach((name, result) -> {
+            if (!"OK".equals(result) && !"NOT_FOUND".equals(result)) {
+                Log.warn("[-] Sync delete of " + name + " failed: " + result);
+                return;
+            }
+            states.remove(name);
+        }));
+    }
+
+    private boolean deleteLocal(String name, Local local) {
+        Path path = root.resolve(name);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.size() != local.size() || attributes.lastModifiedTime().toMillis() != local.mtime()) {
+                return false;
+            }
+            Files.delete(path);
+        }
+        catch (NoSuchFileException ignored) {}
+        catch (IOException e) {
+            Log.warn("[-] Sync delete of " + name + " failed: " + e.getMessage());
+            return false;
+        }
+        states.remove(name);
+        return true;
+    }
+
+    private void loadState() {
+        if (!Files.exists(statePath)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(statePath))) {
+            if (in.readInt() != STATE_MAGIC) {
+                throw new IOException("unknown format");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                states.put(name, new State(in.readLong(), in.readLong(), in.readUTF(), in.readLong(), in.readLong()));
+            }
+        }
+        catch (EOFException e) {
+            states.clear();
+            Log.warn("[-] Sync state is truncated, rescanning everything");
+        }
+        catch (IOException e) {
+            states.clear();
+            Log.warn("[-] Failed to read sync state (" + e.getMessage() + "), rescanning everything");
+        }
+    }
+
+    private void saveState() throws IOException {
+        Path temp = root.resolve(STATE_FILE + ".tmp");
+        Map<String, State> snapshot = new HashMap<>(states);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, State> entry : snapshot.entrySet()) {
+                State state = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(state.size());
+                out.writeLong(state.mtime());
+                out.writeUTF(state.hash());
+                out.writeLong(state.remoteSize());
+                out.writeLong(state.remoteMtime());
+            }
+        }
+        try {
+            Files.move(temp, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, statePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32C;
+
+import Protocol.Checksum;
+import Protocol.Chunker;
+import Protocol.JsonProtocol;
+import Protocol.Operation;
+
+public class ParallelTransfer implements AutoCloseable {
+    private static final int RANGE_SIZE = 1024 * 1024;
+    private static final int RANGE_WINDOW = 4;
+
+    private final List<Client> lanes = new ArrayList<>();
+
+    private record Digest(String sha256, long crc) {}
+
+    public ParallelTransfer(String host, int port, int streams) {
+        if (streams < 1) {
+            throw new IllegalArgumentException("At least one stream is required");
+        }
+        for (int i = 0; i < streams; i++) {
+            Client lane = new Client(host, port, false);
+            Thread.ofPlatform().daemon().name("transfer-" + i).start(lane::start);
+            lanes.add(lane);
+        }
+    }
+
+    public int streams() {
+        return lanes.size();
+    }
+
+    public CompletableFuture<JsonProtocol> upload(Path file) {
+        String fileName = file.getFileName().toString();
+        FileChannel source;
+        long size;
+        try {
+            source = FileChannel.open(file, StandardOpenOption.READ);
+            size = source.size();
+        }
+        catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<Digest> hash = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                hash.complete(digest(source, size));
+            }
+            catch (IOException e) {
+                hash.completeExceptionally(e);
+            }
+        });
+
+        Queue<Long> ranges = new ConcurrentLinkedQueue<>();
+        for (long offset = 0; offset < size; offset += RANGE_SIZE) {
+            ranges.add(offset);
+        }
+
+        JsonProtocol begin = new JsonProtocol();
+        begin.operation = Operation.UPLOAD_RANGE_BEGIN;
+        begin.fileName = fileName;
+        begin.size = size;
+
+        CompletableFuture<JsonProtocol> result = lanes.get(0).request(begin)
+                .thenCompose(ignored -> {
+                    List<CompletableFuture<Void>> senders = new ArrayList<>();
+                    for (Client lane : lanes) {
+                        for (int i = 0; i < RANGE_WINDOW; i++) {
+                            senders.add(sendRanges(lane, source, fileName, size, ranges).whenComplete((done, error) -> {
+                                if (error != null) {
+                                    ranges.clear();
+                                }
+                            }));
+                        }
+                    }
+                    return CompletableFuture.allOf(senders.toArray(new CompletableFuture<?>[0]));
+                })
+                .thenCombine(hash, (ignored, digest) -> digest)
+                .thenCompose(digest -> {
+                    JsonProtocol commit = new JsonProtocol();
+                    commit.operation = Operation.UPLOAD_RANGE_COMMIT;
+                    commit.fileName = fileName;
+                    commit.size = size;
+                    commit.hash = digest.sha256();
+                    commit.crc = digest.crc();
+                    return lanes.get(0).request(commit);
+                });
+
+        return result.whenComplete((reply, error) -> {
+            try {
+                source.close();
+            }
+            catch (IOException ignored) {}
+        });
+    }
+
+    private CompletableFuture<Void> sendRanges(Client lane, FileChannel source, String fileName, long size,
+                                               Queue<Long> ranges) {
+        Long offset = ranges.poll();
+        if (offset == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        byte[] data = new byte[(int) Math.min(RANGE_SIZE, size - offset)];
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException(fileName + " shrank while it was being uploaded");
+                }
+            }
+        }
+        catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        JsonProtocol json = new JsonProtocol();
+        json.operation = Operation.UPLOAD_RANGE;
+        json.fileName = fileName;
+        json.offset = offset;
+        json.length = data.length;
+        json.crc = Checksum.of(data);
+        return lane.request(json, data).thenCompose(reply -> sendRanges(lane, source, fileName, size, ranges));
+    }
+
+    public CompletableFuture<Path> download(String fileName, Path directory) {
+        Path target = directory.resolve(fileName);
+        RangeFile part;
+        try {
+            Files.createDirectories(directory);
+            part = new RangeFile(directory.resolve(fileName + ".part"));
+        }
+        catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<Path> result = lanes.get(0).downloadRange(fileName, 0, RANGE_SIZE, part::write)
+                .thenCompose(first -> {
+                    try {
+                        part.preallocate(first.size);
+                    }
+                    catch (IOException e) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+
+                    Queue<Long> ranges = new ConcurrentLinkedQueue<>();
+                    for (long offset = RANGE_SIZE; offset < first.size; offset += RANGE_SIZE) {
+                        ranges.add(offset);
+                    }
+
+                    List<CompletableFuture<Void>> fetchers = new ArrayList<>();
+                    for (Client lane : lanes) {
+                        for (int i = 0; i < RANGE_WINDOW; i++) {
+                            fetchers.add(fetchRanges(lane, fileName, part, ranges).whenComplete((done, error) -> {
+                                if (error != null) {
+                                    ranges.clear();
+                                }
+                            }));
+                        }
+                    }
+                    return CompletableFuture.allOf(fetchers.toArray(new CompletableFuture<?>[0]))
+                            .thenCompose(ignored -> finishDownload(part, first.size, first.crc, target));
+                });
+
+        return result.whenComplete((path, error) -> {
+            part.close();
+            if (error != null) {
+                try {
+                    Files.deleteIfExists(part.path);
+                }
+                catch (IOException ignored) {}
+            }
+        });
+    }
+
+    private CompletableFuture<Void> fetchRanges(Client lane, String fileName, RangeFile part, Queue<Long> ranges) {
+        Long offset = ranges.poll();
+        if (offset == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return lane.downloadRange(fileName, offset, RANGE_SIZE, part::write)
+                .thenCompose(reply -> fetchRanges(lane, fileName, part, ranges));
+    }
+
+    private static CompletableFuture<Path> finishDownload(RangeFile part, long size, long crc, Path target) {
+        if (part.received() != size) {
+            return CompletableFuture.failedFuture(
+                    new IOException("Received " + part.received() + " of " + size + " bytes"));
+        }
+        part.close();
+        try {
+            long actual = Checksum.isKnown(crc) ? part.checksum(size) : crc;
+            if (actual != crc) {
+                throw new IOException("Checksum mismatch for " + target.getFileName() + ": expected "
+                        + Checksum.format(crc) + ", received " + Checksum.format(actual));
+            }
+            try {
+                Files.move(part.path, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(part.path, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return CompletableFuture.completedFuture(target);
+    }
+
+    private static Digest digest(FileChannel source, long size) throws IOException {
+        MessageDigest digest = Chunker.sha256();
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(RANGE_SIZE);
+        long position = 0;
+        while (position < size) {
+            int read = source.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File shrank while it was being hashed");
+            }
+            position += read;
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return new Digest(HexFormat.of().formatHex(digest.digest()), Checksum.value(crc));
+    }
+
+    @Override
+    public void close() {
+        for (Client lane : lanes) {
+            lane.close();
+        }
+    }
+}
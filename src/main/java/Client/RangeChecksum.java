@@ -0,0 +1,70 @@
+package Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import Protocol.Checksum;
+
+final class RangeChecksum {
+    private record Piece(long length, long crc) {}
+
+    private final TreeMap<Long, Piece> pieces = new TreeMap<>();
+
+    synchronized void add(long offset, ByteBuffer data) {
+        if (data.hasRemaining()) {
+            pieces.put(offset, new Piece(data.remaining(), Checksum.of(data)));
+        }
+    }
+
+    synchronized void add(long offset, byte[] data) {
+        if (data.length > 0) {
+            pieces.put(offset, new Piece(data.length, Checksum.of(data)));
+        }
+    }
+
+    synchronized void clear() {
+        pieces.clear();
+    }
+
+    synchronized long value(long size) {
+        long crc = Checksum.of(new byte[0]);
+        long position = 0;
+        for (Map.Entry<Long, Piece> entry : pieces.entrySet()) {
+            long offset = entry.getKey();
+            Piece piece = entry.getValue();
+            if (offset + piece.length() <= position) {
+                continue;
+            }
+            if (offset != position) {
+                return Checksum.NONE;
+            }
+            crc = Checksum.combine(crc, piece.crc(), piece.length());
+            position += piece.length();
+        }
+        return position == size ? crc : Checksum.NONE;
+    }
+
+    synchronized long value(Path path, long size) throws IOException {
+        long crc = value(size);
+        return Checksum.isKnown(crc) ? crc : of(path);
+    }
+
+    static long of(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return Checksum.value(crc);
+    }
+}
@@ -0,0 +1,57 @@
+package Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import Protocol.JsonProtocol;
+import Protocol.RangeSet;
+
+class RangeFile {
+    final Path path;
+    private final FileChannel channel;
+    private final RangeSet received = new RangeSet();
+    private final RangeChecksum checksum = new RangeChecksum();
+
+    RangeFile(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    void preallocate(long size) throws IOException {
+        if (size > channel.size()) {
+            channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+    }
+
+    void write(JsonProtocol reply, ByteBuffer data) throws IOException {
+        checksum.add(reply.offset, data);
+        long position = reply.offset;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        synchronized (received) {
+            received.add(reply.offset, position);
+        }
+    }
+
+    long received() {
+        synchronized (received) {
+            return received.covered();
+        }
+    }
+
+    long checksum(long size) throws IOException {
+        return checksum.value(path, size);
+    }
+
+    void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException ignored) {}
+    }
+}
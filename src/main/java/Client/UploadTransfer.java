@@ -0,0 +1,50 @@
+package Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+class UploadTransfer {
+    final String fileName;
+    final Path path;
+    final long size;
+    long nextOffset;
+    long acked;
+    int inFlight;
+    final RangeChecksum checksum = new RangeChecksum();
+
+    UploadTransfer(Path path, long size) {
+        this.fileName = path.getFileName().toString();
+        this.path = path;
+        this.size = size;
+    }
+
+    void restart(long offset) {
+        nextOffset = offset;
+        acked = offset;
+        inFlight = 0;
+    }
+
+    boolean hasMore() {
+        return nextOffset < size;
+    }
+
+    boolean isComplete() {
+        return acked == size && inFlight == 0;
+    }
+
+    byte[] readChunk(int maxLength) throws IOException {
+        int length = (int) Math.min(maxLength, size - nextOffset);
+        ByteBuffer chunk = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, nextOffset + chunk.position()) == -1) {
+                    throw new IOException("File shrank during upload: " + path);
+                }
+            }
+        }
+        return chunk.array();
+    }
+}
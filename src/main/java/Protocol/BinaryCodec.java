@@ -0,0 +1,380 @@
+package Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class BinaryCodec implements MetadataCodec {
+    private static final byte END = 0;
+    private static final byte OPERATION = 1;
+    private static final byte FILE_NAME = 2;
+    private static final byte SIZE = 3;
+    private static final byte OFFSET = 4;
+    private static final byte LENGTH = 5;
+    private static final byte STATUS = 6;
+    private static final byte MESSAGE = 7;
+    private static final byte FILES = 8;
+    private static final byte HASH = 9;
+    private static final byte HASHES = 10;
+    private static final byte CODEC = 11;
+    private static final byte CURSOR = 12;
+    private static final byte PREFIX = 13;
+    private static final byte LIMIT = 14;
+    private static final byte SEQ = 15;
+    private static final byte REMOVED = 16;
+    private static final byte ID = 17;
+    private static final byte ENCODING = 18;
+    private static final byte STATS = 19;
+    private static final byte SIZES = 20;
+    private static final byte MTIMES = 21;
+    private static final byte CRC = 22;
+    private static final byte RESULTS = 23;
+
+    @Override
+    public short magic() {
+        return ProtocolWriter.MAGIC_BINARY;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public ByteBuffer encode(JsonProtocol msg, int headroom, long tailroom, BufferPool pool) {
+        ByteBuffer buffer = BufferPool.allocate(pool, Math.toIntExact(headroom + sizeOf(msg) + tailroom));
+        buffer.position(headroom);
+        write(msg, buffer);
+        return buffer;
+    }
+
+    static int sizeOf(JsonProtocol msg) {
+        int size = 1;
+        if (msg.operation != null) {
+            size += 2;
+        }
+        size += stringSize(msg.fileName);
+        size += longSize(msg.size);
+        size += longSize(msg.offset);
+        size += longSize(msg.length);
+        size += stringSize(msg.status);
+        size += stringSize(msg.message);
+        size += listSize(msg.files);
+        size += stringSize(msg.hash);
+        size += listSize(msg.hashes);
+        size += stringSize(msg.codec);
+        size += stringSize(msg.cursor);
+        size += stringSize(msg.prefix);
+        size += longSize(msg.limit);
+        size += longSize(msg.seq);
+        size += listSize(msg.removed);
+        size += longSize(msg.id);
+        size += stringSize(msg.encoding);
+        size += mapSize(msg.stats);
+        size += longListSize(msg.sizes);
+        size += longListSize(msg.mtimes);
+        size += longSize(msg.crc);
+        size += listSize(msg.results);
+        return size;
+    }
+
+    static void write(JsonProtocol msg, ByteBuffer dst) {
+        if (msg.operation != null) {
+            dst.put(OPERATION);
+            dst.put(msg.operation.code);
+        }
+        putString(dst, FILE_NAME, msg.fileName);
+        putLong(dst, SIZE, msg.size);
+        putLong(dst, OFFSET, msg.offset);
+        putLong(dst, LENGTH, msg.length);
+        putString(dst, STATUS, msg.status);
+        putString(dst, MESSAGE, msg.message);
+        putList(dst, FILES, msg.files);
+        putString(dst, HASH, msg.hash);
+        putList(dst, HASHES, msg.hashes);
+        putString(dst, CODEC, msg.codec);
+        putString(dst, CURSOR, msg.cursor);
+        putString(dst, PREFIX, msg.prefix);
+        putLong(dst, LIMIT, msg.limit);
+        putLong(dst, SEQ, msg.seq);
+        putList(dst, REMOVED, msg.removed);
+        putLong(dst, ID, msg.id);
+        putString(dst, ENCODING, msg.encoding);
+        putMap(dst, STATS, msg.stats);
+        putLongList(dst, SIZES, msg.sizes);
+        putLongList(dst, MTIMES, msg.mtimes);
+        putLong(dst, CRC, msg.crc);
+        putList(dst, RESULTS, msg.results);
+        dst.put(END);
+    }
+
+    @Override
+    public JsonProtocol decode(ByteBuffer src) {
+        ByteBuffer in = src.duplicate();
+        JsonProtocol msg = new JsonProtocol();
+        while (true) {
+            byte tag = in.get();
+            switch (tag) {
+                case END -> {
+                    return msg;
+                }
+                case OPERATION -> msg.operation = Operation.fromCode(in.get());
+                case FILE_NAME -> msg.fileName = getString(in);
+                case SIZE -> msg.size = getVarLong(in);
+                case OFFSET -> msg.offset = getVarLong(in);
+                case LENGTH -> msg.length = getVarLong(in);
+                case STATUS -> msg.status = getString(in);
+                case MESSAGE -> msg.message = getString(in);
+                case FILES -> msg.files = getList(in);
+                case HASH -> msg.hash = getString(in);
+                case HASHES -> msg.hashes = getList(in);
+                case CODEC -> msg.codec = getString(in);
+                case CURSOR -> msg.cursor = getString(in);
+                case PREFIX -> msg.prefix = getString(in);
+                case LIMIT -> msg.limit = (int) getVarLong(in);
+                case SEQ -> msg.seq = getVarLong(in);
+                case REMOVED -> msg.removed = getList(in);
+                case ID -> msg.id = getVarLong(in);
+                case ENCODING -> msg.encoding = getString(in);
+                case STATS -> msg.stats = getMap(in);
+                case SIZES -> msg.sizes = getLongList(in);
+                case MTIMES -> msg.mtimes = getLongList(in);
+                case CRC -> msg.crc = getVarLong(in);
+                case RESULTS -> msg.results = getList(in);
+                default -> throw new IllegalArgumentException("Unknown metadata tag: " + tag);
+            }
+        }
+    }
+
+    private static int longSize(long value) {
+        return value == 0 ? 0 : 1 + varLongSize(value);
+    }
+
+    private static int stringSize(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = utf8Length(value);
+        return 1 + varLongSize(length) + length;
+    }
+
+    private static int listSize(List<String> values) {
+        if (values == null) {
+            return 0;
+        }
+        int size = 1 + varLongSize(values.size());
+        for (String value : values) {
+            int length = utf8Length(value);
+            size += varLongSize(length) + length;
+        }
+        return size;
+    }
+
+    private static void putLong(ByteBuffer dst, byte tag, long value) {
+        if (value != 0) {
+            dst.put(tag);
+            putVarLong(dst, value);
+        }
+    }
+
+    private static void putString(ByteBuffer dst, byte tag, String value) {
+        if (value != null) {
+            dst.put(tag);
+            putUtf8(dst, value);
+        }
+    }
+
+    private static void putList(ByteBuffer dst, byte tag, List<String> values) {
+        if (values == null) {
+            return;
+        }
+        dst.put(tag);
+        putVarLong(dst, values.size());
+        for (String value : values) {
+            putUtf8(dst, value);
+        }
+    }
+
+    private static int mapSize(Map<String, Long> values) {
+        if (values == null) {
+            return 0;
+        }
+        int size = 1 + varLongSize(values.size());
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            int length = utf8Length(entry.getKey());
+            size += varLongSize(length) + length + varLongSize(entry.getValue());
+        }
+        return size;
+    }
+
+    private static void putMap(ByteBuffer dst, byte tag, Map<String, Long> values) {
+        if (values == null) {
+            return;
+        }
+        dst.put(tag);
+        putVarLong(dst, values.size());
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            putUtf8(dst, entry.getKey());
+            putVarLong(dst, entry.getValue());
+        }
+    }
+
+    private static Map<String, Long> getMap(ByteBuffer in) {
+        int count = (int) getVarLong(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalArgumentException("Invalid map size: " + count);
+        }
+        Map<String, Long> values = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            values.put(getString(in), getVarLong(in));
+        }
+        return values;
+    }
+
+    private static int longListSize(List<Long> values) {
+        if (values == null) {
+            return 0;
+        }
+        int size = 1 + varLongSize(values.size());
+        for (long value : values) {
+            size += varLongSize(value);
+        }
+        return size;
+    }
+
+    private static void putLongList(ByteBuffer dst, byte tag, List<Long> values) {
+        if (values == null) {
+            return;
+        }
+        dst.put(tag);
+        putVarLong(dst, values.size());
+        for (long value : values) {
+            putVarLong(dst, value);
+        }
+    }
+
+    private static List<Long> getLongList(ByteBuffer in) {
+        int count = (int) getVarLong(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalArgumentException("Invalid list length: " + count);
+        }
+        List<Long> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(getVarLong(in));
+        }
+        return values;
+    }
+
+    private static List<String> getList(ByteBuffer in) {
+        int count = (int) getVarLong(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalArgumentException("Invalid list length: " + count);
+        }
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(getString(in));
+        }
+        return values;
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarLong(ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c)) {
+                length++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void putUtf8(ByteBuffer dst, String value) {
+        putVarLong(dst, utf8Length(value));
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            }
+            else if (c < 0x800) {
+                dst.put((byte) (0xC0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                dst.put((byte) (0xF0 | (codePoint >> 18)));
+                dst.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                dst.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (codePoint & 0x3F)));
+            }
+            else if (Character.isSurrogate(c)) {
+                dst.put((byte) '?');
+            }
+            else {
+                dst.put((byte) (0xE0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = (int) getVarLong(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        }
+        else {
+            value = StandardCharsets.UTF_8.decode(in.slice(in.position(), length)).toString();
+        }
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,105 @@
+package Protocol;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class BufferPool {
+    public static final boolean DEBUG = Boolean.getBoolean("dropbox.buffers.debug");
+
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 20;
+    private static final int RETAINED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<>(MAX_SHIFT - MIN_SHIFT + 1);
+    private final Map<ByteBuffer, Throwable> leases = DEBUG ? new IdentityHashMap<>() : null;
+    private volatile long hits;
+    private volatile long misses;
+    private volatile long outstanding;
+
+    public BufferPool() {
+        for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+            free.add(new ArrayDeque<>());
+        }
+    }
+
+    public static ByteBuffer allocate(BufferPool pool, int size) {
+        return pool != null ? pool.acquire(size) : ByteBuffer.allocate(size);
+    }
+
+    public ByteBuffer acquire(int size) {
+        int index = classOf(size);
+        ByteBuffer buffer = index >= 0 ? free.get(index).pollLast() : null;
+        if (buffer != null) {
+            hits++;
+            buffer.clear().order(ByteOrder.BIG_ENDIAN);
+        }
+        else {
+            misses++;
+            buffer = index >= 0 ? ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT)) : ByteBuffer.allocate(size);
+        }
+        buffer.limit(size);
+        outstanding++;
+        if (leases != null) {
+            leases.put(buffer, new Throwable("Buffer of " + size + " bytes acquired on " + Thread.currentThread().getName()));
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (leases != null && leases.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not from this pool");
+        }
+        outstanding--;
+
+        int index = buffer.isDirect() ? classOf(buffer.capacity()) : -1;
+        if (index >= 0 && buffer.capacity() == 1 << (index + MIN_SHIFT)
+                && free.get(index).size() < Math.max(4, RETAINED_BYTES_PER_CLASS >> (index + MIN_SHIFT))) {
+            free.get(index).addLast(buffer);
+        }
+    }
+
+    public int reportLeaks(String owner) {
+        if (leases == null || leases.isEmpty()) {
+            return 0;
+        }
+        Log.warn("[-] " + owner + " leaked " + leases.size() + " buffers");
+        for (Throwable trace : leases.values()) {
+            StringWriter text = new StringWriter();
+            trace.printStackTrace(new PrintWriter(text));
+            Log.warn(text.toString().stripTrailing());
+        }
+        return leases.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getOutstanding() {
+        return outstanding;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + " misses=" + misses + " outstanding=" + outstanding;
+    }
+
+    private static int classOf(int size) {
+        if (size > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        return shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,91 @@
+package Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+public final class Checksum {
+    public static final long NONE = 0;
+
+    private static final long PRESENT = 1L << 32;
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private Checksum() {}
+
+    public static long value(CRC32C crc) {
+        return PRESENT | crc.getValue();
+    }
+
+    public static long of(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return value(crc);
+    }
+
+    public static long of(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return value(crc);
+    }
+
+    public static boolean isKnown(long checksum) {
+        return checksum != NONE;
+    }
+
+    public static String format(long checksum) {
+        return isKnown(checksum) ? String.format("%08x", checksum & 0xFFFFFFFFL) : "none";
+    }
+
+    public static long combine(long first, long second, long secondLength) {
+        long crc = combineRaw(first & 0xFFFFFFFFL, second & 0xFFFFFFFFL, secondLength);
+        return PRESENT | crc;
+    }
+
+    private static long combineRaw(long crc1, long crc2, long length) {
+        if (length <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = POLYNOMIAL & 0xFFFFFFFFL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+        do {
+            square(even, odd);
+            if ((length & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length >>>= 1;
+            if (length == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length >>>= 1;
+        }
+        while (length != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
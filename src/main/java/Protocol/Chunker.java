@@ -0,0 +1,73 @@
+package Protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+
+public final class Chunker {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+    private static final long MASK = (1L << 16) - 1;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6765617268617368L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public record Chunk(long offset, int length, String hash) {}
+
+    private Chunker() {}
+
+    public static List<Chunk> split(Path file) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        long offset = 0;
+        int length = 0;
+        long hash = 0;
+
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                    length++;
+                    if ((length >= MIN_SIZE && (hash & MASK) == 0) || length == MAX_SIZE) {
+                        digest.update(buffer, start, i + 1 - start);
+                        chunks.add(new Chunk(offset, length, HexFormat.of().formatHex(digest.digest())));
+                        offset += length;
+                        length = 0;
+                        hash = 0;
+                        start = i + 1;
+                    }
+                }
+                digest.update(buffer, start, read - start);
+            }
+        }
+
+        if (length > 0) {
+            chunks.add(new Chunk(offset, length, HexFormat.of().formatHex(digest.digest())));
+        }
+        return chunks;
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class Compression {
+    public static final String DEFLATE = "deflate";
+    public static final int MIN_SIZE = 1024;
+    public static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int SAMPLES = 4;
+    private static final double MAX_RATIO = 0.9;
+
+    public interface Sink {
+        void write(ByteBuffer data) throws IOException;
+    }
+
+    private Compression() {}
+
+    public static boolean isSupported(String encoding) {
+        return encoding == null || DEFLATE.equals(encoding);
+    }
+
+    public static boolean worthCompressing(byte[] data, int offset, int length) {
+        if (length < MIN_SIZE) {
+            return false;
+        }
+
+        int sampleLength = Math.min(length, SAMPLE_SIZE / SAMPLES);
+        byte[] out = new byte[sampleLength + 64];
+        long packed = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int i = 0; i < SAMPLES; i++) {
+                int start = offset + (int) ((long) (length - sampleLength) * i / (SAMPLES - 1));
+                deflater.reset();
+                deflater.setInput(data, start, sampleLength);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    packed += deflater.deflate(out);
+                }
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        return packed < (long) sampleLength * SAMPLES * MAX_RATIO;
+    }
+
+    public static byte[] deflate(byte[] data, int offset, int length) {
+        byte[] out = new byte[(int) (length * MAX_RATIO)];
+        int size = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    return null;
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    public static byte[] inflate(byte[] data, int length) throws IOException {
+        byte[] out = new byte[length];
+        int[] size = {0};
+        Inflater inflater = new Inflater();
+        try {
+            inflate(inflater, ByteBuffer.wrap(data), new byte[Math.max(1, Math.min(length, 64 * 1024))], chunk -> {
+                int count = chunk.remaining();
+                chunk.get(out, size[0], count);
+                size[0] += count;
+            }, length);
+            if (!inflater.finished()) {
+                throw new IOException("Truncated compressed payload");
+            }
+        }
+        finally {
+            inflater.end();
+        }
+        if (size[0] != length) {
+            throw new IOException("Inflated " + size[0] + " bytes, expected " + length);
+        }
+        return out;
+    }
+
+    public static long inflate(Inflater inflater, ByteBuffer input, byte[] scratch, Sink sink, long limit)
+            throws IOException {
+        inflater.setInput(input);
+        long total = 0;
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(scratch);
+                if (count == 0) {
+                    if (inflater.needsInput()) {
+                        break;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("Compressed payload needs a preset dictionary");
+                    }
+                    continue;
+                }
+                total += count;
+                if (total > limit) {
+                    throw new IOException("Payload inflates past the declared size");
+                }
+                sink.write(ByteBuffer.wrap(scratch, 0, count));
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload: " + e.getMessage());
+        }
+        return total;
+    }
+}
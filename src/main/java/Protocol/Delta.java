@@ -0,0 +1,256 @@
+package Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class Delta {
+    public static final int SIGNATURE_SIZE = 20;
+    private static final int STRONG_SIZE = 16;
+    private static final byte COPY = 0;
+    private static final byte LITERAL = 1;
+
+    public interface Source {
+        int read(ByteBuffer dst, long position) throws IOException;
+    }
+
+    public record Encoded(byte[] instructions, byte[] hash) {}
+
+    private Delta() {}
+
+    public static int blockSizeFor(long size) {
+        long root = (long) Math.sqrt((double) size);
+        long rounded = (root + 1023) & ~1023L;
+        return (int) Math.max(2048, Math.min(64 * 1024, rounded));
+    }
+
+    public static byte[] signatures(Source source, long size, int blockSize) throws IOException {
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        ByteBuffer out = ByteBuffer.allocate(blocks * SIGNATURE_SIZE);
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        MessageDigest digest = Chunker.sha256();
+
+        for (long position = 0; position < size; position += blockSize) {
+            block.clear();
+            block.limit((int) Math.min(blockSize, size - position));
+            readFully(source, block, position);
+            out.putInt(weak(block.array(), 0, block.limit()));
+            digest.update(block.array(), 0, block.limit());
+            out.put(digest.digest(), 0, STRONG_SIZE);
+        }
+        return out.array();
+    }
+
+    public static Encoded encode(Path file, byte[] signatures, int blockSize, int maxLength) throws IOException {
+        Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        ByteBuffer sigs = ByteBuffer.wrap(signatures);
+        for (int index = 0; sigs.remaining() >= SIGNATURE_SIZE; index++) {
+            byWeak.computeIfAbsent(sigs.getInt(), key -> new ArrayList<>()).add(index);
+            sigs.position(sigs.position() + STRONG_SIZE);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int length = data.limit();
+
+            MessageDigest whole = Chunker.sha256();
+            whole.update(data.duplicate());
+
+            Writer writer = new Writer(data, maxLength);
+            MessageDigest digest = Chunker.sha256();
+            byte[] window = new byte[blockSize];
+            int position = 0;
+            int literalStart = 0;
+            int[] sums = length >= blockSize ? sums(data, 0, blockSize) : null;
+
+            while (sums != null) {
+                List<Integer> candidates = byWeak.get(sums[0] & 0xFFFF | sums[1] << 16);
+                int match = -1;
+                if (candidates != null) {
+                    data.get(position, window);
+                    digest.update(window);
+                    byte[] strong = digest.digest();
+                    for (int index : candidates) {
+                        int at = index * SIGNATURE_SIZE + 4;
+                        if (Arrays.equals(strong, 0, STRONG_SIZE, signatures, at, at + STRONG_SIZE)) {
+                            match = index;
+                            break;
+                        }
+                    }
+                }
+
+                if (match >= 0) {
+                    if (!writer.literal(literalStart, position) || !writer.copy(match)) {
+                        return null;
+                    }
+                    position += blockSize;
+                    literalStart = position;
+                    sums = position + blockSize <= length ? sums(data, position, blockSize) : null;
+                    continue;
+                }
+
+                if (position + blockSize >= length) {
+                    break;
+                }
+                int out = data.get(position) & 0xFF;
+                int in = data.get(position + blockSize) & 0xFF;
+                sums[0] = (sums[0] - out + in) & 0xFFFF;
+                sums[1] = (sums[1] - blockSize * out + sums[0]) & 0xFFFF;
+                position++;
+            }
+
+            if (!writer.literal(literalStart, length)) {
+                return null;
+            }
+            return new Encoded(writer.finish(), whole.digest());
+        }
+    }
+
+    public static long apply(Source base, long baseSize, int blockSize, InputStream instructions, OutputStream out,
+                             MessageDigest digest) throws IOException {
+        DataInputStream in = new DataInputStream(instructions);
+        byte[] buffer = new byte[Math.max(blockSize, 64 * 1024)];
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        long written = 0;
+
+        while (true) {
+            int type = in.read();
+            if (type == -1) {
+                return written;
+            }
+
+            if (type == COPY) {
+                long position = (long) in.readInt() * blockSize;
+                long count = (long) in.readInt() * blockSize;
+                long end = Math.min(baseSize, position + count);
+                if (position < 0 || position >= end) {
+                    throw new IOException("Delta references a block outside the base file");
+                }
+                while (position < end) {
+                    view.clear();
+                    view.limit((int) Math.min(buffer.length, end - position));
+                    readFully(base, view, position);
+                    out.write(buffer, 0, view.limit());
+                    digest.update(buffer, 0, view.limit());
+                    position += view.limit();
+                    written += view.limit();
+                }
+            }
+            else if (type == LITERAL) {
+                int remaining = in.readInt();
+                while (remaining > 0) {
+                    int step = Math.min(buffer.length, remaining);
+                    in.readFully(buffer, 0, step);
+                    out.write(buffer, 0, step);
+                    digest.update(buffer, 0, step);
+                    remaining -= step;
+                    written += step;
+                }
+            }
+            else {
+                throw new IOException("Unknown delta instruction: " + type);
+            }
+        }
+    }
+
+    static int weak(byte[] data, int offset, int length) {
+        int[] sums = sums(ByteBuffer.wrap(data, offset, length).slice(), 0, length);
+        return sums[0] & 0xFFFF | sums[1] << 16;
+    }
+
+    private static int[] sums(ByteBuffer data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data.get(offset + i) & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        return new int[] { a & 0xFFFF, b & 0xFFFF };
+    }
+
+    private static void readFully(Source source, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = source.read(dst, position + dst.position());
+            if (read < 0) {
+                throw new EOFException("Base file ended early");
+            }
+        }
+        dst.flip();
+    }
+
+    private static final class Writer {
+        private final ByteBuffer data;
+        private final int maxLength;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int runStart = -1;
+        private int runLength = 0;
+
+        Writer(ByteBuffer data, int maxLength) {
+            this.data = data;
+            this.maxLength = maxLength;
+        }
+
+        boolean copy(int block) throws IOException {
+            if (runStart >= 0 && runStart + runLength == block) {
+                runLength++;
+                return true;
+            }
+            flushRun();
+            runStart = block;
+            runLength = 1;
+            return bytes.size() <= maxLength;
+        }
+
+        boolean literal(int from, int to) throws IOException {
+            if (from >= to) {
+                return true;
+            }
+            flushRun();
+            if (bytes.size() + (to - from) + 5 > maxLength) {
+                return false;
+            }
+            byte[] chunk = new byte[to - from];
+            data.get(from, chunk);
+            out.writeByte(LITERAL);
+            out.writeInt(chunk.length);
+            out.write(chunk);
+            return true;
+        }
+
+        byte[] finish() throws IOException {
+            flushRun();
+            return bytes.toByteArray();
+        }
+
+        private void flushRun() throws IOException {
+            if (runStart < 0) {
+                return;
+            }
+            out.writeByte(COPY);
+            out.writeInt(runStart);
+            out.writeInt(runLength);
+            runStart = -1;
+            runLength = 0;
+        }
+    }
+}
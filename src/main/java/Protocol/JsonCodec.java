@@ -0,0 +1,37 @@
+package Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+final class JsonCodec implements MetadataCodec {
+    @Override
+    public short magic() {
+        return ProtocolWriter.MAGIC;
+    }
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public ByteBuffer encode(JsonProtocol msg, int headroom, long tailroom, BufferPool pool) {
+        byte[] json = JsonProtocol.toJson(msg).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = BufferPool.allocate(pool, Math.toIntExact(headroom + json.length + tailroom));
+        buffer.position(headroom);
+        buffer.put(json);
+        return buffer;
+    }
+
+    @Override
+    public JsonProtocol decode(ByteBuffer src) {
+        String json;
+        if (src.hasArray()) {
+            json = new String(src.array(), src.arrayOffset() + src.position(), src.remaining(), StandardCharsets.UTF_8);
+        }
+        else {
+            json = StandardCharsets.UTF_8.decode(src.duplicate()).toString();
+        }
+        return JsonProtocol.fromJson(json);
+    }
+}
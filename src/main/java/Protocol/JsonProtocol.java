@@ -1,21 +1,41 @@
-package Protocol;
-
-import com.google.gson.Gson;
-import java.util.List;
-
-public class JsonProtocol {
-    public Operation operation;
-    public String fileName;
-    public long size;
-    public String status;
-    public String message;
-    public List<String> files;
-
-    public static String toJson(JsonProtocol msg) {
-        return new Gson().toJson(msg);
-    }
-
-    public static JsonProtocol fromJson(String json) {
-        return new Gson().fromJson(json, JsonProtocol.class);
-    }
-}
\ No newline at end of file
+package Protocol;
+
+import com.google.gson.Gson;
+import java.util.List;
+import java.util.Map;
+
+public class JsonProtocol {
+    private static final Gson GSON = new Gson();
+
+    public long id;
+    public Operation operation;
+    public String fileName;
+    public long size;
+    public long offset;
+    public long length;
+    public String status;
+    public String message;
+    public List<String> files;
+    public String hash;
+    public List<String> hashes;
+    public String codec;
+    public String cursor;
+    public String prefix;
+    public int limit;
+    public long seq;
+    public List<String> removed;
+    public String encoding;
+    public Map<String, Long> stats;
+    public List<Long> sizes;
+    public List<Long> mtimes;
+    public long crc;
+    public List<String> results;
+
+    public static String toJson(JsonProtocol msg) {
+        return GSON.toJson(msg);
+    }
+
+    public static JsonProtocol fromJson(String json) {
+        return GSON.fromJson(json, JsonProtocol.class);
+    }
+}
@@ -0,0 +1,125 @@
+package Protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+public final class Log {
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        OFF
+    }
+
+    private static final String CONFIGURED = System.getProperty("dropbox.log", "info");
+    public static final Level LEVEL = parse(CONFIGURED);
+    public static final boolean DEBUG = LEVEL == Level.DEBUG;
+
+    private static final int CAPACITY = 8192;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false, StandardCharsets.UTF_8);
+
+    static {
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+        if (!LEVEL.name().equalsIgnoreCase(CONFIGURED.trim())) {
+            warn("[-] Unknown log level '" + CONFIGURED + "', using " + LEVEL);
+        }
+    }
+
+    private Log() {}
+
+    private static Level parse(String level) {
+        try {
+            return Level.valueOf(level.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public static void debug(String message) {
+        if (DEBUG) {
+            enqueue(message);
+        }
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (DEBUG) {
+            enqueue(message.get());
+        }
+    }
+
+    public static void info(String message) {
+        if (LEVEL.compareTo(Level.INFO) <= 0) {
+            enqueue(message);
+        }
+    }
+
+    public static void warn(String message) {
+        if (LEVEL.compareTo(Level.WARN) <= 0) {
+            enqueue(message);
+        }
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    private static void enqueue(String message) {
+        if (!queue.offer(message)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void drain() {
+        List<String> batch = new ArrayList<>();
+        long reported = 0;
+        while (true) {
+            try {
+                batch.add(queue.take());
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            synchronized (out) {
+                for (String message : batch) {
+                    out.println(message);
+                }
+                long lost = dropped.get();
+                if (lost != reported) {
+                    out.println("[-] Log queue full, dropped " + (lost - reported) + " messages");
+                    reported = lost;
+                }
+                out.flush();
+            }
+            batch.clear();
+        }
+    }
+
+    private static void flush() {
+        List<String> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        synchronized (out) {
+            for (String message : batch) {
+                out.println(message);
+            }
+            out.flush();
+        }
+    }
+}
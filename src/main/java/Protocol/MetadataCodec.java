@@ -0,0 +1,34 @@
+package Protocol;
+
+import java.nio.ByteBuffer;
+
+public interface MetadataCodec {
+    MetadataCodec JSON = new JsonCodec();
+    MetadataCodec BINARY = new BinaryCodec();
+
+    short magic();
+
+    String name();
+
+    ByteBuffer encode(JsonProtocol msg, int headroom, long tailroom, BufferPool pool);
+
+    default ByteBuffer encode(JsonProtocol msg, int headroom, long tailroom) {
+        return encode(msg, headroom, tailroom, null);
+    }
+
+    JsonProtocol decode(ByteBuffer src);
+
+    static MetadataCodec forMagic(short magic) {
+        if (magic == JSON.magic()) {
+            return JSON;
+        }
+        if (magic == BINARY.magic()) {
+            return BINARY;
+        }
+        return null;
+    }
+
+    static MetadataCodec forName(String name) {
+        return BINARY.name().equals(name) ? BINARY : JSON;
+    }
+}
@@ -1,28 +1,66 @@
-package Protocol;
-
-public enum Operation {
-    LIST(1),
-    LIST_REPLY(2),
-    UPLOAD(3),
-    UPLOAD_OK(4),
-    DOWNLOAD(5),
-    DOWNLOAD_REPLY(6),
-    DELETE(7),
-    DELETE_OK(8),
-    ERROR(9);
-
-    public final byte code;
-
-    Operation(int code) {
-        this.code = (byte) code;
-    }
-
-    public static Operation fromCode(byte code) {
-        for (Operation op : values()) {
-            if (op.code == code) {
-                return op;
-            }
-        }
-        throw new IllegalArgumentException("Unknown op code: " + code);
-    }
-}
\ No newline at end of file
+package Protocol;
+
+public enum Operation {
+    LIST(1),
+    LIST_REPLY(2),
+    UPLOAD(3),
+    UPLOAD_OK(4),
+    DOWNLOAD(5),
+    DOWNLOAD_REPLY(6),
+    DELETE(7),
+    DELETE_OK(8),
+    ERROR(9),
+    UPLOAD_BEGIN(10),
+    UPLOAD_BEGIN_OK(11),
+    UPLOAD_CHUNK(12),
+    UPLOAD_CHUNK_OK(13),
+    UPLOAD_COMMIT(14),
+    UPLOAD_COMMIT_OK(15),
+    BLOCK_QUERY(16),
+    BLOCK_QUERY_REPLY(17),
+    BLOCK_PUT(18),
+    BLOCK_PUT_OK(19),
+    MANIFEST_COMMIT(20),
+    MANIFEST_COMMIT_OK(21),
+    DELTA_SIGNATURES(22),
+    DELTA_SIGNATURES_REPLY(23),
+    DELTA_APPLY(24),
+    DELTA_APPLY_OK(25),
+    HELLO(26),
+    HELLO_OK(27),
+    LIST_CHANGES(28),
+    LIST_CHANGES_REPLY(29),
+    SUBSCRIBE(30),
+    SUBSCRIBE_OK(31),
+    UPLOAD_RANGE_BEGIN(32),
+    UPLOAD_RANGE_BEGIN_OK(33),
+    UPLOAD_RANGE(34),
+    UPLOAD_RANGE_OK(35),
+    UPLOAD_RANGE_COMMIT(36),
+    UPLOAD_RANGE_COMMIT_OK(37),
+    STATS(38),
+    STATS_REPLY(39),
+    CHECKSUM(40),
+    CHECKSUM_REPLY(41),
+    BATCH_UPLOAD(42),
+    BATCH_UPLOAD_OK(43),
+    BATCH_DOWNLOAD(44),
+    BATCH_DOWNLOAD_REPLY(45),
+    BATCH_DELETE(46),
+    BATCH_DELETE_OK(47);
+
+    public final byte code;
+
+    Operation(int code) {
+        this.code = (byte) code;
+    }
+
+    public static Operation fromCode(byte code) {
+        for (Operation op : values()) {
+            if (op.code == code) {
+                return op;
+            }
+        }
+        throw new IllegalArgumentException("Unknown op code: " + code);
+    }
+}
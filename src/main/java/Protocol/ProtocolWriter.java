@@ -1,25 +1,60 @@
-package Protocol;
-
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-
-public class ProtocolWriter {
-    public static final short MAGIC = (short) 0xCAFE;
-
-    public static ByteBuffer buildPacket(Operation op, String json, byte[] binary) {
-        byte[] jsonBytes = json != null ? json.getBytes(StandardCharsets.UTF_8) : new byte[0];
-        int binaryLength = binary != null ? binary.length : 0;
-
-        ByteBuffer buffer = ByteBuffer.allocate(15 + jsonBytes.length + binaryLength);
-        buffer.putShort(MAGIC);
-        buffer.put(op.code);
-        buffer.putInt(jsonBytes.length);
-        buffer.putLong(binaryLength);
-        buffer.put(jsonBytes);
-        if (binary != null) {
-            buffer.put(binary);
-        }
-        buffer.flip();
-        return buffer;
-    }
-}
\ No newline at end of file
+package Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class ProtocolWriter {
+    public static final short MAGIC = (short) 0xCAFE;
+    public static final short MAGIC_BINARY = (short) 0xCAFD;
+    public static final int HEADER_SIZE = 15;
+
+    public static ByteBuffer buildPacket(Operation op, String json, byte[] binary) {
+        byte[] jsonBytes = json != null ? json.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int binaryLength = binary != null ? binary.length : 0;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + jsonBytes.length + binaryLength);
+        buffer.putShort(MAGIC);
+        buffer.put(op.code);
+        buffer.putInt(jsonBytes.length);
+        buffer.putLong(binaryLength);
+        buffer.put(jsonBytes);
+        if (binary != null) {
+            buffer.put(binary);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer buildPacket(MetadataCodec codec, JsonProtocol msg, byte[] binary) {
+        return buildPacket(null, codec, msg, binary);
+    }
+
+    public static ByteBuffer buildPacket(BufferPool pool, MetadataCodec codec, JsonProtocol msg, byte[] binary) {
+        int binaryLength = binary != null ? binary.length : 0;
+        ByteBuffer buffer = codec.encode(msg, HEADER_SIZE, binaryLength, pool);
+        putHeader(buffer, codec, msg.operation, buffer.position() - HEADER_SIZE, binaryLength);
+        if (binary != null) {
+            buffer.put(binary);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer buildHeader(MetadataCodec codec, JsonProtocol msg, long binaryLength) {
+        return buildHeader(null, codec, msg, binaryLength);
+    }
+
+    public static ByteBuffer buildHeader(BufferPool pool, MetadataCodec codec, JsonProtocol msg, long binaryLength) {
+        ByteBuffer buffer = codec.encode(msg, HEADER_SIZE, 0, pool);
+        putHeader(buffer, codec, msg.operation, buffer.position() - HEADER_SIZE, binaryLength);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void putHeader(ByteBuffer buffer, MetadataCodec codec, Operation op, int metadataLength, long binaryLength) {
+        buffer.putShort(0, codec.magic());
+        buffer.put(2, op.code);
+        buffer.putInt(3, metadataLength);
+        buffer.putLong(7, binaryLength);
+    }
+}
@@ -0,0 +1,47 @@
+package Protocol;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+public final class RangeSet {
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private long covered;
+
+    public void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            if (before.getValue() >= end) {
+                return;
+            }
+            start = before.getKey();
+            remove(before);
+        }
+
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            remove(next);
+        }
+
+        ranges.put(start, end);
+        covered += end - start;
+    }
+
+    private void remove(Map.Entry<Long, Long> range) {
+        ranges.remove(range.getKey());
+        covered -= range.getValue() - range.getKey();
+    }
+
+    public long covered() {
+        return covered;
+    }
+
+    public boolean covers(long start, long end) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(start);
+        return range != null && range.getValue() >= end;
+    }
+}
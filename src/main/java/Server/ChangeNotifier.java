@@ -0,0 +1,37 @@
+package Server;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+final class ChangeNotifier implements Runnable {
+    private static final long COALESCE_MILLIS = 50;
+
+    private final List<EventLoop> loops;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "change-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ChangeNotifier(List<EventLoop> loops) {
+        this.loops = loops;
+    }
+
+    @Override
+    public void run() {
+        if (scheduled.compareAndSet(false, true)) {
+            timer.schedule(this::flush, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        scheduled.set(false);
+        for (EventLoop loop : loops) {
+            loop.execute(loop::publishChanges);
+        }
+    }
+}
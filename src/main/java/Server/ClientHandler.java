@@ -1,275 +1,1834 @@
-package Server;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Queue;
-
-import Protocol.*;
-
-enum ReadState {
-    READING_HEADER,
-    READING_JSON,
-    READING_BINARY
-}
-
-public class ClientHandler {
-    private final SocketChannel channel;
-    private final ByteBuffer headerBuffer = ByteBuffer.allocate(15);
-    private ByteBuffer jsonBuffer;
-    private ByteBuffer binaryBuffer;
-    private ReadState state = ReadState.READING_HEADER;
-    private int jsonLength = 0;
-    private long binaryLength = 0;
-    private final String pathStorage = "D:\\Java\\Projects\\Dropbox\\Storage\\";
-
-    private final Selector selector;
-    private final Queue<ByteBuffer> outgoing = new ArrayDeque<>();
-    private boolean writing = false;
-
-    public ClientHandler(SocketChannel channel, Selector selector) throws IOException {
-        this.channel = channel;
-        this.selector = selector;
-    }
-
-    public void read() throws IOException {
-        if (state == ReadState.READING_HEADER) {
-            int read = channel.read(headerBuffer);
-            if (read == -1) {
-                close();
-                return;
-            }
-
-            if (headerBuffer.remaining() == 0) {
-                headerBuffer.flip();
-                short magic = headerBuffer.getShort();
-                if (magic != ProtocolWriter.MAGIC) {
-                    System.out.println("[-] Invalid magic, disconnecting");
-                    close();
-                    return;
-                }
-
-                byte opCode = headerBuffer.get();
-                Operation op = Operation.fromCode(opCode);
-
-                jsonLength = headerBuffer.getInt();
-                binaryLength = headerBuffer.getLong();
-                headerBuffer.clear();
-
-                jsonBuffer = ByteBuffer.allocate(jsonLength);
-                if (jsonLength == 0) {
-                    if (binaryLength > 0) {
-                        state = ReadState.READING_BINARY;
-                    }
-                    else {
-                        state = ReadState.READING_HEADER;
-                    }
-                }
-                else {
-                    state = ReadState.READING_JSON;
-                }
-            }
-        }
-
-        if (state == ReadState.READING_JSON) {
-            int read = channel.read(jsonBuffer);
-            if (read == -1) {
-                close();
-                return;
-            }
-
-            if (!jsonBuffer.hasRemaining()) {
-                jsonBuffer.flip();
-                if (binaryLength > 0) {
-                    state = ReadState.READING_BINARY;
-                }
-                else {
-                    handlePacket(jsonBuffer, binaryBuffer);
-                    state = ReadState.READING_HEADER;
-                }
-            }
-        }
-
-        if (state == ReadState.READING_BINARY) {
-            if (binaryBuffer == null) {
-                binaryBuffer = ByteBuffer.allocate((int) binaryLength);
-            }
-
-            int read = channel.read(binaryBuffer);
-            if (read == -1) {
-                close();
-                return;
-            }
-
-            if (!binaryBuffer.hasRemaining()) {
-                binaryBuffer.flip();
-                handlePacket(jsonBuffer, binaryBuffer);
-
-                jsonBuffer = null;
-                binaryBuffer = null;
-                jsonLength = 0;
-                binaryLength = 0;
-                state = ReadState.READING_HEADER;
-            }
-        }
-    }
-
-    public void handleWrite() throws IOException {
-        while (!outgoing.isEmpty()) {
-            ByteBuffer buf = outgoing.peek();
-            channel.write(buf);
-            if (buf.hasRemaining()) return;
-            outgoing.poll();
-        }
-
-        writing = false;
-        SelectionKey key = channel.keyFor(selector);
-        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-    }
-
-    private void handlePacket(ByteBuffer jsonBuf, ByteBuffer binBuf) throws IOException {
-        String msg = new String(jsonBuf.array(), StandardCharsets.UTF_8);
-        JsonProtocol json = JsonProtocol.fromJson(msg);
-        System.out.println("[<] Got operation: " + json.operation);
-
-        switch (json.operation) {
-            case LIST -> {
-                sendList();
-            }
-
-            case UPLOAD -> {
-                JsonProtocol reply = new JsonProtocol();
-                reply.operation = Operation.UPLOAD_OK;
-
-                if (binBuf == null || json.fileName == null) {
-                    reply.status = "FAIL";
-                    reply.message = "Missing file or metadata";
-                    sendReply(ProtocolWriter.buildPacket(reply.operation, JsonProtocol.toJson(reply), null));
-                    return;
-                }
-
-                File outFile = new File(pathStorage + json.fileName);
-                try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                    fos.write(binBuf.array(), 0, binBuf.remaining());
-                    reply.status = "OK";
-                    reply.message = "File uploaded: " + json.fileName;
-                    System.out.println("[+] Saved file: " + outFile.getName());
-                }
-                catch (IOException e) {
-                    reply.status = "FAIL";
-                    reply.message = "I/O error: " + e.getMessage();
-                }
-
-                sendReply(ProtocolWriter.buildPacket(reply.operation, JsonProtocol.toJson(reply), null));
-            }
-
-            case DELETE -> {
-                JsonProtocol reply = new JsonProtocol();
-                reply.operation = Operation.DELETE_OK;
-
-                if (json.fileName == null) {
-                    reply.status = "FAIL";
-                    reply.message = "Filename is missing";
-                    sendReply(ProtocolWriter.buildPacket(reply.operation, JsonProtocol.toJson(reply), null));
-                    return;
-                }
-
-                File file = new File(pathStorage + json.fileName);
-                if (file.exists() && file.isFile()) {
-                    boolean deleted = file.delete();
-                    if (deleted) {
-                        reply.status = "OK";
-                        reply.message = "File deleted: " + json.fileName;
-                    } else {
-                        reply.status = "FAIL";
-                        reply.message = "Failed to delete file";
-                    }
-                } else {
-                    reply.status = "NOT_FOUND";
-                    reply.message = "File does not exist";
-                }
-
-                sendReply(ProtocolWriter.buildPacket(reply.operation, JsonProtocol.toJson(reply), null));
-            }
-
-            case DOWNLOAD -> {
-                if (json.fileName == null) {
-                    sendError("Filename is missing", Operation.ERROR);
-                    return;
-                }
-
-                File file = new File(pathStorage + json.fileName);
-                if (!file.exists() || !file.isFile()) {
-                    sendError("File not found: " + json.fileName, Operation.ERROR);
-                    return;
-                }
-
-                byte[] fileBytes = Files.readAllBytes(file.toPath());
-
-                JsonProtocol reply = new JsonProtocol();
-                reply.operation = Operation.DOWNLOAD_REPLY;
-                reply.status = "OK";
-                reply.message = "File sent";
-                reply.fileName = file.getName();
-                reply.size = fileBytes.length;
-
-                ByteBuffer packet = ProtocolWriter.buildPacket(reply.operation, JsonProtocol.toJson(reply), fileBytes);
-                sendReply(packet);
-            }
-
-            default -> sendError("Unsupported operation: " + json.operation, Operation.ERROR);
-        }
-    }
-
-    private void sendReply(ByteBuffer packet) throws IOException {
-        outgoing.add(packet);
-        if (!writing) {
-            SelectionKey key = channel.keyFor(selector);
-            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-            writing = true;
-            selector.wakeup();
-        }
-    }
-
-    public void sendList() throws IOException {
-        JsonProtocol reply = new JsonProtocol();
-        reply.operation = Operation.LIST_REPLY;
-        reply.status = "OK";
-        reply.message = "File list retrieved";
-
-        File[] files = new File(pathStorage).listFiles();
-        reply.files = new ArrayList<>();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    reply.files.add(file.getName());
-                }
-            }
-        }
-
-        sendReply(ProtocolWriter.buildPacket(Operation.LIST_REPLY, JsonProtocol.toJson(reply), null));
-    }
-
-    private void sendError(String message, Operation op) throws IOException {
-        JsonProtocol error = new JsonProtocol();
-        error.operation = op;
-        error.status = "FAIL";
-        error.message = message;
-
-        sendReply(ProtocolWriter.buildPacket(op, JsonProtocol.toJson(error), null));
-        System.out.println("[-] " + message);
-    }
-
-    public void close() throws IOException {
-        channel.close();
-    }
-}
\ No newline at end of file
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
+
+import Protocol.*;
+import Storage.BlockStore;
+import Storage.Content;
+import Storage.FileIndex;
+import Storage.FileStore;
+import Storage.RangedUpload;
+
+enum ReadState {
+    READING_HEADER,
+    READING_JSON,
+    READING_BINARY
+}
+
+public class ClientHandler {
+    private static final int MAX_LIST_PAGE = 10000;
+    private static final int TRANSFER_SIZE = 256 * 1024;
+    private static final long WRITE_BUDGET = 1024 * 1024;
+    private static final int MAX_GATHER = 64;
+    private static final int MAX_IN_FLIGHT = 32;
+    private static final long STREAM_CHUNK = 256 * 1024;
+    private static final int MAX_COMPRESSED_RANGE = 4 * 1024 * 1024;
+    private static final int MAX_BATCH_REPLY = 16 * 1024 * 1024;
+    private static final int MAX_BATCH_FILES = 1000;
+    private static final int MAX_METADATA = 64 * 1024 * 1024;
+    private static final int RESERVED_METADATA = 64 * 1024;
+    private static final long HIGH_WATERMARK = Long.getLong("dropbox.write.high", 8 * 1024 * 1024);
+    private static final long LOW_WATERMARK = Long.getLong("dropbox.write.low", 2 * 1024 * 1024);
+
+    private final SocketChannel channel;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(15);
+    private ByteBuffer jsonBuffer;
+    private ByteBuffer transferBuffer;
+    private ReadState state = ReadState.READING_HEADER;
+    private int jsonLength = 0;
+    private long binaryLength = 0;
+    private long binaryRemaining = 0;
+    private JsonProtocol pending;
+    private MetadataCodec frameCodec = MetadataCodec.JSON;
+    private MetadataCodec codec = MetadataCodec.JSON;
+    private FileChannel uploadChannel;
+    private Path uploadTemp;
+    private RangedUpload uploadRange;
+    private long uploadPosition;
+    private Inflater uploadInflater;
+    private CRC32C uploadCrc;
+    private long uploadLimit;
+    private byte[] inflateScratch;
+    private String uploadError;
+
+    private final EventLoop loop;
+    private final Selector selector;
+    private final FileStore store;
+    private final BufferPool pool;
+    private final Queue<PendingWrite> outgoing = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final Queue<DownloadStream> streams = new ArrayDeque<>();
+    private int inFlight = 0;
+    private int serialInFlight = 0;
+    private long queuedBytes = 0;
+    private long reservedBytes = 0;
+    private boolean writeBlocked = false;
+    private long requestId = 0;
+    private boolean serialRequest = true;
+    private Operation requestOp;
+    private long requestStarted;
+    private boolean closed = false;
+    private boolean subscribed = false;
+    private boolean changesPending = false;
+    private long subscribedSeq;
+
+    public ClientHandler(SocketChannel channel, EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+        this.selector = loop.selector();
+        this.store = loop.store();
+        this.pool = loop.pool();
+    }
+
+    public void read() throws IOException {
+        if (readPaused()) {
+            return;
+        }
+
+        if (state == ReadState.READING_HEADER) {
+            int read = channel.read(headerBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            loop.onBytesRead(read);
+
+            if (headerBuffer.remaining() == 0) {
+                headerBuffer.flip();
+                short magic = headerBuffer.getShort();
+                frameCodec = MetadataCodec.forMagic(magic);
+                if (frameCodec == null) {
+                    Log.warn("[-] Invalid magic, disconnecting");
+                    close();
+                    return;
+                }
+
+                byte opCode = headerBuffer.get();
+                Operation op = Operation.fromCode(opCode);
+
+                jsonLength = headerBuffer.getInt();
+                binaryLength = headerBuffer.getLong();
+                headerBuffer.clear();
+                requestId = 0;
+                serialRequest = true;
+
+                if (jsonLength == 0) {
+                    if (binaryLength > 0) {
+                        beginBinary();
+                        state = ReadState.READING_BINARY;
+                    }
+                    else {
+                        state = ReadState.READING_HEADER;
+                    }
+                }
+                else {
+                    if (jsonLength < 0 || jsonLength > MAX_METADATA) {
+                        Log.warn("[-] Metadata of " + jsonLength + " bytes is too large, disconnecting");
+                        close();
+                        return;
+                    }
+                    if (jsonLength > RESERVED_METADATA && !reserve(jsonLength, true)) {
+                        loop.budget().onShed();
+                        Log.warn("[-] Memory budget exhausted, refusing " + jsonLength + " bytes of metadata");
+                        close();
+                        return;
+                    }
+                    jsonBuffer = pool.acquire(jsonLength);
+                    state = ReadState.READING_JSON;
+                }
+            }
+        }
+
+        if (state == ReadState.READING_JSON) {
+            int read = channel.read(jsonBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            loop.onBytesRead(read);
+
+            if (!jsonBuffer.hasRemaining()) {
+                jsonBuffer.flip();
+                pending = frameCodec.decode(jsonBuffer);
+                releaseMetadata();
+                requestId = pending.id;
+                serialRequest = pending.id == 0 || binaryLength > 0;
+                if (binaryLength > 0) {
+                    beginBinary();
+                    state = ReadState.READING_BINARY;
+                }
+                else {
+                    JsonProtocol json = pending;
+                    long packetBytes = headerBuffer.capacity() + jsonLength;
+                    resetPacket();
+                    beginRequest(json.operation, packetBytes);
+                    handlePacket(json);
+                }
+            }
+        }
+
+        if (state == ReadState.READING_BINARY && !readPaused()) {
+            while (binaryRemaining > 0 && transferBuffer.hasRemaining()) {
+                if (binaryRemaining < transferBuffer.remaining()) {
+                    transferBuffer.limit(transferBuffer.position() + (int) binaryRemaining);
+                }
+
+                int read = channel.read(transferBuffer);
+                if (read == -1) {
+                    close();
+                    return;
+                }
+                if (read == 0) {
+                    return;
+                }
+
+                loop.onBytesRead(read);
+                binaryRemaining -= read;
+            }
+
+            transferBuffer.flip();
+            writeUploadChunk();
+        }
+    }
+
+    private void beginBinary() {
+        binaryRemaining = binaryLength;
+        uploadError = null;
+        transferBuffer = pool.acquire((int) Math.min(TRANSFER_SIZE, binaryLength));
+
+        JsonProtocol json = pending;
+        if (json == null || !acceptsBinary(json)) {
+            uploadError = "Missing file or metadata";
+            return;
+        }
+
+        uploadCrc = Checksum.isKnown(json.crc) ? new CRC32C() : null;
+        uploadPosition = 0;
+        uploadLimit = Long.MAX_VALUE;
+        if (json.encoding != null) {
+            if (!Compression.DEFLATE.equals(json.encoding) || !acceptsEncoding(json)) {
+                uploadError = "Unsupported encoding for " + json.operation + ": " + json.encoding;
+                return;
+            }
+            uploadInflater = new Inflater();
+            uploadLimit = json.length;
+            if (inflateScratch == null) {
+                inflateScratch = new byte[64 * 1024];
+            }
+        }
+
+        if (json.operation == Operation.UPLOAD_RANGE) {
+            offload(() -> store.openRanged(json.fileName), (range, error) -> {
+                if (error instanceof NoSuchFileException) {
+                    uploadError = "No ranged upload in progress for " + json.fileName;
+                    return;
+                }
+                if (error != null) {
+                    uploadError = "I/O error: " + error.getMessage();
+                    return;
+                }
+                uploadRange = range;
+                uploadPosition = json.offset;
+            });
+            return;
+        }
+
+        if (json.operation == Operation.UPLOAD_CHUNK) {
+            offload(() -> store.openResume(json.fileName, json.offset), (resume, error) -> {
+                if (error != null) {
+                    uploadError = "I/O error: " + error.getMessage();
+                    return;
+                }
+                uploadChannel = resume;
+            });
+            return;
+        }
+
+        offload(() -> {
+            Path temp = store.createTemp(json.operation == Operation.UPLOAD ? json.fileName : null);
+            try {
+                return new OpenedUpload(temp, FileChannel.open(temp, StandardOpenOption.WRITE));
+            }
+            catch (IOException e) {
+                store.discard(temp);
+                throw e;
+            }
+        }, (opened, error) -> {
+            if (error != null) {
+                uploadError = "I/O error: " + error.getMessage();
+                return;
+            }
+            uploadTemp = opened.temp();
+            uploadChannel = opened.channel();
+        });
+    }
+
+    private boolean acceptsBinary(JsonProtocol json) {
+        return switch (json.operation) {
+            case UPLOAD, UPLOAD_CHUNK, UPLOAD_RANGE -> json.fileName != null;
+            case BLOCK_PUT -> BlockStore.isValidHash(json.hash) && binaryLength <= Chunker.MAX_SIZE;
+            case DELTA_APPLY -> json.fileName != null && BlockStore.isValidHash(json.hash);
+            case BATCH_UPLOAD -> json.files != null && json.sizes != null && json.files.size() == json.sizes.size()
+                    && json.files.size() <= MAX_BATCH_FILES;
+            default -> false;
+        };
+    }
+
+    private boolean acceptsEncoding(JsonProtocol json) {
+        return switch (json.operation) {
+            case UPLOAD, UPLOAD_CHUNK, UPLOAD_RANGE, BATCH_UPLOAD -> true;
+            case BLOCK_PUT -> json.length <= Chunker.MAX_SIZE;
+            default -> false;
+        };
+    }
+
+    private void writeUploadChunk() throws IOException {
+        if ((uploadChannel == null && uploadRange == null) || uploadError != null) {
+            afterUploadChunk();
+            return;
+        }
+
+        FileChannel target = uploadChannel;
+        RangedUpload range = uploadRange;
+        Inflater inflater = uploadInflater;
+        CRC32C crc = uploadCrc;
+        byte[] scratch = inflateScratch;
+        long position = uploadPosition;
+        long limit = uploadLimit;
+        ByteBuffer data = transferBuffer;
+        offload(() -> {
+            long[] at = {position};
+            Compression.Sink sink = chunk -> {
+                int count = chunk.remaining();
+                if (crc != null) {
+                    crc.update(chunk.duplicate());
+                }
+                if (range != null) {
+                    range.write(chunk, at[0]);
+                }
+                else {
+                    while (chunk.hasRemaining()) {
+                        target.write(chunk);
+                    }
+                }
+                at[0] += count;
+            };
+            if (inflater != null) {
+                Compression.inflate(inflater, data, scratch, sink, limit);
+            }
+            else {
+                sink.write(data);
+            }
+            return at[0] - position;
+        }, (written, error) -> {
+            if (error != null) {
+                abortUpload();
+                uploadError = "I/O error: " + error.getMessage();
+            }
+            else {
+                uploadPosition += written;
+                uploadLimit -= written;
+            }
+            afterUploadChunk();
+        });
+    }
+
+    private void afterUploadChunk() throws IOException {
+        transferBuffer.clear();
+        if (binaryRemaining == 0) {
+            finishUpload();
+        }
+    }
+
+    private void finishUpload() throws IOException {
+        JsonProtocol json = pending;
+        Inflater inflater = uploadInflater;
+        if (inflater != null) {
+            if (uploadError == null && !inflater.finished()) {
+                discardPayload(json);
+                uploadError = "Truncated compressed payload";
+            }
+            else if (uploadError == null && uploadLimit != 0) {
+                discardPayload(json);
+                uploadError = "Compressed payload inflated to " + (json.length - uploadLimit) + " bytes, expected "
+                        + json.length;
+            }
+            uploadInflater = null;
+            inflater.end();
+        }
+
+        CRC32C crc = uploadCrc;
+        uploadCrc = null;
+        if (uploadError == null && crc != null && Checksum.value(crc) != json.crc) {
+            uploadError = "Checksum mismatch: expected " + Checksum.format(json.crc) + ", received "
+                    + Checksum.format(Checksum.value(crc));
+            discardPayload(json);
+        }
+
+        FileChannel target = uploadChannel;
+        Path temp = uploadTemp;
+        String error = uploadError;
+        long packetBytes = headerBuffer.capacity() + jsonLength + binaryLength;
+        uploadChannel = null;
+        uploadTemp = null;
+        uploadRange = null;
+        resetPacket();
+
+        if (json != null && json.operation != null) {
+            beginRequest(json.operation, packetBytes);
+        }
+        if (json == null || (json.operation != Operation.UPLOAD && json.operation != Operation.UPLOAD_CHUNK
+                && json.operation != Operation.UPLOAD_RANGE && json.operation != Operation.BLOCK_PUT
+                && json.operation != Operation.DELTA_APPLY && json.operation != Operation.BATCH_UPLOAD)) {
+            sendError("Unexpected binary payload for " + (json != null ? json.operation : null), Operation.ERROR);
+            return;
+        }
+        if (json.operation == Operation.UPLOAD_CHUNK) {
+            finishChunk(json, target, error);
+            return;
+        }
+        if (json.operation == Operation.UPLOAD_RANGE) {
+            finishRange(json, error);
+            return;
+        }
+        if (json.operation == Operation.BLOCK_PUT) {
+            finishBlock(json, target, temp, error);
+            return;
+        }
+        if (json.operation == Operation.DELTA_APPLY) {
+            finishDelta(json, target, temp, error);
+            return;
+        }
+        if (json.operation == Operation.BATCH_UPLOAD) {
+            finishBatch(json, target, temp, error);
+            return;
+        }
+
+        JsonProtocol reply = new JsonProtocol();
+        reply.operation = Operation.UPLOAD_OK;
+        reply.fileName = json.fileName;
+
+        if (error != null) {
+            reply.status = "FAIL";
+            reply.message = error;
+            sendReply(reply);
+            return;
+        }
+
+        offload(() -> {
+            try {
+                target.close();
+                store.commit(temp, json.fileName, crc != null ? Checksum.value(crc) : Checksum.NONE);
+            }
+            catch (IOException e) {
+                store.discard(temp);
+                throw e;
+            }
+            return null;
+        }, (ignored, commitError) -> {
+            if (commitError != null) {
+                reply.status = "FAIL";
+                reply.message = "I/O error: " + commitError.getMessage();
+            }
+            else {
+                reply.status = "OK";
+                reply.message = "File uploaded: " + json.fileName;
+                Log.info("[+] Saved file: " + json.fileName);
+            }
+            sendReply(reply);
+        });
+    }
+
+    private void finishChunk(JsonProtocol json, FileChannel target, String error) {
+        JsonProtocol reply = new JsonProtocol();
+        reply.operation = Operation.UPLOAD_CHUNK_OK;
+        reply.fileName = json.fileName;
+
+        if (error != null) {
+            reply.status = "FAIL";
+            reply.message = error;
+            sendReply(reply);
+            return;
+        }
+
+        offload(() -> {
+            try (target) {
+                return target.position();
+            }
+        }, (held, closeError) -> {
+            if (closeError != null) {
+                reply.status = "FAIL";
+                reply.message = "I/O error: " + closeError.getMessage();
+            }
+            else {
+                reply.status = "OK";
+                reply.message = "Chunk stored";
+                reply.offset = held;
+            }
+            sendReply(reply);
+        });
+    }
+
+    private void finishRange(JsonProtocol json, String error) {
+        JsonProtocol reply = new JsonProtocol();
+        reply.operation = Operation.UPLOAD_RANGE_OK;
+        reply.fileName = json.fileName;
+        reply.offset = json.offset;
+        reply.length = json.length;
+        if (error != null) {
+            reply.status = "FAIL";
+            reply.message = error;
+        }
+        else {
+            reply.status = "OK";
+            reply.message = "Range stored";
+        }
+        sendReply(reply);
+    }
+
+    private void finishBlock(JsonProtocol json, FileChannel target, Path temp, String error) {
+        JsonProtocol reply = new JsonProtocol();
+        reply.operation = Operation.BLOCK_PUT_OK;
+        reply.fileName = json.fileName;
+        reply.hash = json.hash;
+
+        if (error != null) {
+            reply.status = "FAIL";
+            reply.message = error;
+            sendReply(reply);
+            return;
+        }
+
+        offload(() -> {
+            try {
+                target.close();
+                store.blocks().adopt(temp, json.hash);
+            }
+            catch (IOException e) {
+                store.discard(temp);
+                throw e;
+            }
+            return null;
+        }, (ignored, adoptError) -> {
+            if (adoptError != null) {
+                reply.status = "FAIL";
+                reply.message = "I/O error: " + adoptError.getMessage();
+            }
+            else {
+                reply.status = "OK";
+                reply.message = "Block stored";
+            }
+            sendReply(reply);
+        });
+    }
+
+    private void finishDelta(JsonProtocol json, FileChannel target, Path temp, String error) {
+        JsonProtocol reply = new JsonProtocol();
+        reply.operation = Operation.DELTA_APPLY_OK;
+        reply.fileName = json.fileName;
+
+        if (error != null) {
+            reply.status = "FAIL";
+            reply.message = error;
+            sendReply(reply);
+            return;
+        }
+
+        offload(() -> {
+            try {
+                target.close();
+                return store.applyDelta(json.fileName, temp, (int) json.length, json.size, json.hash);
+            }
+            finally {
+                store.discard(temp);
+            }
+        }, (size, applyError) -> {
+            if (applyError instanceof NoSuchFileException) {
+                reply.status = "NOT_FOUND";
+                reply.message = "File does not exist";
+            }
+            else if (applyError != null) {
+                reply.status = "FAIL";
+                reply.message = "I/O error: " + applyError.getMessage();
+            }
+            else {
+                reply.status = "OK";
+                reply.message = "File uploaded: " + json.fileName;
+                reply.size = size;
+                Log.info("[+] Saved file: " + json.fileName + " (delta)");
+            }
+            sendReply(reply);
+        });
+    }
+
+    private void finishBatch(JsonProtocol json, FileChannel target, Path temp, String error) {
+        JsonProtocol reply = new JsonProtocol();
+        reply.operation = Operation.BATCH_UPLOAD_OK;
+        reply.files = json.files;
+
+        if (error != null) {
+            reply.status = "FAIL";
+            reply.message = error;
+            sendReply(reply);
+            return;
+        }
+
+        offload(() -> {
+            Path packed = temp;
+            try {
+                if (target != null) {
+                    target.close();
+                }
+                if (packed == null) {
+                    packed = store.createTemp();
+                }
+                return store.commitBatch(packed, json.files, json.sizes);
+            }
+            finally {
+                if (packed != null) {
+                    store.discard(packed);
+                }
+            }
+        }, (results, commitError) -> {
+            if (commitError != null) {
+                reply.status = "FAIL";
+                reply.message = "I/O error: " + commitError.getMessage();
+            }
+            else {
+                long stored = results.stream().filter("OK"::equals).count();
+                reply.status = "OK";
+                reply.message = "Stored " + stored + " of " + results.size() + " files";
+                reply.results = results;
+                Log.info("[+] Saved " + stored + " files from a batch");
+            }
+            sendReply(reply);
+        });
+    }
+
+    private void discardPayload(JsonProtocol json) {
+        if (json.operation == Operation.UPLOAD_CHUNK) {
+            discardChunk(uploadChannel, json.offset);
+            uploadChannel = null;
+        }
+        else {
+            abortUpload();
+        }
+    }
+
+    private void discardChunk(FileChannel target, long offset) {
+        if (target == null) {
+            return;
+        }
+        loop.storageExecutor().execute(() -> {
+            try (target) {
+                target.truncate(offset);
+            }
+            catch (IOException e) {
+                Log.warn("[-] Could not discard a corrupt chunk: " + e.getMessage());
+            }
+        });
+    }
+
+    private void abortUpload() {
+        FileChannel target = uploadChannel;
+        Path temp = uploadTemp;
+        uploadChannel = null;
+        uploadTemp = null;
+        uploadRange = null;
+        uploadInflater = null;
+        if (target == null && temp == null) {
+            return;
+        }
+
+        loop.storageExecutor().execute(() -> {
+            if (target != null) {
+                try {
+                    target.close();
+                }
+                catch (IOException ignored) {}
+            }
+            if (temp != null) {
+                store.discard(temp);
+            }
+        });
+    }
+
+    private void resetPacket() {
+        releaseBuffers();
+        pending = null;
+        jsonLength = 0;
+        binaryLength = 0;
+        binaryRemaining = 0;
+        uploadError = null;
+        state = ReadState.READING_HEADER;
+    }
+
+    public void handleWrite() throws IOException {
+        long budget = WRITE_BUDGET;
+        while (budget > 0 && (!outgoing.isEmpty() || nextStreamChunk())) {
+            PendingWrite next = outgoing.peek();
+            long written = next instanceof PendingWrite.Buffer ? writeGathered(budget) : next.writeTo(channel, budget);
+            loop.onBytesWritten(written);
+            onSent(written);
+            budget -= written;
+
+            while (!outgoing.isEmpty() && outgoing.peek().isDone()) {
+                release(outgoing.poll());
+            }
+            if (!outgoing.isEmpty() && outgoing.peek() == next) {
+                break;
+            }
+        }
+
+        if (changesPending) {
+            publishChanges();
+        }
+        updateInterest();
+    }
+
+    private boolean nextStreamChunk() {
+        DownloadStream stream = streams.poll();
+        if (stream == null) {
+            return false;
+        }
+
+        long count = Math.min(STREAM_CHUNK, stream.remaining);
+        JsonProtocol frame = new JsonProtocol();
+        frame.operation = Operation.DOWNLOAD_REPLY;
+        frame.id = stream.id;
+        frame.fileName = stream.fileName;
+        frame.size = stream.content.size();
+        frame.crc = stream.crc;
+        frame.offset = stream.position;
+        frame.length = count;
+        frame.status = count == stream.remaining ? "OK" : "PARTIAL";
+        frame.message = "File sent";
+
+        queue(new PendingWrite.Buffer(ProtocolWriter.buildHeader(pool, codec, frame, count), pool));
+        // the payload was counted against the watermark when the stream was queued
+        outgoing.add(new PendingWrite.FileRegion(stream.content, stream.position, count, count == stream.remaining));
+        stream.position += count;
+        stream.remaining -= count;
+        if (stream.remaining > 0) {
+            streams.add(stream);
+        }
+        return true;
+    }
+
+    private long writeGathered(long budget) throws IOException {
+        int count = 0;
+        long queued = 0;
+        for (PendingWrite write : outgoing) {
+            if (!(write instanceof PendingWrite.Buffer buffer) || count == MAX_GATHER || queued >= budget) {
+                break;
+            }
+            gather[count++] = buffer.buffer();
+            queued += buffer.buffer().remaining();
+        }
+
+        long written = channel.write(gather, 0, count);
+        Arrays.fill(gather, 0, count, null);
+        return written;
+    }
+
+    private void beginRequest(Operation op, long bytes) {
+        requestOp = op;
+        requestStarted = System.nanoTime();
+        loop.metrics().onRequest(op, bytes);
+        Log.debug(() -> "[<] Got operation: " + op);
+    }
+
+    private void endRequest(long bytes, String status) {
+        if (requestOp == null) {
+            return;
+        }
+        loop.metrics().onReply(requestOp, bytes, System.nanoTime() - requestStarted,
+                "FAIL".equals(status) || "NOT_FOUND".equals(status));
+        requestOp = null;
+    }
+
+    private void handlePacket(JsonProtocol json) throws IOException {
+        if (loop.budget().isExhausted() && shed(json)) {
+            return;
+        }
+
+        switch (json.operation) {
+            case LIST -> {
+                if (json.cursor == null && json.prefix == null && json.limit <= 0) {
+                    sendList();
+                    return;
+                }
+
+                int limit = json.limit > 0 ? Math.min(json.limit, MAX_LIST_PAGE) : MAX_LIST_PAGE;
+                FileIndex.Page page = store.index().page(json.cursor, json.prefix, limit);
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.LIST_REPLY;
+                reply.status = "OK";
+                reply.message = "File list retrieved";
+                reply.files = page.names();
+                reply.sizes = page.sizes();
+                reply.mtimes = page.mtimes();
+                reply.cursor = page.next();
+                reply.prefix = json.prefix;
+                reply.seq = page.version();
+                sendReply(reply);
+            }
+
+            case LIST_CHANGES -> {
+                sendChanges(json.seq, store.index().changesSince(json.seq));
+            }
+
+            case SUBSCRIBE -> {
+                long version = store.index().version();
+                subscribedSeq = json.seq > 0 ? json.seq : version;
+                if (!subscribed) {
+                    subscribed = true;
+                    loop.subscribe(this);
+                }
+
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.SUBSCRIBE_OK;
+                reply.status = "OK";
+                reply.message = "Subscribed to changes";
+                reply.seq = subscribedSeq;
+                sendReply(reply);
+                if (subscribedSeq != version) {
+                    publishChanges();
+                }
+            }
+
+            case HELLO -> {
+                MetadataCodec chosen = MetadataCodec.forName(json.codec);
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.HELLO_OK;
+                reply.status = "OK";
+                reply.message = "Using " + chosen.name() + " metadata";
+                reply.codec = chosen.name();
+                sendReply(reply);
+                codec = chosen;
+            }
+
+            case UPLOAD -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.UPLOAD_OK;
+                reply.fileName = json.fileName;
+                if (json.fileName == null || json.size != 0) {
+                    reply.status = "FAIL";
+                    reply.message = "Missing file or metadata";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> {
+                    Path temp = store.createTemp(json.fileName);
+                    try {
+                        store.commit(temp, json.fileName, Checksum.of(new byte[0]));
+                    }
+                    catch (IOException e) {
+                        store.discard(temp);
+                        throw e;
+                    }
+                    return null;
+                }, (ignored, commitError) -> {
+                    if (commitError != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + commitError.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = "File uploaded: " + json.fileName;
+                        Log.info("[+] Saved file: " + json.fileName);
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case BATCH_UPLOAD -> {
+                if (!acceptsBinary(json)) {
+                    JsonProtocol reply = new JsonProtocol();
+                    reply.operation = Operation.BATCH_UPLOAD_OK;
+                    reply.status = "FAIL";
+                    reply.message = "Missing file list or sizes, or more than " + MAX_BATCH_FILES + " files";
+                    sendReply(reply);
+                    return;
+                }
+                finishBatch(json, null, null, null);
+            }
+
+            case BATCH_DELETE -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.BATCH_DELETE_OK;
+                reply.files = json.files;
+
+                if (json.files == null || json.files.size() > MAX_BATCH_FILES) {
+                    reply.status = "FAIL";
+                    reply.message = json.files == null ? "Missing file list" : "More than " + MAX_BATCH_FILES + " files";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> store.deleteBatch(json.files), (results, error) -> {
+                    if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = "Deleted " + results.stream().filter("OK"::equals).count() + " of "
+                                + results.size() + " files";
+                        reply.results = results;
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case BATCH_DOWNLOAD -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.BATCH_DOWNLOAD_REPLY;
+                reply.files = json.files;
+
+                if (json.files == null || json.files.size() > MAX_BATCH_FILES) {
+                    reply.status = "FAIL";
+                    reply.message = json.files == null ? "Missing file list" : "More than " + MAX_BATCH_FILES + " files";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> openBatch(json.files), (batch, error) -> {
+                    if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                        sendReply(reply);
+                        return;
+                    }
+                    reply.status = "OK";
+                    reply.message = "Sent " + batch.contents().size() + " of " + json.files.size() + " files";
+                    reply.results = batch.results();
+                    reply.sizes = batch.sizes();
+                    reply.crc = batch.crc();
+                    reply.length = batch.length();
+
+                    if (Compression.DEFLATE.equals(json.encoding) && batch.length() >= Compression.MIN_SIZE
+                            && !writeBlocked && reserve(batch.length(), false)) {
+                        offload(() -> {
+                            try {
+                                return new CompressedBatch(batch, compressBatch(batch));
+                            }
+                            catch (IOException e) {
+                                Log.warn("[-] Failed to compress a batch of " + batch.contents().size()
+                                        + " files, sending it uncompressed: " + e.getMessage());
+                                return new CompressedBatch(batch, null);
+                            }
+                        }, (compressed, compressError) -> {
+                            unreserve(batch.length());
+                            if (compressError != null) {
+                                Log.warn("[-] Failed to compress a batch of " + batch.contents().size()
+                                        + " files, sending it uncompressed: " + compressError.getMessage());
+                            }
+                            if (compressed == null || compressed.packed() == null) {
+                                sendBatch(reply, batch);
+                                return;
+                            }
+                            batch.close();
+                            reply.encoding = Compression.DEFLATE;
+                            sendReply(reply, compressed.packed());
+                        });
+                        return;
+                    }
+                    sendBatch(reply, batch);
+                });
+            }
+
+            case UPLOAD_BEGIN -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.UPLOAD_BEGIN_OK;
+                reply.fileName = json.fileName;
+                reply.size = json.size;
+
+                if (json.fileName == null) {
+                    reply.status = "FAIL";
+                    reply.message = "Filename is missing";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> store.resumeOffset(json.fileName, json.size), (held, error) -> {
+                    if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = "Resuming at " + held;
+                        reply.offset = held;
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case UPLOAD_CHUNK -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.UPLOAD_CHUNK_OK;
+                reply.fileName = json.fileName;
+                reply.status = "FAIL";
+                reply.message = "Chunk payload is missing";
+                sendReply(reply);
+            }
+
+            case UPLOAD_COMMIT -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.UPLOAD_COMMIT_OK;
+                reply.fileName = json.fileName;
+
+                if (json.fileName == null) {
+                    reply.status = "FAIL";
+                    reply.message = "Filename is missing";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> {
+                    store.commitResume(json.fileName, json.size, json.crc);
+                    return null;
+                }, (ignored, error) -> {
+                    if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = "File uploaded: " + json.fileName;
+                        Log.info("[+] Saved file: " + json.fileName);
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case UPLOAD_RANGE_BEGIN -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.UPLOAD_RANGE_BEGIN_OK;
+                reply.fileName = json.fileName;
+                reply.size = json.size;
+
+                if (json.fileName == null) {
+                    reply.status = "FAIL";
+                    reply.message = "Filename is missing";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> store.beginRanged(json.fileName, json.size), (upload, error) -> {
+                    if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = "Preallocated " + upload.size() + " bytes";
+                        reply.offset = upload.received();
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case UPLOAD_RANGE -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.UPLOAD_RANGE_OK;
+                reply.fileName = json.fileName;
+                reply.status = "FAIL";
+                reply.message = "Range payload is missing";
+                sendReply(reply);
+            }
+
+            case UPLOAD_RANGE_COMMIT -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.UPLOAD_RANGE_COMMIT_OK;
+                reply.fileName = json.fileName;
+
+                if (json.fileName == null) {
+                    reply.status = "FAIL";
+                    reply.message = "Filename is missing";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> {
+                    store.commitRanged(json.fileName, json.size, json.hash, json.crc);
+                    return null;
+                }, (ignored, error) -> {
+                    if (error instanceof NoSuchFileException) {
+                        reply.status = "FAIL";
+                        reply.message = "No ranged upload in progress for " + json.fileName;
+                    }
+                    else if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = "File uploaded: " + json.fileName;
+                        Log.info("[+] Saved file: " + json.fileName);
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case BLOCK_QUERY -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.BLOCK_QUERY_REPLY;
+                reply.fileName = json.fileName;
+                List<String> hashes = json.hashes != null ? json.hashes : List.of();
+
+                offload(() -> store.blocks().missing(hashes), (missing, error) -> {
+                    if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = missing.size() + " of " + hashes.size() + " blocks missing";
+                        reply.hashes = missing;
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case STATS -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.STATS_REPLY;
+
+                offload(() -> loop.stats().getStats(), (stats, error) -> {
+                    if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "Failed to collect stats: " + error.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = "Server statistics";
+                        reply.stats = stats;
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case BLOCK_PUT -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.BLOCK_PUT_OK;
+                reply.fileName = json.fileName;
+                reply.hash = json.hash;
+                reply.status = "FAIL";
+                reply.message = "Block payload is missing";
+                sendReply(reply);
+            }
+
+            case MANIFEST_COMMIT -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.MANIFEST_COMMIT_OK;
+                reply.fileName = json.fileName;
+
+                if (json.fileName == null || json.hashes == null) {
+                    reply.status = "FAIL";
+                    reply.message = "Missing file or metadata";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> store.commitManifest(json.fileName, json.hashes, json.size), (size, error) -> {
+                    if (error instanceof NoSuchFileException) {
+                        reply.status = "NOT_FOUND";
+                        reply.message = error.getMessage();
+                    }
+                    else if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = "File uploaded: " + json.fileName;
+                        reply.size = size;
+                        Log.info("[+] Saved file: " + json.fileName + " (" + json.hashes.size() + " blocks)");
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case DELTA_SIGNATURES -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.DELTA_SIGNATURES_REPLY;
+                reply.fileName = json.fileName;
+
+                if (json.fileName == null) {
+                    reply.status = "FAIL";
+                    reply.message = "Filename is missing";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> {
+                    try (Content content = store.openRead(json.fileName)) {
+                        int blockSize = Delta.blockSizeFor(content.size());
+                        return new Signatures(content.size(), blockSize,
+                                Delta.signatures(content::read, content.size(), blockSize));
+                    }
+                }, (signatures, error) -> {
+                    if (error instanceof NoSuchFileException) {
+                        reply.status = "NOT_FOUND";
+                        reply.message = "File does not exist";
+                    }
+                    else if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else {
+                        reply.status = "OK";
+                        reply.message = "Block signatures";
+                        reply.size = signatures.size();
+                        reply.length = signatures.blockSize();
+                        sendReply(reply, signatures.data());
+                        return;
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            case DELETE -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.DELETE_OK;
+
+                if (json.fileName == null) {
+                    reply.status = "FAIL";
+                    reply.message = "Filename is missing";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> store.delete(json.fileName), (deleted, error) -> {
+                    if (error instanceof NoSuchFileException) {
+                        reply.status = "NOT_FOUND";
+                        reply.message = "File does not exist";
+                    }
+                    else if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else if (deleted) {
+                        reply.status = "OK";
+                        reply.message = "File deleted: " + json.fileName;
+                    }
+                    else {
+                        reply.status = "FAIL";
+                        reply.message = "Failed to delete file";
+                    }
+
+                    sendReply(reply);
+                });
+            }
+
+            case DOWNLOAD -> {
+                if (json.fileName == null) {
+                    sendError("Filename is missing", Operation.ERROR);
+                    return;
+                }
+
+                offload(() -> {
+                    FileIndex.Entry entry = store.index().get(json.fileName);
+                    Content content = store.openRead(json.fileName);
+                    boolean known = entry != null && entry.size() == content.size();
+                    return new OpenedDownload(content, known ? entry.crc() : Checksum.NONE);
+                }, (opened, error) -> {
+                    if (error instanceof NoSuchFileException) {
+                        sendError("File not found: " + json.fileName, Operation.ERROR, json.fileName);
+                        return;
+                    }
+                    if (error != null) {
+                        sendError("I/O error: " + error.getMessage(), Operation.ERROR, json.fileName);
+                        return;
+                    }
+
+                    Content content = opened.content();
+                    long size = content.size();
+                    if (json.offset < 0 || json.offset > size) {
+                        content.close();
+                        sendError("Offset " + json.offset + " is outside " + json.fileName, Operation.ERROR, json.fileName);
+                        return;
+                    }
+
+                    long count = size - json.offset;
+                    if (json.length > 0) {
+                        count = Math.min(count, json.length);
+                    }
+
+                    JsonProtocol reply = new JsonProtocol();
+                    reply.operation = Operation.DOWNLOAD_REPLY;
+                    reply.status = "OK";
+                    reply.message = "File sent";
+                    reply.fileName = json.fileName;
+                    reply.size = size;
+                    reply.offset = json.offset;
+                    reply.length = count;
+                    reply.crc = opened.crc();
+
+                    if (Compression.DEFLATE.equals(json.encoding) && count >= Compression.MIN_SIZE
+                            && count <= MAX_COMPRESSED_RANGE && !writeBlocked && reserve(count, false)) {
+                        offload(() -> {
+                            try {
+                                return new CompressedRange(content, compressRange(content, reply.offset,
+                                        (int) reply.length));
+                            }
+                            catch (IOException e) {
+                                Log.warn("[-] Failed to compress " + json.fileName + ", sending it uncompressed: "
+                                        + e.getMessage());
+                                return new CompressedRange(content, null);
+                            }
+                        }, (compressed, compressError) -> {
+                            unreserve(reply.length);
+                            if (compressError != null) {
+                                Log.warn("[-] Failed to compress " + json.fileName + ", sending it uncompressed: "
+                                        + compressError.getMessage());
+                            }
+                            if (compressed == null || compressed.packed() == null) {
+                                sendRange(reply, content);
+                                return;
+                            }
+                            content.close();
+                            reply.encoding = Compression.DEFLATE;
+                            sendReply(reply, compressed.packed());
+                        });
+                        return;
+                    }
+                    sendRange(reply, content);
+                });
+            }
+
+            case CHECKSUM -> {
+                JsonProtocol reply = new JsonProtocol();
+                reply.operation = Operation.CHECKSUM_REPLY;
+                reply.fileName = json.fileName;
+
+                if (json.fileName == null) {
+                    reply.status = "FAIL";
+                    reply.message = "Filename is missing";
+                    sendReply(reply);
+                    return;
+                }
+
+                offload(() -> store.checksum(json.fileName), (entry, error) -> {
+                    if (error instanceof NoSuchFileException) {
+                        reply.status = "NOT_FOUND";
+                        reply.message = "File does not exist";
+                    }
+                    else if (error != null) {
+                        reply.status = "FAIL";
+                        reply.message = "I/O error: " + error.getMessage();
+                    }
+                    else {
+                        boolean changed = Checksum.isKnown(json.crc) && json.crc != entry.crc();
+                        reply.status = changed ? "CHANGED" : "OK";
+                        reply.message = "Checksum " + Checksum.format(entry.crc());
+                        reply.size = entry.size();
+                        reply.crc = entry.crc();
+                    }
+                    sendReply(reply);
+                });
+            }
+
+            default -> sendError("Unsupported operation: " + json.operation, Operation.ERROR);
+        }
+    }
+
+    private boolean shed(JsonProtocol json) {
+        Operation replyOp = switch (json.operation) {
+            case DOWNLOAD -> Operation.ERROR;
+            case DELTA_SIGNATURES -> Operation.DELTA_SIGNATURES_REPLY;
+            case BLOCK_QUERY -> Operation.BLOCK_QUERY_REPLY;
+            case BATCH_DOWNLOAD -> Operation.BATCH_DOWNLOAD_REPLY;
+            default -> null;
+        };
+        if (replyOp == null) {
+            return false;
+        }
+        loop.budget().onShed();
+        sendError("Server is busy, retry " + json.operation + " later", replyOp, json.fileName);
+        return true;
+    }
+
+    private void sendRange(JsonProtocol reply, Content content) {
+        if (requestId != 0 && reply.length > STREAM_CHUNK) {
+            streams.add(new DownloadStream(requestId, reply.fileName, content, reply.crc, reply.offset, reply.length));
+            addQueued(reply.length);
+            endRequest(reply.length, reply.status);
+            updateInterest();
+            return;
+        }
+
+        reply.id = requestId;
+        ByteBuffer header = ProtocolWriter.buildHeader(pool, codec, reply, reply.length);
+        endRequest(header.remaining() + reply.length, reply.status);
+        enqueue(new PendingWrite.Buffer(header, pool));
+        enqueue(new PendingWrite.FileRegion(content, reply.offset, reply.length, true));
+    }
+
+    private OpenedBatch openBatch(List<String> names) {
+        List<String> results = new ArrayList<>(names.size());
+        List<Long> sizes = new ArrayList<>(names.size());
+        List<Content> contents = new ArrayList<>();
+        long crc = Checksum.of(new byte[0]);
+        long length = 0;
+        for (String name : names) {
+            long size = 0;
+            Content content = null;
+            try {
+                FileIndex.Entry entry = store.index().get(name);
+                content = store.openRead(name);
+                if (length + content.size() > MAX_BATCH_REPLY) {
+                    results.add("SKIPPED");
+                    content.close();
+                }
+                else {
+                    size = content.size();
+                    boolean known = entry != null && entry.size() == size && Checksum.isKnown(entry.crc());
+                    crc = Checksum.combine(crc, known ? entry.crc() : FileStore.checksum(content), size);
+                    length += size;
+                    contents.add(content);
+                    results.add("OK");
+                }
+            }
+            catch (NoSuchFileException e) {
+                results.add("NOT_FOUND");
+            }
+            catch (IOException e) {
+                results.add("I/O error: " + e.getMessage());
+                size = 0;
+                closeQuietly(content);
+            }
+            sizes.add(size);
+        }
+        return new OpenedBatch(results, sizes, contents, crc, length);
+    }
+
+    private static byte[] compressBatch(OpenedBatch batch) throws IOException {
+        byte[] data = new byte[(int) batch.length()];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (Content content : batch.contents()) {
+            readFully(content, buffer.slice(buffer.position(), (int) content.size()), 0);
+            buffer.position(buffer.position() + (int) content.size());
+        }
+        if (!Compression.worthCompressing(data, 0, Math.min(data.length, Compression.SAMPLE_SIZE))) {
+            return null;
+        }
+        return Compression.deflate(data, 0, data.length);
+    }
+
+    private void sendBatch(JsonProtocol reply, OpenedBatch batch) {
+        reply.id = requestId;
+        ByteBuffer header = ProtocolWriter.buildHeader(pool, codec, reply, batch.length());
+        endRequest(header.remaining() + batch.length(), reply.status);
+        enqueue(new PendingWrite.Buffer(header, pool));
+        for (Content content : batch.contents()) {
+            enqueue(new PendingWrite.FileRegion(content, 0, content.size(), true));
+        }
+    }
+
+    private static void closeQuietly(Content content) {
+        if (content == null) {
+            return;
+        }
+        try {
+            content.close();
+        }
+        catch (IOException ignored) {}
+    }
+
+    private static byte[] compressRange(Content content, long offset, int count) throws IOException {
+        int sampleLength = Math.min(count, Compression.SAMPLE_SIZE);
+        ByteBuffer sample = ByteBuffer.allocate(sampleLength);
+        readFully(content, sample, offset + (count - sampleLength) / 2);
+        if (!Compression.worthCompressing(sample.array(), 0, sampleLength)) {
+            return null;
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(count);
+        readFully(content, data, offset);
+        return Compression.deflate(data.array(), 0, count);
+    }
+
+    private static void readFully(Content content, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (content.read(dst, position + dst.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + dst.position()));
+            }
+        }
+    }
+
+    private <T> void offload(Callable<T> task, Completion<T> completion) {
+        long id = requestId;
+        boolean serial = serialRequest;
+        Operation op = requestOp;
+        long started = requestStarted;
+        requestOp = null;
+        inFlight++;
+        if (serial) {
+            serialInFlight++;
+        }
+        updateInterest();
+
+        loop.storageExecutor().execute(() -> {
+            T result = null;
+            Exception error = null;
+            try {
+                result = task.call();
+            }
+            catch (Exception e) {
+                error = e;
+            }
+
+            T finalResult = result;
+            Exception finalError = error;
+            loop.execute(this, () -> complete(completion, finalResult, finalError, id, serial, op, started));
+        });
+    }
+
+    private <T> void complete(Completion<T> completion, T result, Exception error, long id, boolean serial,
+            Operation op, long started) {
+        inFlight--;
+        if (serial) {
+            serialInFlight--;
+        }
+        if (closed) {
+            if (result instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                }
+                catch (Exception ignored) {}
+            }
+            if (inFlight == 0) {
+                releaseBuffers();
+                unreserve(reservedBytes);
+                loop.onDrained();
+            }
+            return;
+        }
+
+        long savedId = requestId;
+        boolean savedSerial = serialRequest;
+        Operation savedOp = requestOp;
+        long savedStarted = requestStarted;
+        requestId = id;
+        serialRequest = serial;
+        requestOp = op;
+        requestStarted = started;
+        try {
+            completion.accept(result, error);
+            updateInterest();
+        }
+        catch (IOException e) {
+            Log.info("[-] Client disconnected");
+            try {
+                close();
+            }
+            catch (IOException ignored) {}
+        }
+        finally {
+            requestId = savedId;
+            serialRequest = savedSerial;
+            requestOp = savedOp;
+            requestStarted = savedStarted;
+        }
+    }
+
+    private boolean readPaused() {
+        return serialInFlight > 0 || inFlight >= MAX_IN_FLIGHT || writeBlocked;
+    }
+
+    private void updateInterest() {
+        SelectionKey key = channel.keyFor(selector);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        int ops = 0;
+        if (!readPaused()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!outgoing.isEmpty() || !streams.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void sendReply(JsonProtocol reply) {
+        sendReply(reply, null);
+    }
+
+    private void sendReply(JsonProtocol reply, byte[] binary) {
+        reply.id = requestId;
+        if (binary == null) {
+            ByteBuffer packet = ProtocolWriter.buildPacket(pool, codec, reply, null);
+            endRequest(packet.remaining(), reply.status);
+            enqueue(new PendingWrite.Buffer(packet, pool));
+            return;
+        }
+        ByteBuffer header = ProtocolWriter.buildHeader(pool, codec, reply, binary.length);
+        endRequest(header.remaining() + binary.length, reply.status);
+        enqueue(new PendingWrite.Buffer(header, pool));
+        enqueue(new PendingWrite.Buffer(ByteBuffer.wrap(binary)));
+    }
+
+    private void enqueue(PendingWrite write) {
+        if (closed) {
+            write.release();
+            return;
+        }
+        queue(write);
+        loop.metrics().onQueued(outgoing.size());
+        updateInterest();
+    }
+
+    private void queue(PendingWrite write) {
+        outgoing.add(write);
+        reservedBytes += write.footprint();
+        loop.budget().charge(write.footprint());
+        addQueued(write.remaining());
+    }
+
+    private void release(PendingWrite write) {
+        unreserve(write.footprint());
+        write.release();
+    }
+
+    private void addQueued(long bytes) {
+        queuedBytes += bytes;
+        if (!writeBlocked && queuedBytes >= HIGH_WATERMARK) {
+            writeBlocked = true;
+            loop.metrics().onWriteBlocked();
+            Log.debug(() -> "[*] " + queuedBytes + " bytes queued, pausing reads");
+        }
+    }
+
+    private void onSent(long bytes) {
+        queuedBytes -= bytes;
+        if (writeBlocked && queuedBytes <= LOW_WATERMARK) {
+            writeBlocked = false;
+            Log.debug(() -> "[*] " + queuedBytes + " bytes queued, resuming reads");
+        }
+    }
+
+    private boolean reserve(long bytes, boolean required) {
+        MemoryBudget budget = loop.budget();
+        if (!(required ? budget.reserve(bytes) : budget.tryReserve(bytes))) {
+            return false;
+        }
+        reservedBytes += bytes;
+        return true;
+    }
+
+    private void unreserve(long bytes) {
+        reservedBytes -= bytes;
+        loop.budget().release(bytes);
+    }
+
+    public void sendList() {
+        if (requestId == 0) {
+            ByteBuffer packet = loop.listCache().packet(codec);
+            endRequest(packet.remaining(), "OK");
+            enqueue(new PendingWrite.Buffer(packet));
+            return;
+        }
+
+        FileIndex.Snapshot snapshot = store.index().snapshot();
+        JsonProtocol reply = new JsonProtocol();
+        reply.operation = Operation.LIST_REPLY;
+        reply.status = "OK";
+        reply.message = "File list retrieved";
+        reply.files = snapshot.names();
+        reply.seq = snapshot.version();
+        sendReply(reply);
+    }
+
+    void publishChanges() {
+        if (closed || !subscribed) {
+            return;
+        }
+        if (!outgoing.isEmpty()) {
+            changesPending = true;
+            return;
+        }
+        changesPending = false;
+
+        FileIndex.Changes changes = store.index().changesSince(subscribedSeq);
+        if (changes != null && changes.version() == subscribedSeq) {
+            return;
+        }
+        long since = subscribedSeq;
+        subscribedSeq = changes != null ? changes.version() : store.index().version();
+        long savedId = requestId;
+        Operation savedOp = requestOp;
+        requestId = 0;
+        requestOp = null;
+        sendChanges(since, changes);
+        requestId = savedId;
+        requestOp = savedOp;
+    }
+
+    private void sendChanges(long since, FileIndex.Changes changes) {
+        JsonProtocol reply = new JsonProtocol();
+        reply.operation = Operation.LIST_CHANGES_REPLY;
+        if (changes == null) {
+            reply.status = "RESET";
+            reply.message = "Change journal no longer covers " + since;
+        }
+        else {
+            reply.status = "OK";
+            reply.message = "Changes since " + since;
+            reply.files = changes.updated();
+            reply.removed = changes.removed();
+            reply.seq = changes.version();
+        }
+        sendReply(reply);
+    }
+
+    private void sendError(String message, Operation op) {
+        sendError(message, op, null);
+    }
+
+    private void sendError(String message, Operation op, String fileName) {
+        JsonProtocol error = new JsonProtocol();
+        error.operation = op;
+        error.fileName = fileName;
+        error.status = "FAIL";
+        error.message = message;
+
+        sendReply(error);
+        Log.warn("[-] " + message);
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        loop.onClosed(this);
+        abortUpload();
+        while (!outgoing.isEmpty()) {
+            release(outgoing.poll());
+        }
+        while (!streams.isEmpty()) {
+            streams.poll().close();
+        }
+        queuedBytes = 0;
+        if (inFlight > 0) {
+            loop.onDrainStarted();
+        }
+        else {
+            releaseBuffers();
+            unreserve(reservedBytes);
+            loop.checkLeaks();
+        }
+        channel.close();
+    }
+
+    private void releaseMetadata() {
+        if (jsonLength > RESERVED_METADATA) {
+            unreserve(jsonLength);
+        }
+        pool.release(jsonBuffer);
+        jsonBuffer = null;
+    }
+
+    private void releaseBuffers() {
+        if (jsonBuffer != null) {
+            releaseMetadata();
+        }
+        if (transferBuffer != null) {
+            pool.release(transferBuffer);
+            transferBuffer = null;
+        }
+    }
+
+    private record Signatures(long size, int blockSize, byte[] data) {}
+
+    private static final class DownloadStream {
+        final long id;
+        final String fileName;
+        final Content content;
+        final long crc;
+        long position;
+        long remaining;
+
+        DownloadStream(long id, String fileName, Content content, long crc, long position, long remaining) {
+            this.id = id;
+            this.fileName = fileName;
+            this.content = content;
+            this.crc = crc;
+            this.position = position;
+            this.remaining = remaining;
+        }
+
+        void close() {
+            try {
+                content.close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+
+    private record OpenedUpload(Path temp, FileChannel channel) implements AutoCloseable {
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private record OpenedDownload(Content content, long crc) implements AutoCloseable {
+        @Override
+        public void close() {
+            closeQuietly(content);
+        }
+    }
+
+    private record CompressedRange(Content content, byte[] packed) implements AutoCloseable {
+        @Override
+        public void close() {
+            closeQuietly(content);
+        }
+    }
+
+    private record CompressedBatch(OpenedBatch batch, byte[] packed) implements AutoCloseable {
+        @Override
+        public void close() {
+            batch.close();
+        }
+    }
+
+    private record OpenedBatch(List<String> results, List<Long> sizes, List<Content> contents, long crc, long length)
+            implements AutoCloseable {
+        @Override
+        public void close() {
+            for (Content content : contents) {
+                closeQuietly(content);
+            }
+        }
+    }
+
+    private interface Completion<T> {
+        void accept(T result, Exception error) throws IOException;
+    }
+}
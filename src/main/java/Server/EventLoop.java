@@ -0,0 +1,266 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import Protocol.BufferPool;
+import Protocol.Log;
+import Storage.FileStore;
+
+public class EventLoop implements Runnable {
+    private final int id;
+    private final Selector selector;
+    private final FileStore store;
+    private final ExecutorService storageExecutor;
+    private final ListCache listCache;
+    private final ServerStats stats;
+    private final MemoryBudget budget;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<ClientHandler> subscribers = new LinkedHashSet<>();
+    private final BufferPool pool = new BufferPool();
+    private final Metrics metrics = new Metrics();
+    private int draining = 0;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    EventLoop(int id, FileStore store, ExecutorService storageExecutor, ListCache listCache, ServerStats stats,
+            MemoryBudget budget) throws IOException {
+        this.id = id;
+        this.selector = Selector.open();
+        this.store = store;
+        this.storageExecutor = storageExecutor;
+        this.listCache = listCache;
+        this.stats = stats;
+        this.budget = budget;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "reactor-" + id);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void register(SocketChannel clientChannel) {
+        connections.incrementAndGet();
+        accepted.increment();
+        pendingChannels.add(clientChannel);
+        selector.wakeup();
+    }
+
+    public void execute(Runnable task) {
+        execute(null, task);
+    }
+
+    void execute(ClientHandler owner, Runnable task) {
+        tasks.add(new Task(owner, task));
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                registerPending();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    ClientHandler handler = (ClientHandler) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            handler.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handler.handleWrite();
+                        }
+                    }
+                    catch (IOException e) {
+                        Log.info("[-] Client disconnected");
+                        disconnect(handler);
+                        key.cancel();
+                    }
+                    catch (RuntimeException e) {
+                        Log.warn("[-] Protocol error, disconnecting: " + e);
+                        disconnect(handler);
+                        key.cancel();
+                    }
+                }
+            }
+            catch (IOException e) {
+                Log.warn("[-] Reactor " + id + " error: " + e.getMessage());
+            }
+            catch (RuntimeException e) {
+                Log.warn("[-] Reactor " + id + " unexpected error: " + e);
+            }
+        }
+    }
+
+    private void registerPending() throws IOException {
+        SocketChannel clientChannel;
+        while ((clientChannel = pendingChannels.poll()) != null) {
+            ClientHandler handler = new ClientHandler(clientChannel, this);
+            try {
+                clientChannel.register(selector, SelectionKey.OP_READ, handler);
+                handler.sendList();
+            }
+            catch (IOException | RuntimeException e) {
+                Log.warn("[-] Failed to register client: " + e);
+                disconnect(handler);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.action().run();
+            }
+            catch (RuntimeException e) {
+                Log.warn("[-] Reactor " + id + " task failed: " + e);
+                if (task.owner() != null) {
+                    disconnect(task.owner());
+                }
+            }
+        }
+    }
+
+    private static void disconnect(ClientHandler handler) {
+        try {
+            handler.close();
+        }
+        catch (IOException | RuntimeException e) {
+            Log.warn("[-] Failed to close client: " + e);
+        }
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    FileStore store() {
+        return store;
+    }
+
+    ExecutorService storageExecutor() {
+        return storageExecutor;
+    }
+
+    ListCache listCache() {
+        return listCache;
+    }
+
+    BufferPool pool() {
+        return pool;
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    ServerStats stats() {
+        return stats;
+    }
+
+    MemoryBudget budget() {
+        return budget;
+    }
+
+    void onDrainStarted() {
+        draining++;
+    }
+
+    void onDrained() {
+        draining--;
+        checkLeaks();
+    }
+
+    void checkLeaks() {
+        if (BufferPool.DEBUG && draining == 0 && connections.get() == 0 && pool.getOutstanding() > 0) {
+            pool.reportLeaks("reactor-" + id);
+        }
+    }
+
+    void onBytesRead(long count) {
+        bytesRead.add(count);
+    }
+
+    void onBytesWritten(long count) {
+        bytesWritten.add(count);
+    }
+
+    void onClosed(ClientHandler handler) {
+        connections.decrementAndGet();
+        subscribers.remove(handler);
+    }
+
+    void subscribe(ClientHandler handler) {
+        subscribers.add(handler);
+    }
+
+    void publishChanges() {
+        for (ClientHandler handler : List.copyOf(subscribers)) {
+            try {
+                handler.publishChanges();
+            }
+            catch (RuntimeException e) {
+                Log.warn("[-] Failed to publish changes, disconnecting: " + e);
+                disconnect(handler);
+            }
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    private record Task(ClientHandler owner, Runnable action) {}
+
+    @Override
+    public String toString() {
+        return "reactor-" + id + ": " + getConnections() + " connections, " + getAccepted() + " accepted, "
+                + getBytesRead() + " bytes in, " + getBytesWritten() + " bytes out, buffers " + pool;
+    }
+}
@@ -0,0 +1,62 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+final class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long value) {
+        counts.incrementAndGet(bucket(Math.max(value, 0)));
+    }
+
+    void addTo(long[] totals) {
+        for (int i = 0; i < BUCKETS; i++) {
+            totals[i] += counts.get(i);
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    static long count(long[] totals) {
+        long count = 0;
+        for (long value : totals) {
+            count += value;
+        }
+        return count;
+    }
+
+    static long percentile(long[] totals, double quantile) {
+        long count = count(totals);
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < totals.length; i++) {
+            seen += totals[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(totals.length - 1);
+    }
+}
@@ -0,0 +1,39 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import Protocol.JsonProtocol;
+import Protocol.MetadataCodec;
+import Protocol.Operation;
+import Protocol.ProtocolWriter;
+import Storage.FileIndex;
+
+final class ListCache {
+    private record Cached(long version, ByteBuffer packet) {}
+
+    private final FileIndex index;
+    private final Map<MetadataCodec, Cached> packets = new ConcurrentHashMap<>();
+
+    ListCache(FileIndex index) {
+        this.index = index;
+    }
+
+    ByteBuffer packet(MetadataCodec codec) {
+        FileIndex.Snapshot snapshot = index.snapshot();
+        Cached cached = packets.get(codec);
+        if (cached == null || cached.version() < snapshot.version()) {
+            JsonProtocol reply = new JsonProtocol();
+            reply.operation = Operation.LIST_REPLY;
+            reply.status = "OK";
+            reply.message = "File list retrieved";
+            reply.files = snapshot.names();
+            reply.seq = snapshot.version();
+
+            Cached built = new Cached(snapshot.version(), ProtocolWriter.buildPacket(codec, reply, null));
+            cached = packets.merge(codec, built, (old, fresh) -> old.version() >= fresh.version() ? old : fresh);
+        }
+        return cached.packet().duplicate();
+    }
+}
@@ -0,0 +1,74 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import Storage.LoadBudget;
+
+final class MemoryBudget implements LoadBudget {
+    private final long limit;
+    private final long high;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    MemoryBudget(long limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + limit);
+        }
+        this.limit = limit;
+        this.high = limit - limit / 4;
+    }
+
+    boolean reserve(long bytes) {
+        return reserve(bytes, limit);
+    }
+
+    @Override
+    public boolean tryReserve(long bytes) {
+        return reserve(bytes, high);
+    }
+
+    void charge(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    private boolean reserve(long bytes, long ceiling) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > ceiling) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    @Override
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    boolean isExhausted() {
+        return used.get() >= limit;
+    }
+
+    void onShed() {
+        shed.incrementAndGet();
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    long getUsed() {
+        return used.get();
+    }
+
+    long getShed() {
+        return shed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "memory " + (getUsed() >> 10) + " of " + (limit >> 10) + " KB queued, " + getShed() + " requests shed";
+    }
+}
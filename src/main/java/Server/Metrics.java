@@ -0,0 +1,73 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import Protocol.Operation;
+
+final class Metrics {
+    private static final int OPERATIONS = Operation.values().length;
+
+    private final AtomicLongArray requests = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray errors = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray bytesIn = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray bytesOut = new AtomicLongArray(OPERATIONS);
+    private final Histogram[] serviceTimes = new Histogram[OPERATIONS];
+    private final Histogram queueDepth = new Histogram();
+    private final AtomicLong writeBlocks = new AtomicLong();
+
+    Metrics() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            serviceTimes[i] = new Histogram();
+        }
+    }
+
+    void onRequest(Operation op, long bytes) {
+        requests.incrementAndGet(op.ordinal());
+        bytesIn.addAndGet(op.ordinal(), bytes);
+    }
+
+    void onReply(Operation op, long bytes, long nanos, boolean failed) {
+        bytesOut.addAndGet(op.ordinal(), bytes);
+        serviceTimes[op.ordinal()].record(nanos);
+        if (failed) {
+            errors.incrementAndGet(op.ordinal());
+        }
+    }
+
+    void onQueued(int depth) {
+        queueDepth.record(depth);
+    }
+
+    void onWriteBlocked() {
+        writeBlocks.incrementAndGet();
+    }
+
+    long getWriteBlocks() {
+        return writeBlocks.get();
+    }
+
+    long getRequests(Operation op) {
+        return requests.get(op.ordinal());
+    }
+
+    long getErrors(Operation op) {
+        return errors.get(op.ordinal());
+    }
+
+    long getBytesIn(Operation op) {
+        return bytesIn.get(op.ordinal());
+    }
+
+    long getBytesOut(Operation op) {
+        return bytesOut.get(op.ordinal());
+    }
+
+    void addServiceTimes(Operation op, long[] totals) {
+        serviceTimes[op.ordinal()].addTo(totals);
+    }
+
+    void addQueueDepths(long[] totals) {
+        queueDepth.addTo(totals);
+    }
+}
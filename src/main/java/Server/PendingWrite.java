@@ -0,0 +1,113 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import Protocol.BufferPool;
+import Storage.Content;
+
+abstract class PendingWrite {
+    abstract long writeTo(SocketChannel channel, long max) throws IOException;
+
+    abstract boolean isDone();
+
+    abstract long remaining();
+
+    long footprint() {
+        return 0;
+    }
+
+    void release() {}
+
+    static final class Buffer extends PendingWrite {
+        private final ByteBuffer buffer;
+        private BufferPool pool;
+
+        Buffer(ByteBuffer buffer) {
+            this(buffer, null);
+        }
+
+        Buffer(ByteBuffer buffer, BufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+        }
+
+        ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        long writeTo(SocketChannel channel, long max) throws IOException {
+            return channel.write(buffer);
+        }
+
+        @Override
+        boolean isDone() {
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        long remaining() {
+            return buffer.remaining();
+        }
+
+        @Override
+        long footprint() {
+            return buffer.capacity();
+        }
+
+        @Override
+        void release() {
+            if (pool != null) {
+                pool.release(buffer);
+                pool = null;
+            }
+        }
+    }
+
+    static final class FileRegion extends PendingWrite {
+        private static final long MAX_STEP = 1024 * 1024;
+
+        private final Content file;
+        private final boolean closeWhenDone;
+        private long position;
+        private long remaining;
+
+        FileRegion(Content file, long position, long count, boolean closeWhenDone) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+            this.closeWhenDone = closeWhenDone;
+        }
+
+        @Override
+        long writeTo(SocketChannel channel, long max) throws IOException {
+            long sent = file.transferTo(position, Math.min(remaining, Math.min(max, MAX_STEP)), channel);
+            position += sent;
+            remaining -= sent;
+            return sent;
+        }
+
+        @Override
+        boolean isDone() {
+            return remaining == 0;
+        }
+
+        @Override
+        long remaining() {
+            return remaining;
+        }
+
+        @Override
+        void release() {
+            if (!closeWhenDone) {
+                return;
+            }
+            try {
+                file.close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+}
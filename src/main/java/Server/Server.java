@@ -1,71 +1,164 @@
-package Server;
-
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.channels.*;
-import java.util.*;
-
-public class Server {
-    private final int port;
-    private Selector selector;
-    private ServerSocketChannel serverChannel;
-
-    public Server(int port) {
-        this.port = port;
-    }
-
-    public void start() throws IOException {
-        selector = Selector.open();
-
-        serverChannel = ServerSocketChannel.open();
-        serverChannel.bind(new InetSocketAddress(port));
-        serverChannel.configureBlocking(false);
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-
-        System.out.println("[*] Server started on port " + port);
-
-        while (true) {
-            selector.select();
-
-            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-            while (keys.hasNext()) {
-                SelectionKey key = keys.next();
-                keys.remove();
-
-                if (!key.isValid()) {
-                    continue;
-                }
-
-                if (key.isAcceptable()) {
-                    SocketChannel clientChannel = serverChannel.accept();
-                    clientChannel.configureBlocking(false);
-                    ClientHandler handler = new ClientHandler(clientChannel, selector);
-                    clientChannel.register(selector, SelectionKey.OP_READ, handler);
-                    System.out.println("[+] New client: " + clientChannel.getRemoteAddress());
-                    handler.sendList();
-                }
-
-                else if (key.isReadable()) {
-                    ClientHandler handler = (ClientHandler) key.attachment();
-                    try {
-                        handler.read();
-                    }
-                    catch (IOException e) {
-                        System.out.println("[-] Client disconnected");
-                        handler.close();
-                        key.cancel();
-                    }
-                }
-
-                else if (key.isWritable()) {
-                    ClientHandler handler = (ClientHandler) key.attachment();
-                    handler.handleWrite();
-                }
-            }
-        }
-    }
-
-    public static void main(String[] args) throws IOException {
-        new Server(8888).start();
-    }
-}
\ No newline at end of file
+package Server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import Protocol.Log;
+import Storage.FileStore;
+
+public class Server {
+    private final int port;
+    private final int reactorCount;
+    private final FileStore store;
+    private final ServerStats stats;
+    private final MemoryBudget budget = new MemoryBudget(Long.getLong("dropbox.memory.mb", 256) * 1024 * 1024);
+    private final ExecutorService storageExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private final List<EventLoop> loops = new ArrayList<>();
+    private int nextLoop = 0;
+
+    public Server(int port) {
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Server(int port, int reactorCount) {
+        this(port, reactorCount, storageRoot());
+    }
+
+    public Server(int port, int reactorCount, Path storageRoot) {
+        if (reactorCount < 1) {
+            throw new IllegalArgumentException("Reactor count must be positive: " + reactorCount);
+        }
+        this.port = port;
+        this.reactorCount = reactorCount;
+        this.store = FileStore.open(storageRoot);
+        this.store.setLoadBudget(budget);
+        this.stats = new ServerStats(loops, store, budget);
+    }
+
+    public void start() throws IOException {
+        store.watch();
+        ListCache listCache = new ListCache(store.index());
+        for (int i = 0; i < reactorCount; i++) {
+            EventLoop loop = new EventLoop(i, store, storageExecutor, listCache, stats, budget);
+            loops.add(loop);
+            loop.start();
+        }
+        store.index().setListener(new ChangeNotifier(getLoops()));
+        registerStats();
+        startStatsDump(Long.getLong("dropbox.stats.interval", 60));
+
+        selector = Selector.open();
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        Log.info("[*] Server started on port " + port + " with " + reactorCount + " reactors");
+
+        while (true) {
+            selector.select();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid() || !key.isAcceptable()) {
+                    continue;
+                }
+
+                SocketChannel clientChannel = serverChannel.accept();
+                if (clientChannel == null) {
+                    continue;
+                }
+                clientChannel.configureBlocking(false);
+                EventLoop loop = pickLoop();
+                Log.info("[+] New client: " + clientChannel.getRemoteAddress() + " -> reactor-" + loop.getId());
+                loop.register(clientChannel);
+            }
+        }
+    }
+
+    private void registerStats() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName("dropbox:type=Server,port=" + port));
+        }
+        catch (JMException e) {
+            Log.warn("[-] Failed to register JMX stats: " + e.getMessage());
+        }
+    }
+
+    private void startStatsDump(long intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                Log.info(stats.summary());
+            }
+        }, "stats-dump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private EventLoop pickLoop() {
+        EventLoop best = null;
+        for (int i = 0; i < loops.size(); i++) {
+            EventLoop loop = loops.get((nextLoop + i) % loops.size());
+            if (best == null || loop.getConnections() < best.getConnections()) {
+                best = loop;
+            }
+        }
+        nextLoop = (nextLoop + 1) % loops.size();
+        return best;
+    }
+
+    public List<EventLoop> getLoops() {
+        return Collections.unmodifiableList(loops);
+    }
+
+    public FileStore getStore() {
+        return store;
+    }
+
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    private static Path storageRoot() {
+        String root = System.getProperty("dropbox.storage");
+        if (root == null || root.isBlank()) {
+            throw new IllegalArgumentException(
+                    "Storage directory is not set, pass it as an argument or with -Ddropbox.storage");
+        }
+        return Path.of(root);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8888;
+        int reactors = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        if (args.length > 2) {
+            new Server(port, reactors, Path.of(args[2])).start();
+        }
+        else {
+            new Server(port, reactors).start();
+        }
+    }
+}
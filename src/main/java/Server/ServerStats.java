@@ -0,0 +1,179 @@
+package Server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import Protocol.Log;
+import Protocol.Operation;
+import Storage.FileStore;
+import Storage.ReadCache;
+
+public class ServerStats implements ServerStatsMXBean {
+    private final List<EventLoop> loops;
+    private final FileStore store;
+    private final MemoryBudget budget;
+
+    ServerStats(List<EventLoop> loops, FileStore store, MemoryBudget budget) {
+        this.loops = loops;
+        this.store = store;
+        this.budget = budget;
+    }
+
+    @Override
+    public int getConnections() {
+        int connections = 0;
+        for (EventLoop loop : loops) {
+            connections += loop.getConnections();
+        }
+        return connections;
+    }
+
+    @Override
+    public long getAccepted() {
+        long accepted = 0;
+        for (EventLoop loop : loops) {
+            accepted += loop.getAccepted();
+        }
+        return accepted;
+    }
+
+    @Override
+    public long getBytesIn() {
+        long bytes = 0;
+        for (EventLoop loop : loops) {
+            bytes += loop.getBytesRead();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesOut() {
+        long bytes = 0;
+        for (EventLoop loop : loops) {
+            bytes += loop.getBytesWritten();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getRequests() {
+        long requests = 0;
+        for (Operation op : Operation.values()) {
+            requests += requests(op);
+        }
+        return requests;
+    }
+
+    @Override
+    public long getErrors() {
+        long errors = 0;
+        for (Operation op : Operation.values()) {
+            for (EventLoop loop : loops) {
+                errors += loop.metrics().getErrors(op);
+            }
+        }
+        return errors;
+    }
+
+    private long requests(Operation op) {
+        long requests = 0;
+        for (EventLoop loop : loops) {
+            requests += loop.metrics().getRequests(op);
+        }
+        return requests;
+    }
+
+    private long[] serviceTimes(Operation op) {
+        long[] totals = new long[Histogram.BUCKETS];
+        for (EventLoop loop : loops) {
+            loop.metrics().addServiceTimes(op, totals);
+        }
+        return totals;
+    }
+
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new TreeMap<>();
+        stats.put("connections", (long) getConnections());
+        stats.put("accepted", getAccepted());
+        stats.put("bytes.in", getBytesIn());
+        stats.put("bytes.out", getBytesOut());
+        stats.put("requests", getRequests());
+        stats.put("errors", getErrors());
+
+        long[] depths = new long[Histogram.BUCKETS];
+        for (EventLoop loop : loops) {
+            loop.metrics().addQueueDepths(depths);
+        }
+        stats.put("queue.depth.p50", Histogram.percentile(depths, 0.5));
+        stats.put("queue.depth.p99", Histogram.percentile(depths, 0.99));
+        stats.put("queue.depth.max", Histogram.percentile(depths, 1.0));
+
+        long writeBlocks = 0;
+        for (EventLoop loop : loops) {
+            writeBlocks += loop.metrics().getWriteBlocks();
+        }
+        stats.put("memory.used", budget.getUsed());
+        stats.put("memory.limit", budget.getLimit());
+        stats.put("memory.shed", budget.getShed());
+        stats.put("memory.write.blocks", writeBlocks);
+
+        for (Operation op : Operation.values()) {
+            long requests = requests(op);
+            if (requests == 0) {
+                continue;
+            }
+            long errors = 0;
+            long bytesIn = 0;
+            long bytesOut = 0;
+            for (EventLoop loop : loops) {
+                errors += loop.metrics().getErrors(op);
+                bytesIn += loop.metrics().getBytesIn(op);
+                bytesOut += loop.metrics().getBytesOut(op);
+            }
+            long[] times = serviceTimes(op);
+            String prefix = "op." + op.name() + ".";
+            stats.put(prefix + "requests", requests);
+            stats.put(prefix + "errors", errors);
+            stats.put(prefix + "bytes.in", bytesIn);
+            stats.put(prefix + "bytes.out", bytesOut);
+            stats.put(prefix + "p50.us", Histogram.percentile(times, 0.5) / 1000);
+            stats.put(prefix + "p99.us", Histogram.percentile(times, 0.99) / 1000);
+            stats.put(prefix + "p999.us", Histogram.percentile(times, 0.999) / 1000);
+        }
+
+        ReadCache cache = store.cache();
+        stats.put("store.files", (long) store.index().size());
+        stats.put("cache.hits", cache.getHits());
+        stats.put("cache.misses", cache.getMisses());
+        stats.put("cache.bytes", cache.getBytes());
+        stats.put("cache.evictions", cache.getEvictions());
+        stats.put("cache.coalesced", cache.getCoalesced());
+        stats.put("segments.live.bytes", store.getSegmentLiveBytes());
+        stats.put("segments.total.bytes", store.getSegmentTotalBytes());
+        stats.put("log.dropped", Log.getDropped());
+        return stats;
+    }
+
+    String summary() {
+        StringBuilder text = new StringBuilder("[*] Stats: " + getConnections() + " connections, " + getRequests()
+                + " requests, " + getErrors() + " errors, " + getBytesIn() + " bytes in, " + getBytesOut() + " bytes out");
+        for (Operation op : Operation.values()) {
+            long requests = requests(op);
+            if (requests == 0) {
+                continue;
+            }
+            long[] times = serviceTimes(op);
+            text.append(String.format("%n    %-20s %10d requests  p50 %8.3f ms  p99 %8.3f ms  p999 %8.3f ms", op, requests,
+                    Histogram.percentile(times, 0.5) / 1e6, Histogram.percentile(times, 0.99) / 1e6,
+                    Histogram.percentile(times, 0.999) / 1e6));
+        }
+        for (EventLoop loop : loops) {
+            text.append(System.lineSeparator()).append("    ").append(loop);
+        }
+        text.append(System.lineSeparator()).append("    ").append(budget);
+        text.append(System.lineSeparator()).append("    ").append(store.cache());
+        return text.toString();
+    }
+}
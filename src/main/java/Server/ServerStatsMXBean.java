@@ -0,0 +1,19 @@
+package Server;
+
+import java.util.Map;
+
+public interface ServerStatsMXBean {
+    int getConnections();
+
+    long getAccepted();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getRequests();
+
+    long getErrors();
+
+    Map<String, Long> getStats();
+}
@@ -0,0 +1,206 @@
+package Storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import Protocol.Chunker;
+import Protocol.Log;
+
+public class BlockStore {
+    static final long LEASE = Long.getLong("dropbox.blocks.lease", 10 * 60_000L);
+
+    private final Path root;
+    private final Map<String, Integer> references = new HashMap<>();
+    private final Map<String, Long> leases = new HashMap<>();
+
+    public BlockStore(Path root) {
+        this.root = root;
+    }
+
+    public static boolean isValidHash(String hash) {
+        if (hash == null || hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Path path(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    public synchronized boolean has(String hash) {
+        return isValidHash(hash) && Files.isRegularFile(path(hash));
+    }
+
+    public synchronized List<String> missing(Collection<String> hashes) {
+        List<String> missing = new ArrayList<>();
+        long until = System.currentTimeMillis() + LEASE;
+        for (String hash : new LinkedHashSet<>(hashes)) {
+            if (has(hash)) {
+                leases.put(hash, until);
+            }
+            else {
+                missing.add(hash);
+            }
+        }
+        return missing;
+    }
+
+    public long length(String hash) throws IOException {
+        return Files.size(path(hash));
+    }
+
+    public void adopt(Path temp, String hash) throws IOException {
+        if (!isValidHash(hash)) {
+            throw new IOException("Invalid block hash: " + hash);
+        }
+
+        MessageDigest digest = Chunker.sha256();
+        try (InputStream in = Files.newInputStream(temp)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        if (!HexFormat.of().formatHex(digest.digest()).equals(hash)) {
+            Files.deleteIfExists(temp);
+            throw new IOException("Block content does not match hash " + hash);
+        }
+
+        place(temp, hash);
+    }
+
+    private synchronized void place(Path temp, String hash) throws IOException {
+        leases.put(hash, System.currentTimeMillis() + LEASE);
+        Path target = path(hash);
+        if (Files.exists(target)) {
+            Files.deleteIfExists(temp);
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    synchronized void retain(List<String> hashes) {
+        for (String hash : hashes) {
+            references.merge(hash, 1, Integer::sum);
+        }
+    }
+
+    synchronized long[] acquire(List<String> hashes) throws IOException {
+        long[] lengths = new long[hashes.size()];
+        for (int i = 0; i < hashes.size(); i++) {
+            String hash = hashes.get(i);
+            if (!has(hash)) {
+                throw new NoSuchFileException("Missing block " + hash);
+            }
+            lengths[i] = length(hash);
+        }
+        retain(hashes);
+        return lengths;
+    }
+
+    synchronized void release(List<String> hashes) {
+        for (String hash : hashes) {
+            Integer count = references.get(hash);
+            if (count == null) {
+                continue;
+            }
+            if (count > 1) {
+                references.put(hash, count - 1);
+                continue;
+            }
+            references.remove(hash);
+            if (leased(hash, System.currentTimeMillis())) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(path(hash));
+            }
+            catch (IOException ignored) {}
+        }
+    }
+
+    private boolean leased(String hash, long now) {
+        Long until = leases.get(hash);
+        if (until == null) {
+            return false;
+        }
+        if (until > now) {
+            return true;
+        }
+        leases.remove(hash);
+        return false;
+    }
+
+    int sweep() {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        int removed = 0;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(root)) {
+            for (Path prefix : prefixes) {
+                if (!Files.isDirectory(prefix)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(prefix)) {
+                    for (Path path : files) {
+                        if (sweep(path)) {
+                            removed++;
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.warn("[-] Failed to sweep blocks: " + e.getMessage());
+        }
+        if (removed > 0) {
+            Log.info("[*] Removed " + removed + " unreferenced blocks");
+        }
+        return removed;
+    }
+
+    private synchronized boolean sweep(Path path) {
+        String hash = path.getFileName().toString();
+        long now = System.currentTimeMillis();
+        if (!isValidHash(hash) || references.containsKey(hash) || leased(hash, now)) {
+            return false;
+        }
+        try {
+            if (Files.getLastModifiedTime(path).toMillis() > now - LEASE) {
+                return false;
+            }
+            return Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+}
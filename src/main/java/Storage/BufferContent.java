@@ -0,0 +1,40 @@
+package Storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+class BufferContent implements Content {
+    private final ByteBuffer data;
+
+    BufferContent(ByteBuffer data) {
+        this.data = data;
+    }
+
+    @Override
+    public long size() {
+        return data.capacity();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer slice = data.duplicate();
+        slice.limit((int) Math.min(slice.capacity(), position + count)).position((int) position);
+        return target.write(slice);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) {
+        if (position >= data.capacity()) {
+            return -1;
+        }
+        ByteBuffer slice = data.duplicate();
+        slice.position((int) position).limit((int) Math.min(slice.capacity(), position + dst.remaining()));
+        int count = slice.remaining();
+        dst.put(slice);
+        return count;
+    }
+
+    @Override
+    public void close() {}
+}
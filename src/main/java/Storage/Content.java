@@ -0,0 +1,16 @@
+package Storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public interface Content extends AutoCloseable {
+    long size();
+
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
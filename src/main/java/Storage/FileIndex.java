@@ -0,0 +1,157 @@
+package Storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import Protocol.Checksum;
+
+public class FileIndex {
+    public record Entry(String name, long size, long mtime, String hash, long crc) {}
+
+    public record Snapshot(long version, List<String> names) {}
+
+    public record Page(long version, List<String> names, List<Long> sizes, List<Long> mtimes, String next) {}
+
+    public record Changes(long version, List<String> updated, List<String> removed) {}
+
+    private record Change(long seq, String name, boolean removed) {}
+
+    private static final int JOURNAL_SIZE = 16384;
+
+    private final NavigableMap<String, Entry> entries = new TreeMap<>();
+    private final Deque<Change> journal = new ArrayDeque<>();
+    private long version = System.currentTimeMillis() * 1000;
+    private Snapshot snapshot;
+    private volatile Runnable listener;
+
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    public synchronized Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long version() {
+        return version;
+    }
+
+    public synchronized Snapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot(version, List.copyOf(entries.keySet()));
+        }
+        return snapshot;
+    }
+
+    public synchronized Page page(String after, String prefix, int limit) {
+        NavigableMap<String, Entry> view = entries;
+        if (prefix != null && (after == null || after.compareTo(prefix) < 0)) {
+            view = view.tailMap(prefix, true);
+        }
+        else if (after != null) {
+            view = view.tailMap(after, false);
+        }
+
+        List<String> names = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        List<Long> mtimes = new ArrayList<>();
+        for (Entry entry : view.values()) {
+            if (prefix != null && !entry.name().startsWith(prefix)) {
+                break;
+            }
+            if (names.size() == limit) {
+                return new Page(version, names, sizes, mtimes, names.get(names.size() - 1));
+            }
+            names.add(entry.name());
+            sizes.add(entry.size());
+            mtimes.add(entry.mtime());
+        }
+        return new Page(version, names, sizes, mtimes, null);
+    }
+
+    public synchronized Changes changesSince(long seq) {
+        if (seq > version) {
+            return null;
+        }
+        if (seq < version && (journal.isEmpty() || journal.peekFirst().seq() > seq + 1)) {
+            return null;
+        }
+
+        Map<String, Boolean> latest = new LinkedHashMap<>();
+        Iterator<Change> changes = journal.descendingIterator();
+        while (changes.hasNext()) {
+            Change change = changes.next();
+            if (change.seq() <= seq) {
+                break;
+            }
+            latest.putIfAbsent(change.name(), change.removed());
+        }
+
+        List<String> updated = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        latest.forEach((name, gone) -> (gone ? removed : updated).add(name));
+        return new Changes(version, updated, removed);
+    }
+
+    synchronized List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    synchronized List<String> names() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    synchronized void put(Entry entry) {
+        Entry old = entries.put(entry.name(), entry);
+        if (!entry.equals(old)) {
+            changed(entry.name(), false);
+        }
+    }
+
+    synchronized void update(String name, long size, long mtime) {
+        Entry old = entries.get(name);
+        if (old != null && old.size() == size && old.mtime() == mtime) {
+            return;
+        }
+        entries.put(name, new Entry(name, size, mtime, null, Checksum.NONE));
+        changed(name, false);
+    }
+
+    synchronized boolean setChecksum(Entry expected, long crc) {
+        if (entries.get(expected.name()) != expected) {
+            return false;
+        }
+        entries.put(expected.name(), new Entry(expected.name(), expected.size(), expected.mtime(), expected.hash(), crc));
+        return true;
+    }
+
+    synchronized void remove(String name) {
+        if (entries.remove(name) != null) {
+            changed(name, true);
+        }
+    }
+
+    private void changed(String name, boolean removed) {
+        version++;
+        snapshot = null;
+        journal.addLast(new Change(version, name, removed));
+        if (journal.size() > JOURNAL_SIZE) {
+            journal.removeFirst();
+        }
+        Runnable current = listener;
+        if (current != null) {
+            current.run();
+        }
+    }
+}
@@ -0,0 +1,1094 @@
+package Storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+import Protocol.Checksum;
+import Protocol.Chunker;
+import Protocol.Delta;
+import Protocol.Log;
+
+public class FileStore {
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final long COMPACT_INTERVAL = 60_000;
+    private static final long CHECKPOINT_SIZE = 4L * 1024 * 1024;
+    private static final long CHECKPOINT_INTERVAL = 10_000;
+    private static final int FORCE_PARALLELISM = 32;
+    private static final long SWEEP_INTERVAL = 60_000;
+    private static final long BLOCK_SWEEP_INTERVAL = 15 * 60_000;
+    private static final long MAX_FILE_SIZE = Long.getLong("dropbox.max.file.mb", 64 * 1024) * 1024 * 1024;
+    private static final long RANGED_IDLE = Long.getLong("dropbox.ranged.idle", 30 * 60_000L);
+
+    private final Path root;
+    private final Path partialDir;
+    private final Path manifestDir;
+    private final BlockStore blocks;
+    private final FileIndex index = new FileIndex();
+    private final Map<String, RangedUpload> rangedUploads = new ConcurrentHashMap<>();
+    private final ReadCache cache = new ReadCache(Long.getLong("dropbox.cache.mb", 128) * 1024 * 1024);
+    private final SegmentStore segments;
+    private final MetadataJournal journal;
+    private boolean recovered;
+    private volatile LoadBudget loadBudget = LoadBudget.UNLIMITED;
+    private final long segmentThreshold = Math.min(Long.getLong("dropbox.segments.threshold", 64 * 1024), SEGMENT_SIZE / 4);
+
+    private FileStore(Path root) {
+        this.root = root;
+        this.partialDir = root.resolve(".partial");
+        this.manifestDir = root.resolve(".manifests");
+        this.blocks = new BlockStore(root.resolve(".blocks"));
+        this.segments = Boolean.getBoolean("dropbox.segments") ? new SegmentStore(root.resolve(".segments"), SEGMENT_SIZE) : null;
+        this.journal = new MetadataJournal(root.resolve(".journal"));
+    }
+
+    public static FileStore open(Path root) {
+        FileStore store = new FileStore(root);
+        store.recover();
+        store.startCheckpointer();
+        store.startSweeper();
+        if (store.segments != null) {
+            store.segments.startCompactor(COMPACT_INTERVAL);
+        }
+        return store;
+    }
+
+    private void recover() {
+        long started = System.nanoTime();
+        MetadataJournal.Recovery recovery;
+        try {
+            recovery = journal.recover();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the metadata journal", e);
+        }
+        this.recovered = recovery.found();
+        loadManifests(!recovered);
+        loadSegments(!recovered);
+        if (recovered) {
+            replay(recovery);
+        }
+        else {
+            scanFiles();
+        }
+        cleanPartials();
+        try {
+            checkpoint();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Failed to write a metadata snapshot", e);
+        }
+        Log.info("[*] Loaded " + index.size() + " files" + (recovered ? " from " + recovery.records()
+                + " journal records" : " from a directory scan") + " in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    private void loadSegments(boolean indexed) {
+        if (segments == null) {
+            return;
+        }
+        try {
+            Map<String, SegmentStore.Location> packed = segments.load();
+            if (indexed) {
+                packed.forEach((name, location) ->
+                        index.put(new FileIndex.Entry(name, location.length(), location.mtime(), null, Checksum.NONE)));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            Log.warn("[-] Failed to load segments: " + e.getMessage());
+        }
+    }
+
+    private synchronized void replay(MetadataJournal.Recovery recovery) {
+        recovery.begun().forEach((temp, name) -> {
+            if (!recovery.state().containsKey(name) || !temp.equals(recovery.state().get(name).temp())) {
+                Log.info("[*] Discarding unfinished upload of " + name);
+            }
+        });
+
+        for (MetadataJournal.Record record : recovery.state().values()) {
+            try {
+                if (record.type() == MetadataJournal.DELETE) {
+                    remove(record.name());
+                    continue;
+                }
+                Path temp = record.temp() == null ? null : partialDir.resolve(record.temp());
+                if (temp == null || !Files.exists(temp)) {
+                    index.put(record.entry());
+                }
+                else if (record.temp().endsWith(".batch")) {
+                    try (FileChannel batch = FileChannel.open(temp, StandardOpenOption.READ)) {
+                        installSlice(batch, record.offset(), record.name(), record.size(), record.mtime(), record.crc());
+                    }
+                    if (segments != null) {
+                        segments.sync();
+                    }
+                }
+                else if (record.temp().endsWith(".manifest")) {
+                    Manifest manifest = Manifest.read(temp);
+                    blocks.retain(manifest.hashes);
+                    installManifest(temp, record.name(), manifest, record.mtime());
+                }
+                else {
+                    install(temp, record.name(), record.size(), record.mtime(), record.hash(), record.crc());
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                Log.warn("[-] Failed to recover " + record.name() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void cleanPartials() {
+        if (!Files.isDirectory(partialDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(partialDir)) {
+            for (Path path : files) {
+                if (!path.getFileName().toString().endsWith(".resume")) {
+                    discard(path);
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.warn("[-] Failed to clean partial uploads: " + e.getMessage());
+        }
+    }
+
+    private synchronized void checkpoint() throws IOException {
+        journal.checkpoint(index.entries());
+    }
+
+    private void startCheckpointer() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(CHECKPOINT_INTERVAL);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    if (journal.size() > CHECKPOINT_SIZE) {
+                        checkpoint();
+                    }
+                }
+                catch (IOException e) {
+                    Log.warn("[-] Failed to checkpoint the metadata journal: " + e.getMessage());
+                }
+            }
+        }, "journal-checkpoint");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void startSweeper() {
+        Thread thread = new Thread(() -> {
+            long swept = System.currentTimeMillis();
+            while (true) {
+                try {
+                    Thread.sleep(SWEEP_INTERVAL);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                expireRanged(System.currentTimeMillis());
+                if (System.currentTimeMillis() - swept >= BLOCK_SWEEP_INTERVAL) {
+                    blocks.sweep();
+                    swept = System.currentTimeMillis();
+                }
+            }
+        }, "storage-sweeper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean isPacked(String fileName) {
+        return segments != null && segments.contains(fileName);
+    }
+
+    private void loadManifests(boolean indexed) {
+        if (!Files.isDirectory(manifestDir)) {
+            return;
+        }
+        try (Stream<Path> manifests = Files.list(manifestDir)) {
+            for (Path path : (Iterable<Path>) manifests::iterator) {
+                try {
+                    Manifest manifest = Manifest.read(path);
+                    blocks.retain(manifest.hashes);
+                    if (!indexed) {
+                        continue;
+                    }
+                    String name = path.getFileName().toString();
+                    index.put(new FileIndex.Entry(name, manifest.size, Files.getLastModifiedTime(path).toMillis(), null,
+                            Checksum.NONE));
+                }
+                catch (IOException | RuntimeException e) {
+                    Log.warn("[-] Skipping unreadable manifest " + path.getFileName() + ": " + e.getMessage());
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.warn("[-] Failed to load manifests: " + e.getMessage());
+        }
+    }
+
+    private synchronized void scanFiles() {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Set<String> seen = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root)) {
+            for (Path path : files) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        String name = path.getFileName().toString();
+                        seen.add(name);
+                        index.update(name, attributes.size(), attributes.lastModifiedTime().toMillis());
+                    }
+                }
+                catch (IOException ignored) {}
+            }
+        }
+        catch (IOException e) {
+            Log.warn("[-] Failed to scan storage: " + e.getMessage());
+            return;
+        }
+
+        for (String name : index.names()) {
+            if (!seen.contains(name) && !Files.isRegularFile(manifestDir.resolve(name)) && !isPacked(name)) {
+                index.remove(name);
+            }
+        }
+    }
+
+    public void watch() throws IOException {
+        Files.createDirectories(root);
+        WatchService watcher = root.getFileSystem().newWatchService();
+        root.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        if (!recovered) {
+            scanFiles();
+        }
+
+        Thread thread = new Thread(() -> {
+            if (recovered) {
+                scanFiles();
+            }
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                }
+                catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scanFiles();
+                    }
+                    else if (event.context() instanceof Path name) {
+                        refresh(name.toString());
+                    }
+                }
+                if (!key.reset()) {
+                    Log.warn("[-] Storage directory is no longer watched");
+                    return;
+                }
+            }
+        }, "storage-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized void refresh(String fileName) {
+        Path path = root.resolve(fileName);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isRegularFile()) {
+                index.update(fileName, attributes.size(), attributes.lastModifiedTime().toMillis());
+            }
+            return;
+        }
+        catch (IOException ignored) {}
+
+        if (!Files.isRegularFile(manifestDir.resolve(fileName)) && !isPacked(fileName)) {
+            index.remove(fileName);
+            cache.invalidate(fileName);
+        }
+    }
+
+    public FileIndex index() {
+        return index;
+    }
+
+    public BlockStore blocks() {
+        return blocks;
+    }
+
+    public ReadCache cache() {
+        return cache;
+    }
+
+    public void setLoadBudget(LoadBudget budget) {
+        this.loadBudget = budget;
+    }
+
+    public long getSegmentLiveBytes() {
+        return segments != null ? segments.getLiveBytes() : 0;
+    }
+
+    public long getSegmentTotalBytes() {
+        return segments != null ? segments.getTotalBytes() : 0;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Path resolve(String fileName) throws IOException {
+        if (fileName == null || fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")
+                || fileName.indexOf('/') >= 0 || fileName.indexOf('\\') >= 0 || fileName.indexOf('\0') >= 0) {
+            throw new IOException("Invalid file name: " + fileName);
+        }
+        return root.resolve(fileName);
+    }
+
+    public List<String> list() {
+        return index.snapshot().names();
+    }
+
+    public Path createTemp() throws IOException {
+        Files.createDirectories(partialDir);
+        Path temp = partialDir.resolve(UUID.randomUUID() + ".part");
+        Files.createFile(temp);
+        return temp;
+    }
+
+    public Path createTemp(String fileName) throws IOException {
+        Path temp = createTemp();
+        if (fileName != null) {
+            journal.append(MetadataJournal.Record.begin(fileName, temp.getFileName().toString()));
+        }
+        return temp;
+    }
+
+    public void commit(Path temp, String fileName) throws IOException {
+        commit(temp, fileName, null, Checksum.NONE);
+    }
+
+    public void commit(Path temp, String fileName, long crc) throws IOException {
+        commit(temp, fileName, null, crc);
+    }
+
+    private void commit(Path temp, String fileName, String hash, long crc) throws IOException {
+        resolve(fileName);
+        force(temp);
+        long size = Files.size(temp);
+        long mtime = System.currentTimeMillis();
+        long seq = journal.append(MetadataJournal.Record.commit(fileName, temp.getFileName().toString(), size, mtime, hash,
+                crc));
+        journal.await(seq);
+        synchronized (this) {
+            if (!journal.claim(fileName, seq)) {
+                discard(temp);
+                return;
+            }
+            install(temp, fileName, size, mtime, hash, crc);
+        }
+    }
+
+    private void install(Path temp, String fileName, long size, long mtime, String hash, long crc) throws IOException {
+        Path path = resolve(fileName);
+        if (packs(size)) {
+            segments.put(fileName, ByteBuffer.wrap(Files.readAllBytes(temp)), mtime);
+            segments.sync();
+            Files.delete(temp);
+            Files.deleteIfExists(path);
+        }
+        else {
+            move(temp, path);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(mtime));
+            if (segments != null) {
+                segments.delete(fileName);
+            }
+        }
+        installed(fileName, size, mtime, hash, crc);
+    }
+
+    private void installSlice(FileChannel batch, long offset, String fileName, long size, long mtime, long crc)
+            throws IOException {
+        Path path = resolve(fileName);
+        if (packs(size)) {
+            segments.put(fileName, readSlice(batch, offset, (int) size), mtime);
+            Files.deleteIfExists(path);
+        }
+        else {
+            Path temp = createTemp();
+            try {
+                copySlice(batch, offset, size, temp);
+                force(temp);
+                move(temp, path);
+            }
+            catch (IOException e) {
+                discard(temp);
+                throw e;
+            }
+            Files.setLastModifiedTime(path, FileTime.fromMillis(mtime));
+            if (segments != null) {
+                segments.delete(fileName);
+            }
+        }
+        installed(fileName, size, mtime, null, crc);
+    }
+
+    private void installed(String fileName, long size, long mtime, String hash, long crc) throws IOException {
+        dropManifest(fileName);
+        cache.invalidate(fileName);
+        index.put(new FileIndex.Entry(fileName, size, mtime, hash, crc));
+    }
+
+    private boolean packs(long size) {
+        return segments != null && size <= segmentThreshold;
+    }
+
+    public List<String> commitBatch(Path temp, List<String> names, List<Long> sizes) throws IOException {
+        if (names.size() != sizes.size()) {
+            throw new IOException("Got " + sizes.size() + " sizes for " + names.size() + " files");
+        }
+        long total = 0;
+        for (long size : sizes) {
+            if (size < 0) {
+                throw new IOException("Invalid file size: " + size);
+            }
+            total += size;
+        }
+        long held = Files.size(temp);
+        if (held != total) {
+            throw new IOException("Batch sizes add up to " + total + " bytes but " + held + " arrived");
+        }
+
+        Path batch = partialDir.resolve(UUID.randomUUID() + ".batch");
+        move(temp, batch);
+        boolean replayable = false;
+        try (FileChannel source = FileChannel.open(batch, StandardOpenOption.READ)) {
+            int count = names.size();
+            String[] results = new String[count];
+            Path[] parts = new Path[count];
+            long[] offsets = new long[count];
+            long[] crcs = new long[count];
+            boolean sliced = false;
+            try {
+                long offset = 0;
+                for (int i = 0; i < count; i++) {
+                    long size = sizes.get(i);
+                    offsets[i] = offset;
+                    offset += size;
+                    try {
+                        resolve(names.get(i));
+                    }
+                    catch (IOException e) {
+                        results[i] = e.getMessage();
+                        continue;
+                    }
+                    if (packs(size)) {
+                        crcs[i] = Checksum.of(readSlice(source, offsets[i], (int) size));
+                        sliced = true;
+                    }
+                    else {
+                        parts[i] = createTemp();
+                        crcs[i] = copySlice(source, offsets[i], size, parts[i]);
+                    }
+                }
+                if (sliced) {
+                    source.force(true);
+                }
+                forceAll(parts);
+            }
+            catch (IOException e) {
+                for (Path part : parts) {
+                    if (part != null) {
+                        discard(part);
+                    }
+                }
+                throw e;
+            }
+
+            long mtime = System.currentTimeMillis();
+            long[] seqs = new long[count];
+            long last = 0;
+            for (int i = 0; i < count; i++) {
+                if (results[i] != null) {
+                    continue;
+                }
+                MetadataJournal.Record record = parts[i] != null
+                        ? MetadataJournal.Record.commit(names.get(i), parts[i].getFileName().toString(), sizes.get(i),
+                                mtime, null, crcs[i])
+                        : MetadataJournal.Record.slice(names.get(i), batch.getFileName().toString(), offsets[i],
+                                sizes.get(i), mtime, crcs[i]);
+                seqs[i] = journal.append(record);
+                last = seqs[i];
+            }
+            replayable = last > 0;
+            if (replayable) {
+                journal.await(last);
+            }
+
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    if (results[i] != null) {
+                        continue;
+                    }
+                    String name = names.get(i);
+                    if (!journal.claim(name, seqs[i])) {
+                        if (parts[i] != null) {
+                            discard(parts[i]);
+                        }
+                    }
+                    else if (parts[i] != null) {
+                        install(parts[i], name, sizes.get(i), mtime, null, crcs[i]);
+                    }
+                    else {
+                        installSlice(source, offsets[i], name, sizes.get(i), mtime, crcs[i]);
+                    }
+                    results[i] = "OK";
+                }
+                if (sliced) {
+                    segments.sync();
+                }
+            }
+            replayable = false;
+            return Arrays.asList(results);
+        }
+        finally {
+            if (!replayable) {
+                discard(batch);
+            }
+        }
+    }
+
+    private static ByteBuffer readSlice(FileChannel source, long offset, int size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        while (data.hasRemaining()) {
+            if (source.read(data, offset + data.position()) < 0) {
+                throw new IOException("Unexpected end of batch at " + (offset + data.position()));
+            }
+        }
+        return data.flip();
+    }
+
+    private static long copySlice(FileChannel source, long offset, long size, Path target) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 1024 * 1024));
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < size) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), size - copied));
+                if (source.read(buffer, offset + copied) < 0) {
+                    throw new IOException("Unexpected end of batch at " + (offset + copied));
+                }
+                buffer.flip();
+                crc.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    copied += out.write(buffer);
+                }
+            }
+        }
+        return Checksum.value(crc);
+    }
+
+    private static void forceAll(Path[] paths) throws IOException {
+        List<Future<?>> workers = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int worker = 0; worker < FORCE_PARALLELISM; worker++) {
+                int first = worker;
+                workers.add(executor.submit(() -> {
+                    for (int i = first; i < paths.length; i += FORCE_PARALLELISM) {
+                        if (paths[i] != null) {
+                            force(paths[i]);
+                        }
+                    }
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            }
+            catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while syncing a batch", e);
+            }
+        }
+    }
+
+    public long commitManifest(String fileName, List<String> hashes, long expectedSize) throws IOException {
+        resolve(fileName);
+        Manifest manifest;
+        Path temp;
+        synchronized (this) {
+            manifest = new Manifest(hashes, blocks.acquire(hashes));
+            temp = partialDir.resolve(UUID.randomUUID() + ".manifest");
+            try {
+                if (expectedSize >= 0 && manifest.size != expectedSize) {
+                    throw new IOException("Blocks add up to " + manifest.size + " bytes, expected " + expectedSize);
+                }
+                Files.createDirectories(partialDir);
+                manifest.write(temp);
+            }
+            catch (IOException e) {
+                abandonManifest(temp, manifest);
+                throw e;
+            }
+        }
+
+        long mtime = System.currentTimeMillis();
+        long seq;
+        try {
+            force(temp);
+            seq = journal.append(MetadataJournal.Record.commit(fileName, temp.getFileName().toString(), manifest.size, mtime,
+                    null, Checksum.NONE));
+            journal.await(seq);
+        }
+        catch (IOException e) {
+            abandonManifest(temp, manifest);
+            throw e;
+        }
+        synchronized (this) {
+            if (!journal.claim(fileName, seq)) {
+                abandonManifest(temp, manifest);
+                return manifest.size;
+            }
+            installManifest(temp, fileName, manifest, mtime);
+        }
+        return manifest.size;
+    }
+
+    private synchronized void abandonManifest(Path temp, Manifest manifest) {
+        blocks.release(manifest.hashes);
+        discard(temp);
+    }
+
+    private void installManifest(Path temp, String fileName, Manifest manifest, long mtime) throws IOException {
+        dropManifest(fileName);
+        Files.createDirectories(manifestDir);
+        Path target = manifestDir.resolve(fileName);
+        move(temp, target);
+        Files.setLastModifiedTime(target, FileTime.fromMillis(mtime));
+        Files.deleteIfExists(resolve(fileName));
+        if (segments != null) {
+            segments.delete(fileName);
+        }
+        cache.invalidate(fileName);
+        index.put(new FileIndex.Entry(fileName, manifest.size, mtime, null, Checksum.NONE));
+    }
+
+    public long applyDelta(String fileName, Path instructions, int blockSize, long expectedSize, String expectedHash)
+            throws IOException {
+        if (blockSize <= 0) {
+            throw new IOException("Invalid block size: " + blockSize);
+        }
+
+        Path output = createTemp();
+        CRC32C crc = new CRC32C();
+        try (Content base = openRead(fileName);
+             InputStream in = new BufferedInputStream(Files.newInputStream(instructions));
+             OutputStream out = new BufferedOutputStream(new CheckedOutputStream(Files.newOutputStream(output), crc))) {
+            MessageDigest digest = Chunker.sha256();
+            long written = Delta.apply(base::read, base.size(), blockSize, in, out, digest);
+            if (written != expectedSize) {
+                throw new IOException("Rebuilt " + written + " bytes, expected " + expectedSize);
+            }
+            if (!HexFormat.of().formatHex(digest.digest()).equals(expectedHash)) {
+                throw new IOException("Rebuilt file does not match the expected hash");
+            }
+        }
+        catch (IOException e) {
+            discard(output);
+            throw e;
+        }
+
+        commit(output, fileName, expectedHash, Checksum.value(crc));
+        return expectedSize;
+    }
+
+    private void dropManifest(String fileName) throws IOException {
+        Path path = manifestDir.resolve(fileName);
+        if (!Files.exists(path)) {
+            return;
+        }
+        Manifest manifest = Manifest.read(path);
+        Files.delete(path);
+        blocks.release(manifest.hashes);
+    }
+
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public long resumeOffset(String fileName, long size) throws IOException {
+        Path part = resumePath(fileName);
+        if (!Files.exists(part)) {
+            Files.createFile(part);
+            return 0;
+        }
+
+        long held = Files.size(part);
+        if (held > size) {
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                channel.truncate(0);
+            }
+            return 0;
+        }
+        return held;
+    }
+
+    public FileChannel openResume(String fileName, long offset) throws IOException {
+        FileChannel channel = FileChannel.open(resumePath(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long held = channel.size();
+        if (offset > held) {
+            channel.close();
+            throw new IOException("Chunk offset " + offset + " is past the " + held + " bytes already held");
+        }
+        channel.truncate(offset);
+        channel.position(offset);
+        return channel;
+    }
+
+    public void commitResume(String fileName, long size, long crc) throws IOException {
+        Path part = resumePath(fileName);
+        if (!Files.exists(part)) {
+            throw new NoSuchFileException(fileName);
+        }
+        long held = Files.size(part);
+        if (held != size) {
+            throw new IOException("Expected " + size + " bytes but holding " + held);
+        }
+        if (Checksum.isKnown(crc)) {
+            long actual;
+            try (Content content = new FileContent(FileChannel.open(part, StandardOpenOption.READ))) {
+                actual = checksum(content);
+            }
+            if (actual != crc) {
+                throw new IOException("Uploaded file has checksum " + Checksum.format(actual) + ", expected "
+                        + Checksum.format(crc));
+            }
+        }
+        commit(part, fileName, null, crc);
+    }
+
+    public synchronized RangedUpload beginRanged(String fileName, long size) throws IOException {
+        resolve(fileName);
+        if (size < 0) {
+            throw new IOException("Invalid size: " + size);
+        }
+        if (size > MAX_FILE_SIZE) {
+            throw new IOException("File of " + size + " bytes exceeds the " + MAX_FILE_SIZE + " byte limit");
+        }
+
+        RangedUpload upload = rangedUploads.get(fileName);
+        if (upload != null) {
+            if (upload.size() == size) {
+                upload.touch();
+                return upload;
+            }
+            rangedUploads.remove(fileName);
+            upload.close();
+            discard(upload.temp());
+        }
+
+        Files.createDirectories(partialDir);
+        long pending = 0;
+        for (RangedUpload other : rangedUploads.values()) {
+            pending += other.size() - other.received();
+        }
+        long usable = Files.getFileStore(partialDir).getUsableSpace();
+        if (size + pending > usable) {
+            throw new IOException("Not enough free space for " + size + " bytes (" + usable + " usable, " + pending
+                    + " held by other uploads)");
+        }
+
+        Path temp = createTemp(fileName);
+        try {
+            upload = new RangedUpload(temp, size);
+        }
+        catch (IOException e) {
+            discard(temp);
+            throw e;
+        }
+        rangedUploads.put(fileName, upload);
+        return upload;
+    }
+
+    synchronized void expireRanged(long now) {
+        rangedUploads.forEach((fileName, upload) -> {
+            if (upload.isIdle(now, RANGED_IDLE) && rangedUploads.remove(fileName, upload)) {
+                upload.close();
+                discard(upload.temp());
+                Log.info("[*] Discarding idle ranged upload of " + fileName);
+            }
+        });
+    }
+
+    public RangedUpload openRanged(String fileName) throws IOException {
+        RangedUpload upload = rangedUploads.get(fileName);
+        if (upload == null) {
+            throw new NoSuchFileException(fileName);
+        }
+        upload.touch();
+        return upload;
+    }
+
+    public void commitRanged(String fileName, long size, String hash, long crc) throws IOException {
+        RangedUpload upload = openRanged(fileName);
+        if (upload.size() != size) {
+            throw new IOException("Expected " + size + " bytes but the upload was begun with " + upload.size());
+        }
+        if (!upload.isComplete()) {
+            throw new IOException((size - upload.received()) + " bytes are still missing");
+        }
+        RangedUpload.Digest digest = hash != null || Checksum.isKnown(crc) ? upload.digest() : null;
+        if (!rangedUploads.remove(fileName, upload)) {
+            throw new NoSuchFileException(fileName);
+        }
+        upload.close();
+        if (digest != null && hash != null && !digest.sha256().equals(hash)) {
+            discard(upload.temp());
+            throw new IOException("Uploaded file does not match the expected hash");
+        }
+        if (digest != null && Checksum.isKnown(crc) && digest.crc() != crc) {
+            discard(upload.temp());
+            throw new IOException("Uploaded file has checksum " + Checksum.format(digest.crc()) + ", expected "
+                    + Checksum.format(crc));
+        }
+        commit(upload.temp(), fileName, hash, digest != null ? digest.crc() : Checksum.NONE);
+    }
+
+    private Path resumePath(String fileName) throws IOException {
+        resolve(fileName);
+        Files.createDirectories(partialDir);
+        return partialDir.resolve(fileName + ".resume");
+    }
+
+    public void discard(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        }
+        catch (IOException ignored) {}
+    }
+
+    public boolean delete(String fileName) throws IOException {
+        Path path = resolve(fileName);
+        synchronized (this) {
+            if (!Files.isRegularFile(path) && !Files.isRegularFile(manifestDir.resolve(fileName)) && !isPacked(fileName)) {
+                throw new NoSuchFileException(fileName);
+            }
+        }
+
+        long seq = journal.append(MetadataJournal.Record.delete(fileName));
+        journal.await(seq);
+        synchronized (this) {
+            if (journal.claim(fileName, seq)) {
+                remove(fileName);
+            }
+        }
+        return true;
+    }
+
+    public List<String> deleteBatch(List<String> names) throws IOException {
+        int count = names.size();
+        String[] results = new String[count];
+        long[] seqs = new long[count];
+        long last = 0;
+        for (int i = 0; i < count; i++) {
+            String name = names.get(i);
+            try {
+                Path path = resolve(name);
+                synchronized (this) {
+                    if (!Files.isRegularFile(path) && !Files.isRegularFile(manifestDir.resolve(name)) && !isPacked(name)) {
+                        results[i] = "NOT_FOUND";
+                        continue;
+                    }
+                }
+            }
+            catch (IOException e) {
+                results[i] = e.getMessage();
+                continue;
+            }
+            seqs[i] = journal.append(MetadataJournal.Record.delete(name));
+            last = seqs[i];
+        }
+        if (last > 0) {
+            journal.await(last);
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                if (results[i] != null) {
+                    continue;
+                }
+                if (journal.claim(names.get(i), seqs[i])) {
+                    remove(names.get(i));
+                }
+                results[i] = "OK";
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private void remove(String fileName) throws IOException {
+        Files.deleteIfExists(resolve(fileName));
+        dropManifest(fileName);
+        if (segments != null) {
+            segments.delete(fileName);
+        }
+        index.remove(fileName);
+        cache.invalidate(fileName);
+    }
+
+    public Content openRead(String fileName) throws IOException {
+        if (segments != null) {
+            ByteBuffer packed = segments.read(fileName);
+            if (packed != null) {
+                return new BufferContent(packed);
+            }
+        }
+
+        FileIndex.Entry entry = index.get(fileName);
+        if (entry != null) {
+            ByteBuffer cached = cache.get(entry);
+            if (cached != null) {
+                return new BufferContent(cached);
+            }
+            if (cache.wants(entry)) {
+                ByteBuffer loaded = cache.load(entry, () -> load(fileName, entry.size()));
+                if (loaded != null) {
+                    return new BufferContent(loaded);
+                }
+            }
+        }
+        return openStored(fileName);
+    }
+
+    private ByteBuffer load(String fileName, long size) throws IOException {
+        if (!loadBudget.tryReserve(size)) {
+            return null;
+        }
+        try (Content content = openStored(fileName)) {
+            if (content.size() != size) {
+                return null;
+            }
+            ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+            while (data.hasRemaining()) {
+                if (content.read(data, data.position()) < 0) {
+                    throw new IOException(fileName + " shrank while it was being cached");
+                }
+            }
+            return data.flip();
+        }
+        finally {
+            loadBudget.release(size);
+        }
+    }
+
+    public FileIndex.Entry checksum(String fileName) throws IOException {
+        FileIndex.Entry entry = index.get(fileName);
+        if (entry == null) {
+            throw new NoSuchFileException(fileName);
+        }
+        if (Checksum.isKnown(entry.crc())) {
+            return entry;
+        }
+
+        long crc;
+        try (Content content = openRead(fileName)) {
+            if (content.size() != entry.size()) {
+                throw new IOException(fileName + " changed while it was being checksummed");
+            }
+            crc = checksum(content);
+        }
+        index.setChecksum(entry, crc);
+        return new FileIndex.Entry(entry.name(), entry.size(), entry.mtime(), entry.hash(), crc);
+    }
+
+    public static long checksum(Content content) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long position = 0;
+        while (position < content.size()) {
+            int read = content.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += read;
+            buffer.flip();
+            crc.update(buffer);
+            buffer.clear();
+        }
+        return Checksum.value(crc);
+    }
+
+    private Content openStored(String fileName) throws IOException {
+        Path path = resolve(fileName);
+        if (Files.isRegularFile(path)) {
+            return new FileContent(FileChannel.open(path, StandardOpenOption.READ));
+        }
+        Path manifest = manifestDir.resolve(fileName);
+        if (Files.isRegularFile(manifest)) {
+            return new ManifestContent(blocks, Manifest.read(manifest));
+        }
+        throw new NoSuchFileException(fileName);
+    }
+}
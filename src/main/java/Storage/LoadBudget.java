@@ -0,0 +1,17 @@
+package Storage;
+
+public interface LoadBudget {
+    LoadBudget UNLIMITED = new LoadBudget() {
+        @Override
+        public boolean tryReserve(long bytes) {
+            return true;
+        }
+
+        @Override
+        public void release(long bytes) {}
+    };
+
+    boolean tryReserve(long bytes);
+
+    void release(long bytes);
+}
@@ -0,0 +1,67 @@
+package Storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+class Manifest {
+    final List<String> hashes;
+    final long[] offsets;
+    final long size;
+
+    Manifest(List<String> hashes, long[] lengths) {
+        this.hashes = List.copyOf(hashes);
+        this.offsets = new long[lengths.length + 1];
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i + 1] = offsets[i] + lengths[i];
+        }
+        this.size = offsets[lengths.length];
+    }
+
+    int blockAt(long position) {
+        int low = 0;
+        int high = hashes.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= position) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    long lengthOf(int block) {
+        return offsets[block + 1] - offsets[block];
+    }
+
+    static Manifest read(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        List<String> hashes = new ArrayList<>();
+        long[] lengths = new long[lines.size()];
+        for (String line : lines) {
+            if (line.isBlank()) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            lengths[hashes.size()] = Long.parseLong(line.substring(space + 1));
+            hashes.add(line.substring(0, space));
+        }
+        long[] trimmed = new long[hashes.size()];
+        System.arraycopy(lengths, 0, trimmed, 0, trimmed.length);
+        return new Manifest(hashes, trimmed);
+    }
+
+    void write(Path path) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < hashes.size(); i++) {
+            text.append(hashes.get(i)).append(' ').append(lengthOf(i)).append('\n');
+        }
+        Files.writeString(path, text, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,72 @@
+package Storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+class ManifestContent implements Content {
+    private final BlockStore blocks;
+    private final Manifest manifest;
+    private FileChannel current;
+    private int currentBlock = -1;
+
+    ManifestContent(BlockStore blocks, Manifest manifest) {
+        this.blocks = blocks;
+        this.manifest = manifest;
+    }
+
+    @Override
+    public long size() {
+        return manifest.size;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= manifest.size || count <= 0) {
+            return 0;
+        }
+        int block = open(position);
+        long inBlock = position - manifest.offsets[block];
+        long step = Math.min(count, manifest.lengthOf(block) - inBlock);
+        return current.transferTo(inBlock, step, target);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= manifest.size) {
+            return -1;
+        }
+        int block = open(position);
+        long inBlock = position - manifest.offsets[block];
+        int limit = dst.limit();
+        long step = Math.min(dst.remaining(), manifest.lengthOf(block) - inBlock);
+        dst.limit(dst.position() + (int) step);
+        try {
+            return current.read(dst, inBlock);
+        }
+        finally {
+            dst.limit(limit);
+        }
+    }
+
+    private int open(long position) throws IOException {
+        int block = manifest.blockAt(position);
+        if (block != currentBlock) {
+            close();
+            current = FileChannel.open(blocks.path(manifest.hashes.get(block)), StandardOpenOption.READ);
+            currentBlock = block;
+        }
+        return block;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+            currentBlock = -1;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package Storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import Protocol.Checksum;
+import Protocol.Log;
+
+final class MetadataJournal {
+    static final byte BEGIN = 1;
+    static final byte COMMIT = 2;
+    static final byte DELETE = 3;
+
+    private static final int FRAME_HEADER = 4 + 4;
+    private static final int MAX_RECORD = 64 * 1024;
+    private static final int MAX_FAILED_BATCHES = 1024;
+
+    record Record(byte type, String name, String temp, long offset, long size, long mtime, String hash, long crc) {
+        static Record begin(String name, String temp) {
+            return new Record(BEGIN, name, temp, 0, 0, 0, null, Checksum.NONE);
+        }
+
+        static Record commit(String name, String temp, long size, long mtime, String hash, long crc) {
+            return new Record(COMMIT, name, temp, 0, size, mtime, hash, crc);
+        }
+
+        static Record slice(String name, String batch, long offset, long size, long mtime, long crc) {
+            return new Record(COMMIT, name, batch, offset, size, mtime, null, crc);
+        }
+
+        static Record delete(String name) {
+            return new Record(DELETE, name, null, 0, 0, 0, null, Checksum.NONE);
+        }
+
+        FileIndex.Entry entry() {
+            return new FileIndex.Entry(name, size, mtime, hash, crc);
+        }
+    }
+
+    private record Pending(long seq, Record record) {}
+
+    record Recovery(boolean found, Map<String, Record> state, Map<String, String> begun, int records) {}
+
+    private final Path dir;
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private final Map<String, Pending> pending = new HashMap<>();
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private FileChannel channel;
+    private long appended;
+    private long durable;
+    private boolean flushing;
+    private long rollback = -1;
+    private final TreeMap<Long, Long> failed = new TreeMap<>();
+
+    MetadataJournal(Path dir) {
+        this.dir = dir;
+        this.journalPath = dir.resolve("journal.log");
+        this.snapshotPath = dir.resolve("snapshot.dat");
+    }
+
+    Recovery recover() throws IOException {
+        Files.createDirectories(dir);
+        boolean found = Files.exists(snapshotPath) || Files.exists(journalPath);
+        Map<String, Record> state = new HashMap<>();
+        Map<String, String> begun = new LinkedHashMap<>();
+        int records = replay(snapshotPath, state, begun, false);
+        records += replay(journalPath, state, begun, true);
+        channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return new Recovery(found, state, begun, records);
+    }
+
+    private static int replay(Path path, Map<String, Record> state, Map<String, String> begun, boolean truncate)
+            throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        int records = 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = file.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+            while (position + FRAME_HEADER <= size) {
+                header.clear();
+                readFully(file, header, position);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length <= 0 || length > MAX_RECORD || position + FRAME_HEADER + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(file, payload, position + FRAME_HEADER);
+                CRC32C crc = new CRC32C();
+                crc.update(payload.array(), 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(decode(payload.array()), state, begun);
+                records++;
+                position += FRAME_HEADER + length;
+            }
+            if (position < size) {
+                if (!truncate) {
+                    throw new IOException(path.getFileName() + " is damaged at offset " + position);
+                }
+                Log.warn("[-] Dropping " + (size - position) + " torn bytes from the metadata journal");
+                file.truncate(position);
+                file.force(false);
+            }
+        }
+        return records;
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (file.read(target, position + target.position()) < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+        }
+    }
+
+    private static void apply(Record record, Map<String, Record> state, Map<String, String> begun) {
+        switch (record.type()) {
+            case BEGIN -> begun.put(record.temp(), record.name());
+            case COMMIT -> {
+                if (record.temp() != null) {
+                    begun.remove(record.temp());
+                }
+                state.put(record.name(), record);
+            }
+            case DELETE -> state.put(record.name(), record);
+            default -> throw new IllegalStateException("Unknown journal record " + record.type());
+        }
+    }
+
+    private static byte[] encode(Record record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(record.type());
+            out.writeUTF(record.name());
+            if (record.type() != DELETE) {
+                out.writeUTF(record.temp() == null ? "" : record.temp());
+            }
+            if (record.type() == COMMIT) {
+                out.writeLong(record.size());
+                out.writeLong(record.mtime());
+                out.writeUTF(record.hash() == null ? "" : record.hash());
+                out.writeLong(record.crc());
+                out.writeLong(record.offset());
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        String name = in.readUTF();
+        String temp = type == DELETE ? null : emptyToNull(in.readUTF());
+        if (type != COMMIT) {
+            return new Record(type, name, temp, 0, 0, 0, null, Checksum.NONE);
+        }
+        long size = in.readLong();
+        long mtime = in.readLong();
+        String hash = emptyToNull(in.readUTF());
+        long crc = in.available() >= Long.BYTES ? in.readLong() : Checksum.NONE;
+        long offset = in.available() >= Long.BYTES ? in.readLong() : 0;
+        return new Record(type, name, temp, offset, size, mtime, hash, crc);
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static void frame(Record record, ByteArrayOutputStream out) {
+        byte[] payload = encode(record);
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER).putInt(payload.length).putInt((int) crc.getValue());
+        out.write(header.array(), 0, FRAME_HEADER);
+        out.write(payload, 0, payload.length);
+    }
+
+    synchronized long append(Record record) {
+        frame(record, buffer);
+        appended++;
+        if (record.type() != BEGIN) {
+            pending.put(record.name(), new Pending(appended, record));
+        }
+        return appended;
+    }
+
+    synchronized boolean claim(String name, long seq) {
+        Pending current = pending.get(name);
+        if (current == null || current.seq() != seq) {
+            return false;
+        }
+        pending.remove(name);
+        return true;
+    }
+
+    void await(long seq) throws IOException {
+        byte[] batch;
+        long upTo;
+        long from;
+        synchronized (this) {
+            while (true) {
+                if (isFailed(seq)) {
+                    throw new IOException("Metadata journal write failed");
+                }
+                if (durable >= seq) {
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                waitForFlush();
+            }
+            flushing = true;
+            batch = buffer.toByteArray();
+            buffer = new ByteArrayOutputStream();
+            from = durable;
+            upTo = appended;
+        }
+
+        IOException error = null;
+        long start = -1;
+        try {
+            if (rollback >= 0) {
+                channel.truncate(rollback);
+                channel.position(rollback);
+                rollback = -1;
+            }
+            start = channel.position();
+            ByteBuffer data = ByteBuffer.wrap(batch);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+        catch (IOException e) {
+            error = e;
+            if (start >= 0) {
+                rollback = start;
+            }
+        }
+
+        synchronized (this) {
+            flushing = false;
+            if (error == null) {
+                durable = upTo;
+            }
+            else {
+                fail(from, upTo);
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void fail(long from, long upTo) {
+        Log.warn("[-] Failed to write journal records " + (from + 1) + " to " + upTo);
+        failed.put(from + 1, upTo);
+        while (failed.size() > MAX_FAILED_BATCHES) {
+            failed.pollFirstEntry();
+        }
+        pending.values().removeIf(unapplied -> unapplied.seq() > from && unapplied.seq() <= upTo);
+        durable = upTo;
+    }
+
+    private boolean isFailed(long seq) {
+        Map.Entry<Long, Long> batch = failed.floorEntry(seq);
+        return batch != null && seq <= batch.getValue();
+    }
+
+    private void waitForFlush() throws InterruptedIOException {
+        try {
+            wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the metadata journal");
+        }
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    synchronized void checkpoint(Collection<FileIndex.Entry> entries) throws IOException {
+        while (flushing) {
+            waitForFlush();
+        }
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        for (FileIndex.Entry entry : entries) {
+            frame(Record.commit(entry.name(), null, entry.size(), entry.mtime(), entry.hash(), entry.crc()), snapshot);
+        }
+        for (Pending unapplied : pending.values()) {
+            frame(unapplied.record(), snapshot);
+        }
+
+        Path temp = dir.resolve("snapshot.tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = ByteBuffer.wrap(snapshot.toByteArray());
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+            out.force(false);
+        }
+        try {
+            Files.move(temp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        durable = appended;
+        notifyAll();
+        ByteBuffer data = ByteBuffer.wrap(buffer.toByteArray());
+        buffer = new ByteArrayOutputStream();
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            rollback = -1;
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+        catch (IOException e) {
+            rollback = 0;
+            throw e;
+        }
+    }
+}
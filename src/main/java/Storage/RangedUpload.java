@@ -0,0 +1,99 @@
+package Storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+import Protocol.Checksum;
+import Protocol.Chunker;
+import Protocol.RangeSet;
+
+public final class RangedUpload {
+    record Digest(String sha256, long crc) {}
+
+    private final Path temp;
+    private final long size;
+    private final FileChannel channel;
+    private final RangeSet received = new RangeSet();
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    RangedUpload(Path temp, long size) throws IOException {
+        this.temp = temp;
+        this.size = size;
+        this.channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (size > 0) {
+            channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void write(ByteBuffer data, long position) throws IOException {
+        if (position < 0 || position + data.remaining() > size) {
+            throw new IOException("Range at " + position + " runs past the " + size + " byte file");
+        }
+        lastUsed = System.currentTimeMillis();
+        long start = position;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        synchronized (received) {
+            received.add(start, position);
+        }
+    }
+
+    public long received() {
+        synchronized (received) {
+            return received.covered();
+        }
+    }
+
+    boolean isIdle(long now, long timeout) {
+        return now - lastUsed > timeout;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    boolean isComplete() {
+        return received() == size;
+    }
+
+    Digest digest() throws IOException {
+        MessageDigest digest = Chunker.sha256();
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long position = 0;
+        while (position < size) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Upload ended at " + position + " of " + size + " bytes");
+            }
+            position += read;
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return new Digest(HexFormat.of().formatHex(digest.digest()), Checksum.value(crc));
+    }
+
+    Path temp() {
+        return temp;
+    }
+
+    void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,272 @@
+package Storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public final class ReadCache {
+    private static final int ADMIT_FREQUENCY = 2;
+
+    private final long capacity;
+    private final long maxEntry;
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final LinkedHashMap<String, Node> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Node> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Load> loading = new HashMap<>();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private long windowBytes;
+    private long mainBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+    private long coalesced;
+
+    interface Loader {
+        ByteBuffer load() throws IOException;
+    }
+
+    ReadCache(long capacity) {
+        this.capacity = capacity;
+        this.maxEntry = capacity / 8;
+        this.windowCapacity = Math.max(capacity / 100, maxEntry);
+        this.mainCapacity = capacity - windowCapacity;
+    }
+
+    synchronized ByteBuffer get(FileIndex.Entry entry) {
+        sketch.increment(entry.name());
+        Node node = window.get(entry.name());
+        if (node == null) {
+            node = main.get(entry.name());
+        }
+        if (node == null || !node.entry.equals(entry)) {
+            if (node != null) {
+                remove(entry.name());
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        return node.data.duplicate();
+    }
+
+    synchronized boolean wants(FileIndex.Entry entry) {
+        return entry.size() > 0 && entry.size() <= maxEntry && sketch.frequency(entry.name()) >= ADMIT_FREQUENCY;
+    }
+
+    ByteBuffer load(FileIndex.Entry entry, Loader loader) throws IOException {
+        Load load;
+        Load running;
+        synchronized (this) {
+            running = loading.get(entry.name());
+            if (running != null && running.entry.equals(entry)) {
+                coalesced++;
+                load = null;
+            }
+            else {
+                load = new Load(entry);
+                loading.put(entry.name(), load);
+            }
+        }
+
+        if (load == null) {
+            try {
+                ByteBuffer data = running.result.join();
+                return data != null ? data.duplicate() : null;
+            }
+            catch (CompletionException e) {
+                return null;
+            }
+        }
+
+        try {
+            ByteBuffer data = loader.load();
+            load.result.complete(data);
+            if (data != null) {
+                put(load, data);
+                return data.duplicate();
+            }
+            return null;
+        }
+        catch (IOException | RuntimeException e) {
+            load.result.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            synchronized (this) {
+                loading.remove(entry.name(), load);
+            }
+        }
+    }
+
+    private synchronized void put(Load load, ByteBuffer data) {
+        if (load.stale) {
+            return;
+        }
+        FileIndex.Entry entry = load.entry;
+        remove(entry.name());
+        Node node = new Node(entry, data);
+        window.put(entry.name(), node);
+        windowBytes += node.size();
+
+        Iterator<Node> eldest = window.values().iterator();
+        while (windowBytes > windowCapacity) {
+            Node candidate = eldest.next();
+            eldest.remove();
+            windowBytes -= candidate.size();
+            admit(candidate);
+        }
+    }
+
+    private void admit(Node candidate) {
+        int frequency = sketch.frequency(candidate.entry.name());
+        List<Node> victims = new ArrayList<>();
+        long freed = 0;
+        Iterator<Node> eldest = main.values().iterator();
+        while (mainBytes - freed + candidate.size() > mainCapacity) {
+            Node victim = eldest.hasNext() ? eldest.next() : null;
+            if (victim == null || sketch.frequency(victim.entry.name()) >= frequency) {
+                rejections++;
+                return;
+            }
+            victims.add(victim);
+            freed += victim.size();
+        }
+
+        for (Node victim : victims) {
+            main.remove(victim.entry.name());
+            evictions++;
+        }
+        mainBytes -= freed;
+        main.put(candidate.entry.name(), candidate);
+        mainBytes += candidate.size();
+    }
+
+    synchronized void invalidate(String name) {
+        Load load = loading.remove(name);
+        if (load != null) {
+            load.stale = true;
+        }
+        remove(name);
+    }
+
+    private void remove(String name) {
+        Node node = window.remove(name);
+        if (node != null) {
+            windowBytes -= node.size();
+        }
+        node = main.remove(name);
+        if (node != null) {
+            mainBytes -= node.size();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized long getBytes() {
+        return windowBytes + mainBytes;
+    }
+
+    public synchronized int getEntries() {
+        return window.size() + main.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("cache %d/%d bytes in %d files, hit ratio %.2f (%d hits, %d misses), %d evictions, %d rejections, "
+                + "%d coalesced loads", getBytes(), capacity, getEntries(), getHitRatio(), hits, misses, evictions, rejections,
+                coalesced);
+    }
+
+    private static final class Load {
+        final FileIndex.Entry entry;
+        final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        boolean stale;
+
+        Load(FileIndex.Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    private record Node(FileIndex.Entry entry, ByteBuffer data) {
+        long size() {
+            return data.capacity();
+        }
+    }
+
+    private static final class FrequencySketch {
+        private static final int WIDTH = 1 << 16;
+        private static final int[] SEEDS = {0x97cb3127, 0x2c1b3c6d, 0x7a3d5f2b, 0x5bd1e995};
+
+        private final byte[][] rows = new byte[SEEDS.length][WIDTH];
+        private int additions;
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if (rows[i][index] < 15) {
+                    rows[i][index]++;
+                }
+            }
+            if (++additions == WIDTH * 10) {
+                age();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < rows.length; i++) {
+                frequency = Math.min(frequency, rows[i][index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private void age() {
+            for (byte[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private static int index(int hash, int row) {
+            int mixed = hash * SEEDS[row];
+            mixed ^= mixed >>> 16;
+            return mixed & (WIDTH - 1);
+        }
+    }
+}
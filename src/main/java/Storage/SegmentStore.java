@@ -0,0 +1,400 @@
+package Storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import Protocol.Log;
+
+final class SegmentStore {
+    private static final int MAGIC = 0x53454731;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 2 + 8 + 4;
+    private static final double COMPACT_RATIO = 0.5;
+
+    private final Path dir;
+    private final long segmentSize;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, Location> locations = new HashMap<>();
+    private final List<Path> pendingDeletes = new ArrayList<>();
+    private Segment active;
+    private int lastId;
+
+    record Location(Segment segment, long recordOffset, int recordSize, int length, long mtime) {
+        long dataOffset() {
+            return recordOffset + recordSize - length;
+        }
+    }
+
+    SegmentStore(Path dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    synchronized Map<String, Location> load() throws IOException {
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith("segment-") && name.endsWith(".dat")) {
+                    int id = Integer.parseInt(name.substring(8, name.length() - 4));
+                    segments.put(id, new Segment(id, path));
+                    lastId = Math.max(lastId, id);
+                }
+                else if (name.startsWith("segment-") && name.endsWith(".compact")) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        for (Segment segment : segments.values()) {
+            replay(segment);
+        }
+        return new HashMap<>(locations);
+    }
+
+    private void replay(Segment segment) throws IOException {
+        long size = segment.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            segment.channel.read(header, position);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                break;
+            }
+            byte type = header.get();
+            int nameLength = header.getShort() & 0xFFFF;
+            long mtime = header.getLong();
+            int length = header.getInt();
+            int recordSize = HEADER_SIZE + nameLength + length;
+            if (length < 0 || position + recordSize > size) {
+                break;
+            }
+
+            ByteBuffer nameBytes = ByteBuffer.allocate(nameLength);
+            segment.channel.read(nameBytes, position + HEADER_SIZE);
+            String name = new String(nameBytes.array(), StandardCharsets.UTF_8);
+            segment.total += recordSize;
+            if (type == PUT) {
+                Location location = new Location(segment, position, recordSize, length, mtime);
+                forget(locations.put(name, location));
+                segment.live += recordSize;
+            }
+            else {
+                forget(locations.remove(name));
+            }
+            position += recordSize;
+        }
+
+        if (position < size) {
+            Log.warn("[-] Truncating torn tail of " + segment.path.getFileName() + " at " + position);
+            segment.channel.truncate(position);
+        }
+    }
+
+    private static void forget(Location location) {
+        if (location != null) {
+            location.segment.live -= location.recordSize;
+        }
+    }
+
+    synchronized boolean contains(String name) {
+        return locations.containsKey(name);
+    }
+
+    synchronized void put(String name, ByteBuffer data, long mtime) throws IOException {
+        Location location = append(PUT, name, mtime, data);
+        forget(locations.put(name, location));
+        location.segment.live += location.recordSize;
+    }
+
+    synchronized void sync() throws IOException {
+        if (active != null) {
+            active.channel.force(false);
+        }
+    }
+
+    synchronized boolean delete(String name) throws IOException {
+        Location location = locations.remove(name);
+        if (location == null) {
+            return false;
+        }
+        forget(location);
+        append(DELETE, name, System.currentTimeMillis(), ByteBuffer.allocate(0));
+        return true;
+    }
+
+    synchronized ByteBuffer read(String name) throws IOException {
+        Location location = locations.get(name);
+        if (location == null) {
+            return null;
+        }
+        return location.segment.slice(location.dataOffset(), location.length);
+    }
+
+    private Location append(byte type, String name, long mtime, ByteBuffer data) throws IOException {
+        int recordSize = HEADER_SIZE + name.getBytes(StandardCharsets.UTF_8).length + data.remaining();
+        if (active == null || (active.total > 0 && active.total + recordSize > segmentSize)) {
+            roll();
+        }
+        return write(active, type, name, mtime, data);
+    }
+
+    private static Location write(Segment segment, byte type, String name, long mtime, ByteBuffer data)
+            throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = data.remaining();
+        int recordSize = HEADER_SIZE + nameBytes.length + length;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + nameBytes.length);
+        header.putInt(MAGIC).put(type).putShort((short) nameBytes.length).putLong(mtime).putInt(length).put(nameBytes);
+        header.flip();
+        long position = segment.total;
+        long at = position;
+        for (ByteBuffer part : new ByteBuffer[] {header, data.duplicate()}) {
+            while (part.hasRemaining()) {
+                at += segment.channel.write(part, at);
+            }
+        }
+        segment.total += recordSize;
+        return new Location(segment, position, recordSize, length, mtime);
+    }
+
+    private void roll() throws IOException {
+        int id = ++lastId;
+        Segment segment = new Segment(id, dir.resolve(String.format("segment-%06d.dat", id)));
+        segments.put(id, segment);
+        active = segment;
+    }
+
+    void compact() {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.total > 0 && segment.live < segment.total * COMPACT_RATIO) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            try {
+                compact(segment);
+            }
+            catch (IOException e) {
+                Log.warn("[-] Failed to compact " + segment.path.getFileName() + ": " + e.getMessage());
+            }
+        }
+        retryDeletes();
+    }
+
+    private void compact(Segment segment) throws IOException {
+        Map<String, Location> live = new HashMap<>();
+        boolean older;
+        Segment target;
+        synchronized (this) {
+            locations.forEach((name, location) -> {
+                if (location.segment == segment) {
+                    live.put(name, location);
+                }
+            });
+            older = segments.firstKey() < segment.id;
+            int id = ++lastId;
+            target = new Segment(id, dir.resolve(String.format("segment-%06d.compact", id)));
+        }
+
+        Map<String, Location> moved = new HashMap<>();
+        Map<String, Long> tombstones = new LinkedHashMap<>();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long size = segment.total;
+            long position = 0;
+            while (position < size) {
+                header.clear();
+                segment.channel.read(header, position);
+                header.flip();
+                header.getInt();
+                byte type = header.get();
+                int nameLength = header.getShort() & 0xFFFF;
+                long mtime = header.getLong();
+                int length = header.getInt();
+                int recordSize = HEADER_SIZE + nameLength + length;
+
+                ByteBuffer nameBytes = ByteBuffer.allocate(nameLength);
+                segment.channel.read(nameBytes, position + HEADER_SIZE);
+                String name = new String(nameBytes.array(), StandardCharsets.UTF_8);
+                Location current = live.get(name);
+                if (type == PUT && current != null && current.recordOffset == position) {
+                    moved.put(name, copy(segment, position, recordSize, length, mtime, target));
+                }
+                else if (type == DELETE && older && current == null) {
+                    tombstones.put(name, mtime);
+                }
+                position += recordSize;
+            }
+            target.channel.force(false);
+            install(segment, target, live, moved, tombstones);
+        }
+        catch (IOException e) {
+            target.close();
+            Files.deleteIfExists(target.path);
+            throw e;
+        }
+    }
+
+    private static Location copy(Segment from, long position, int recordSize, int length, long mtime, Segment to)
+            throws IOException {
+        long at = to.total;
+        long copied = 0;
+        while (copied < recordSize) {
+            long sent = from.channel.transferTo(position + copied, recordSize - copied, to.channel.position(at + copied));
+            if (sent <= 0) {
+                throw new IOException("Segment ended while copying a record");
+            }
+            copied += sent;
+        }
+        to.total += recordSize;
+        return new Location(to, at, recordSize, length, mtime);
+    }
+
+    private synchronized void install(Segment segment, Segment target, Map<String, Location> live,
+            Map<String, Location> moved, Map<String, Long> tombstones) throws IOException {
+        long reclaimed = segment.total - segment.live;
+        for (Map.Entry<String, Location> entry : moved.entrySet()) {
+            String name = entry.getKey();
+            Location current = locations.get(name);
+            if (current == live.get(name)) {
+                locations.put(name, entry.getValue());
+                target.live += entry.getValue().recordSize;
+            }
+            else if (current == null) {
+                write(target, DELETE, name, System.currentTimeMillis(), ByteBuffer.allocate(0));
+            }
+            else {
+                Location rewritten = write(target, PUT, name, current.mtime,
+                        current.segment.slice(current.dataOffset(), current.length));
+                forget(locations.put(name, rewritten));
+                target.live += rewritten.recordSize;
+            }
+        }
+        for (Map.Entry<String, Long> tombstone : tombstones.entrySet()) {
+            if (!locations.containsKey(tombstone.getKey())) {
+                write(target, DELETE, tombstone.getKey(), tombstone.getValue(), ByteBuffer.allocate(0));
+            }
+        }
+
+        if (target.total > 0) {
+            target.channel.force(false);
+            target.rename(dir.resolve(String.format("segment-%06d.dat", target.id)));
+            segments.put(target.id, target);
+            if (active == null || active.id < target.id) {
+                active = target;
+            }
+        }
+        else {
+            target.close();
+            Files.deleteIfExists(target.path);
+        }
+        segments.remove(segment.id);
+        segment.close();
+        pendingDeletes.add(segment.path);
+        Log.info("[*] Compacted " + segment.path.getFileName() + ", reclaimed " + reclaimed + " bytes");
+    }
+
+    private synchronized void retryDeletes() {
+        pendingDeletes.removeIf(path -> {
+            try {
+                Files.deleteIfExists(path);
+                return true;
+            }
+            catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    void startCompactor(long intervalMillis) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                compact();
+            }
+        }, "segment-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized int getSegments() {
+        return segments.size();
+    }
+
+    synchronized long getLiveBytes() {
+        long live = 0;
+        for (Segment segment : segments.values()) {
+            live += segment.live;
+        }
+        return live;
+    }
+
+    synchronized long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.total;
+        }
+        return total;
+    }
+
+    static final class Segment {
+        final int id;
+        Path path;
+        final FileChannel channel;
+        long total;
+        long live;
+        private MappedByteBuffer mapped;
+
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        ByteBuffer slice(long offset, int length) throws IOException {
+            if (mapped == null || offset + length > mapped.capacity()) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, total);
+            }
+            return mapped.slice((int) offset, length);
+        }
+
+        void rename(Path target) throws IOException {
+            Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+            path = target;
+        }
+
+        void close() {
+            mapped = null;
+            try {
+                channel.close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+}
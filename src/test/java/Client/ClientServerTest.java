@@ -0,0 +1,315 @@
+package Client;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import Protocol.Checksum;
+import Protocol.Compression;
+import Protocol.JsonProtocol;
+import Protocol.MetadataCodec;
+import Protocol.Operation;
+import Protocol.ProtocolWriter;
+
+class ClientServerTest {
+    @TempDir
+    static Path storage;
+
+    @TempDir
+    Path local;
+
+    private static int port;
+
+    private Client client;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        port = LoopbackServer.start(storage);
+    }
+
+    @BeforeEach
+    void connect() {
+        client = LoopbackServer.connect(port);
+    }
+
+    @AfterEach
+    void close() {
+        client.close();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < length; i++) {
+            text.append("line ").append(i).append(" of a very repetitive text file\n");
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Path write(String name, byte[] data) throws IOException {
+        Path source = local.resolve("source");
+        Files.createDirectories(source);
+        return Files.write(source.resolve(name), data);
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        return future.get(LoopbackServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private byte[] download(String name) throws Exception {
+        Path target = local.resolve("target");
+        Files.createDirectories(target);
+        return Files.readAllBytes(get(client.download(name, target)));
+    }
+
+    @Test
+    void smallFilesRoundTrip() throws Exception {
+        byte[] data = random(100_000, 1);
+        JsonProtocol reply = get(client.upload(write("small.bin", data).toString()));
+        assertEquals("OK", reply.status);
+
+        assertArrayEquals(data, download("small.bin"));
+        assertEquals(Checksum.of(data), get(client.checksum("small.bin")).crc);
+        assertTrue(get(client.list()).contains("small.bin"));
+    }
+
+    @Test
+    void largeFilesRoundTripOverRanges() throws Exception {
+        byte[] data = random(5 * 1024 * 1024 + 123, 2);
+        assertEquals("OK", get(client.upload(write("large.bin", data).toString())).status);
+
+        assertArrayEquals(data, download("large.bin"));
+        assertEquals(Checksum.of(data), get(client.checksum("large.bin")).crc);
+    }
+
+    @Test
+    void emptyFilesRoundTrip() throws Exception {
+        assertEquals("OK", get(client.upload(write("empty.bin", new byte[0]).toString())).status);
+        assertArrayEquals(new byte[0], download("empty.bin"));
+    }
+
+    @Test
+    void missingDownloadsFail() {
+        assertThrows(ExecutionException.class, () -> download("missing.bin"));
+        assertFalse(Files.exists(local.resolve("target").resolve("missing.bin")));
+    }
+
+    private static long blockCount() throws IOException {
+        Path blocks = storage.resolve(".blocks");
+        if (!Files.exists(blocks)) {
+            return 0;
+        }
+        try (Stream<Path> paths = Files.walk(blocks)) {
+            return paths.filter(Files::isRegularFile).count();
+        }
+    }
+
+    @Test
+    void identicalLargeFilesShareTheirBlocks() throws Exception {
+        byte[] data = random(3 * 1024 * 1024, 3);
+        assertEquals("OK", get(client.upload(write("first.bin", data).toString())).status);
+        long blocks = blockCount();
+        assertTrue(blocks > 0);
+
+        assertEquals("OK", get(client.upload(write("second.bin", data).toString())).status);
+        assertEquals(blocks, blockCount());
+        assertArrayEquals(data, download("second.bin"));
+    }
+
+    @Test
+    void modifiedLargeFilesAreSentAsDeltas() throws Exception {
+        byte[] data = random(4 * 1024 * 1024, 4);
+        assertEquals("OK", get(client.upload(write("delta.bin", data).toString())).status);
+
+        Set<String> listed = ConcurrentHashMap.newKeySet();
+        Client watcher = new Client("127.0.0.1", port);
+        watcher.setListCallback(listed::addAll);
+        LoopbackServer.run(watcher);
+        try {
+            LoopbackServer.await(() -> listed.contains("delta.bin"));
+            long applied = get(watcher.stats()).getOrDefault("op.DELTA_APPLY.requests", 0L);
+
+            System.arraycopy(random(5000, 5), 0, data, 2_000_000, 5000);
+            assertEquals("OK", get(watcher.upload(write("delta.bin", data).toString())).status);
+            assertEquals(applied + 1, get(watcher.stats()).get("op.DELTA_APPLY.requests"));
+        }
+        finally {
+            watcher.close();
+        }
+        assertArrayEquals(data, download("delta.bin"));
+    }
+
+    @Test
+    void batchesUploadDownloadAndDeleteManyFiles() throws Exception {
+        List<Path> files = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] data = random(i * 1000, 100 + i);
+            String name = "batch-" + i + ".bin";
+            files.add(write(name, data));
+            names.add(name);
+            contents.add(data);
+        }
+
+        Map<String, String> uploaded = get(client.uploadAll(files));
+        assertEquals(names.size(), uploaded.size());
+        uploaded.forEach((name, status) -> assertEquals("OK", status, name));
+
+        Path target = local.resolve("batch");
+        Files.createDirectories(target);
+        List<String> wanted = new ArrayList<>(names);
+        wanted.add("batch-missing.bin");
+        Map<String, String> downloaded = get(client.downloadAll(wanted, target));
+        assertEquals("NOT_FOUND", downloaded.get("batch-missing.bin"));
+        for (int i = 0; i < names.size(); i++) {
+            assertEquals("OK", downloaded.get(names.get(i)), names.get(i));
+            assertArrayEquals(contents.get(i), Files.readAllBytes(target.resolve(names.get(i))));
+        }
+
+        Map<String, String> deleted = get(client.deleteAll(wanted));
+        assertEquals("NOT_FOUND", deleted.get("batch-missing.bin"));
+        names.forEach(name -> assertEquals("OK", deleted.get(name), name));
+        List<String> remaining = get(client.list());
+        names.forEach(name -> assertFalse(remaining.contains(name), name));
+    }
+
+    @Test
+    void compressibleFilesTravelDeflated() throws Exception {
+        byte[] data = text(600_000);
+        long before = get(client.stats()).getOrDefault("op.UPLOAD.bytes.in", 0L);
+
+        assertEquals("OK", get(client.upload(write("text.txt", data).toString())).status);
+        long sent = get(client.stats()).get("op.UPLOAD.bytes.in") - before;
+        assertTrue(sent < data.length / 4, "sent " + sent + " bytes for " + data.length);
+        assertEquals(Checksum.of(data), get(client.checksum("text.txt")).crc);
+        assertArrayEquals(data, download("text.txt"));
+    }
+
+    @Test
+    void statsReportPerOperationCounters() throws Exception {
+        byte[] data = random(10_000, 6);
+        assertEquals("OK", get(client.upload(write("counted.bin", data).toString())).status);
+        download("counted.bin");
+
+        Map<String, Long> stats = get(client.stats());
+        assertTrue(stats.get("connections") >= 1);
+        assertTrue(stats.get("requests") >= 2);
+        assertTrue(stats.get("store.files") >= 1);
+        assertTrue(stats.get("op.UPLOAD.requests") >= 1);
+        assertTrue(stats.get("op.UPLOAD.bytes.in") >= data.length);
+        assertTrue(stats.containsKey("op.UPLOAD.p99.us"));
+        assertTrue(stats.get("memory.limit") > 0);
+    }
+
+    @Test
+    void otherClientsAreToldAboutChanges() throws Exception {
+        Set<String> updated = ConcurrentHashMap.newKeySet();
+        Set<String> removed = ConcurrentHashMap.newKeySet();
+        Client watcher = new Client("127.0.0.1", port);
+        watcher.setListChangeCallback((files, gone) -> {
+            updated.addAll(files);
+            removed.addAll(gone);
+        });
+        LoopbackServer.run(watcher);
+        try {
+            get(watcher.list());
+            assertEquals("OK", get(client.upload(write("pushed.bin", random(100, 7)).toString())).status);
+            LoopbackServer.await(() -> updated.contains("pushed.bin"));
+
+            assertEquals("OK", get(client.delete("pushed.bin")).status);
+            LoopbackServer.await(() -> removed.contains("pushed.bin"));
+        }
+        finally {
+            watcher.close();
+        }
+    }
+
+    private static long openFilesUnder(Path root) throws IOException {
+        Path real = root.toRealPath();
+        try (Stream<Path> fds = Files.list(Path.of("/proc/self/fd"))) {
+            return fds.filter(fd -> {
+                try {
+                    return Files.readSymbolicLink(fd).startsWith(real);
+                }
+                catch (IOException e) {
+                    return false;
+                }
+            }).count();
+        }
+    }
+
+    @Test
+    void droppedCompressedDownloadsCloseTheirFiles() throws Exception {
+        assumeTrue(Files.isDirectory(Path.of("/proc/self/fd")));
+        Files.write(storage.resolve("dropped.txt"), text(20 * 1024 * 1024));
+        LoopbackServer.await(() -> {
+            try {
+                return get(client.list()).contains("dropped.txt");
+            }
+            catch (Exception e) {
+                return false;
+            }
+        });
+        long open = openFilesUnder(storage);
+        long used = get(client.stats()).get("memory.used");
+
+        for (int i = 0; i < 20; i++) {
+            JsonProtocol json = new JsonProtocol();
+            json.operation = Operation.DOWNLOAD;
+            json.id = 1;
+            json.fileName = "dropped.txt";
+            json.offset = i * 1024L;
+            json.length = 4 * 1024 * 1024;
+            json.encoding = Compression.DEFLATE;
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+                ByteBuffer packet = ProtocolWriter.buildPacket(MetadataCodec.JSON, json, null);
+                while (packet.hasRemaining()) {
+                    channel.write(packet);
+                }
+                Thread.sleep(i);
+            }
+        }
+        LoopbackServer.await(() -> {
+            try {
+                return get(client.stats()).get("memory.used") <= used;
+            }
+            catch (Exception e) {
+                return false;
+            }
+        });
+        assertEquals(open, openFilesUnder(storage));
+    }
+}
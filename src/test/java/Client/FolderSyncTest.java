@@ -0,0 +1,150 @@
+package Client;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import Protocol.Checksum;
+
+class FolderSyncTest {
+    @TempDir
+    Path storage;
+
+    @TempDir
+    Path folder;
+
+    @TempDir
+    Path source;
+
+    private Client client;
+
+    @BeforeEach
+    void connect() throws Exception {
+        client = LoopbackServer.connect(LoopbackServer.start(storage));
+    }
+
+    @AfterEach
+    void close() {
+        client.close();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private boolean remote(String name) {
+        try {
+            return client.list().get(LoopbackServer.TIMEOUT_SECONDS, TimeUnit.SECONDS).contains(name);
+        }
+        catch (InterruptedException | ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    private long remoteCrc(String name) throws Exception {
+        return client.checksum(name).get(LoopbackServer.TIMEOUT_SECONDS, TimeUnit.SECONDS).crc;
+    }
+
+    private static boolean holds(Path path, byte[] data) {
+        try {
+            return Files.exists(path) && Files.size(path) == data.length
+                    && Checksum.of(Files.readAllBytes(path)) == Checksum.of(data);
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Test
+    void firstPassReconcilesBothSides() throws Exception {
+        byte[] remote = random(50_000, 1);
+        Path upload = Files.write(source.resolve("remote.bin"), remote);
+        assertEquals("OK", client.upload(upload.toString()).get(LoopbackServer.TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .status);
+        byte[] small = random(1000, 2);
+        byte[] large = random(2 * 1024 * 1024, 3);
+        Files.write(folder.resolve("small.bin"), small);
+        Files.write(folder.resolve("large.bin"), large);
+
+        try (FolderSync sync = new FolderSync(client, folder)) {
+            sync.start();
+            LoopbackServer.await(() -> holds(folder.resolve("remote.bin"), remote));
+            LoopbackServer.await(() -> remote("small.bin") && remote("large.bin"));
+        }
+        assertEquals(Checksum.of(small), remoteCrc("small.bin"));
+        assertEquals(Checksum.of(large), remoteCrc("large.bin"));
+        assertArrayEquals(remote, Files.readAllBytes(folder.resolve("remote.bin")));
+        assertTrue(Files.exists(folder.resolve(".sync-state")));
+    }
+
+    @Test
+    void localChangesArePushed() throws Exception {
+        try (FolderSync sync = new FolderSync(client, folder)) {
+            sync.start();
+            byte[] added = random(3000, 4);
+            Files.write(folder.resolve("added.bin"), added);
+            LoopbackServer.await(() -> remote("added.bin"));
+            assertEquals(Checksum.of(added), remoteCrc("added.bin"));
+
+            Files.delete(folder.resolve("added.bin"));
+            LoopbackServer.await(() -> !remote("added.bin"));
+        }
+        assertEquals(List.of(), client.list().get(LoopbackServer.TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void equalSizedFilesWithDifferentBytesAreResolvedByMtime() throws Exception {
+        byte[] same = random(4000, 5);
+        byte[] remoteOlder = random(4000, 6);
+        byte[] remoteNewer = random(4000, 7);
+        for (String name : List.of("same.bin", "older.bin", "newer.bin")) {
+            byte[] data = name.equals("same.bin") ? same : name.equals("older.bin") ? remoteOlder : remoteNewer;
+            Path upload = Files.write(source.resolve(name), data);
+            assertEquals("OK", client.upload(upload.toString()).get(LoopbackServer.TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .status);
+        }
+
+        long now = System.currentTimeMillis();
+        byte[] localNewer = random(4000, 8);
+        byte[] localOlder = random(4000, 9);
+        Files.write(folder.resolve("same.bin"), same);
+        Files.setLastModifiedTime(Files.write(folder.resolve("older.bin"), localNewer),
+                FileTime.fromMillis(now + 3_600_000));
+        Files.setLastModifiedTime(Files.write(folder.resolve("newer.bin"), localOlder),
+                FileTime.fromMillis(now - 3_600_000));
+        FileTime sameMtime = Files.getLastModifiedTime(folder.resolve("same.bin"));
+
+        try (FolderSync sync = new FolderSync(client, folder)) {
+            sync.start();
+            LoopbackServer.await(() -> holds(folder.resolve("newer.bin"), remoteNewer));
+            LoopbackServer.await(() -> {
+                try {
+                    return remoteCrc("older.bin") == Checksum.of(localNewer);
+                }
+                catch (Exception e) {
+                    return false;
+                }
+            });
+        }
+        assertArrayEquals(localNewer, Files.readAllBytes(folder.resolve("older.bin")));
+        assertEquals(sameMtime, Files.getLastModifiedTime(folder.resolve("same.bin")));
+        assertEquals(Checksum.of(same), remoteCrc("same.bin"));
+    }
+}
@@ -0,0 +1,69 @@
+package Client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import Protocol.Log;
+import Server.Server;
+
+final class LoopbackServer {
+    static final long TIMEOUT_SECONDS = 30;
+
+    private LoopbackServer() {}
+
+    static int start(Path root) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        Server server = new Server(port, 2, root);
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.start();
+            }
+            catch (IOException e) {
+                Log.warn("[-] Server failed: " + e.getMessage());
+            }
+        }, "acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        await(() -> {
+            try {
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).close();
+                return true;
+            }
+            catch (IOException e) {
+                return false;
+            }
+        });
+        return port;
+    }
+
+    static Client connect(int port) {
+        return run(new Client("127.0.0.1", port));
+    }
+
+    static Client run(Client client) {
+        Thread thread = new Thread(client::start, "client");
+        thread.setDaemon(true);
+        thread.start();
+        return client;
+    }
+
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timed out waiting for the condition");
+            }
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package Protocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+    @Test
+    void reusesReleasedBuffersOfTheSameClass() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer first = pool.acquire(3000);
+        assertTrue(first.isDirect());
+        assertEquals(4096, first.capacity());
+        assertEquals(3000, first.limit());
+
+        first.order(ByteOrder.LITTLE_ENDIAN).position(100);
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire(2049);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(2049, second.limit());
+        assertEquals(ByteOrder.BIG_ENDIAN, second.order());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    void sizesDoNotShareClasses() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer small = pool.acquire(100);
+        pool.release(small);
+        assertNotSame(small, pool.acquire(1000));
+    }
+
+    @Test
+    void oversizedBuffersComeFromTheHeap() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer large = pool.acquire((1 << 20) + 1);
+        assertFalse(large.isDirect());
+        pool.release(large);
+        assertNotSame(large, pool.acquire((1 << 20) + 1));
+    }
+
+    @Test
+    void tracksOutstandingBuffers() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer a = pool.acquire(10);
+        ByteBuffer b = pool.acquire(10);
+        assertEquals(2, pool.getOutstanding());
+        pool.release(a);
+        pool.release(b);
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, pool.reportLeaks("test"));
+    }
+
+    @Test
+    void allocateWithoutPoolUsesTheHeap() {
+        ByteBuffer buffer = BufferPool.allocate(null, 64);
+        assertFalse(buffer.isDirect());
+        assertEquals(64, buffer.capacity());
+    }
+}
@@ -0,0 +1,65 @@
+package Protocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ChecksumTest {
+    @Test
+    void combineMatchesCrcOverConcatenation() {
+        Random random = new Random(24);
+        for (int round = 0; round < 50; round++) {
+            byte[] data = new byte[random.nextInt(200_000) + 1];
+            random.nextBytes(data);
+            int split = random.nextInt(data.length + 1);
+
+            long first = Checksum.of(Arrays.copyOfRange(data, 0, split));
+            long second = Checksum.of(Arrays.copyOfRange(data, split, data.length));
+            assertEquals(Checksum.of(data), Checksum.combine(first, second, data.length - split));
+        }
+    }
+
+    @Test
+    void combineFoldsManyParts() {
+        Random random = new Random(7);
+        byte[] data = new byte[1 << 20];
+        random.nextBytes(data);
+
+        long crc = Checksum.of(new byte[0]);
+        int at = 0;
+        while (at < data.length) {
+            int length = Math.min(data.length - at, random.nextInt(70_000) + 1);
+            crc = Checksum.combine(crc, Checksum.of(ByteBuffer.wrap(data, at, length)), length);
+            at += length;
+        }
+        assertEquals(Checksum.of(data), crc);
+    }
+
+    @Test
+    void combineWithEmptySecondPartKeepsFirst() {
+        long first = Checksum.of(new byte[] {9, 8, 7});
+        assertEquals(first, Checksum.combine(first, Checksum.of(new byte[0]), 0));
+    }
+
+    @Test
+    void computedChecksumsAreKnown() {
+        assertTrue(Checksum.isKnown(Checksum.of(new byte[0])));
+        assertFalse(Checksum.isKnown(Checksum.NONE));
+        assertEquals("none", Checksum.format(Checksum.NONE));
+        assertEquals("e3069283", Checksum.format(Checksum.of("123456789".getBytes())));
+    }
+
+    @Test
+    void bufferChecksumLeavesPositionAlone() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, 2, 3, 4});
+        buffer.position(1);
+        assertEquals(Checksum.of(new byte[] {2, 3, 4}), Checksum.of(buffer));
+        assertEquals(1, buffer.position());
+    }
+}
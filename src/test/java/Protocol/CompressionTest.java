@@ -0,0 +1,79 @@
+package Protocol;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class CompressionTest {
+    private static byte[] text(int length) {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(17);
+        while (text.length() < length) {
+            text.append("2026-10-18 12:00:").append(random.nextInt(60)).append(" INFO request id=")
+                    .append(random.nextInt(100_000)).append(" status=200\n");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), length);
+    }
+
+    private static byte[] noise(int length) {
+        byte[] data = new byte[length];
+        new Random(3).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void deflateRoundTripsText() throws IOException {
+        byte[] data = text(300_000);
+        byte[] packed = Compression.deflate(data, 0, data.length);
+        assertNotNull(packed);
+        assertTrue(packed.length < data.length / 3);
+        assertArrayEquals(data, Compression.inflate(packed, data.length));
+    }
+
+    @Test
+    void deflateHonoursOffsetAndLength() throws IOException {
+        byte[] data = text(10_000);
+        byte[] packed = Compression.deflate(data, 1000, 5000);
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 6000), Compression.inflate(packed, 5000));
+    }
+
+    @Test
+    void deflateGivesUpOnIncompressibleData() {
+        byte[] data = noise(100_000);
+        assertNull(Compression.deflate(data, 0, data.length));
+    }
+
+    @Test
+    void samplingSkipsSmallAndRandomPayloads() {
+        assertTrue(Compression.worthCompressing(text(100_000), 0, 100_000));
+        assertFalse(Compression.worthCompressing(noise(100_000), 0, 100_000));
+        assertFalse(Compression.worthCompressing(text(Compression.MIN_SIZE - 1), 0, Compression.MIN_SIZE - 1));
+    }
+
+    @Test
+    void inflateRejectsWrongLengths() {
+        byte[] data = text(50_000);
+        byte[] packed = Compression.deflate(data, 0, data.length);
+        assertThrows(IOException.class, () -> Compression.inflate(packed, data.length - 1));
+        assertThrows(IOException.class, () -> Compression.inflate(packed, data.length + 1));
+        assertThrows(IOException.class, () -> Compression.inflate(Arrays.copyOf(packed, packed.length / 2),
+                data.length));
+    }
+
+    @Test
+    void onlyDeflateIsSupported() {
+        assertTrue(Compression.isSupported(null));
+        assertTrue(Compression.isSupported(Compression.DEFLATE));
+        assertFalse(Compression.isSupported("lz4"));
+    }
+}
@@ -0,0 +1,113 @@
+package Protocol;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeltaTest {
+    @TempDir
+    Path dir;
+
+    private static Delta.Source source(byte[] data) {
+        return (dst, position) -> {
+            if (position >= data.length) {
+                return -1;
+            }
+            int count = (int) Math.min(dst.remaining(), data.length - position);
+            dst.put(data, (int) position, count);
+            return count;
+        };
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private Delta.Encoded encode(byte[] base, byte[] target, int blockSize, int maxLength) throws IOException {
+        Path file = dir.resolve("target.bin");
+        Files.write(file, target);
+        byte[] signatures = Delta.signatures(source(base), base.length, blockSize);
+        return Delta.encode(file, signatures, blockSize, maxLength);
+    }
+
+    private static byte[] apply(byte[] base, int blockSize, Delta.Encoded encoded) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageDigest digest = Chunker.sha256();
+        long written = Delta.apply(source(base), base.length, blockSize,
+                new ByteArrayInputStream(encoded.instructions()), out, digest);
+        assertEquals(out.size(), written);
+        assertArrayEquals(encoded.hash(), digest.digest());
+        return out.toByteArray();
+    }
+
+    @Test
+    void applyReproducesEditedTarget() throws IOException {
+        byte[] base = random(1_000_000, 7);
+        int blockSize = Delta.blockSizeFor(base.length);
+
+        byte[] inserted = random(3000, 8);
+        byte[] target = new byte[base.length + inserted.length - 5000];
+        System.arraycopy(base, 0, target, 0, 400_000);
+        System.arraycopy(inserted, 0, target, 400_000, inserted.length);
+        System.arraycopy(base, 405_000, target, 400_000 + inserted.length, base.length - 405_000);
+        target[target.length - 10] ^= 1;
+
+        Delta.Encoded encoded = encode(base, target, blockSize, target.length);
+        assertNotNull(encoded);
+        assertTrue(encoded.instructions().length < target.length / 10, "delta should mostly copy");
+        assertArrayEquals(target, apply(base, blockSize, encoded));
+    }
+
+    @Test
+    void applyReproducesTargetWithoutMatches() throws IOException {
+        byte[] base = random(50_000, 1);
+        byte[] target = random(70_001, 2);
+        int blockSize = Delta.blockSizeFor(base.length);
+
+        Delta.Encoded encoded = encode(base, target, blockSize, Integer.MAX_VALUE);
+        assertArrayEquals(target, apply(base, blockSize, encoded));
+    }
+
+    @Test
+    void applyHandlesShortTargetAndTail() throws IOException {
+        byte[] base = random(10_000, 3);
+        int blockSize = 2048;
+
+        byte[] prefix = Arrays.copyOf(base, 100);
+        assertArrayEquals(prefix, apply(base, blockSize, encode(base, prefix, blockSize, Integer.MAX_VALUE)));
+        assertArrayEquals(base, apply(base, blockSize, encode(base, base, blockSize, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void encodeGivesUpPastMaxLength() throws IOException {
+        byte[] base = random(50_000, 4);
+        byte[] target = random(50_000, 5);
+        assertNull(encode(base, target, 2048, 1000));
+    }
+
+    @Test
+    void applyRejectsCopiesOutsideTheBase() {
+        byte[] instructions = {0, 0, 0, 0, 9, 0, 0, 0, 1};
+        assertThrows(IOException.class, () -> Delta.apply(source(new byte[4096]), 4096, 2048,
+                new ByteArrayInputStream(instructions), new ByteArrayOutputStream(), Chunker.sha256()));
+        assertThrows(IOException.class, () -> Delta.apply(source(new byte[4096]), 4096, 2048,
+                new ByteArrayInputStream(new byte[] {7}), new ByteArrayOutputStream(), Chunker.sha256()));
+    }
+}
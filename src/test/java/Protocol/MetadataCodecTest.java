@@ -0,0 +1,96 @@
+package Protocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class MetadataCodecTest {
+    private static JsonProtocol sample() {
+        JsonProtocol msg = new JsonProtocol();
+        msg.id = 42;
+        msg.operation = Operation.BATCH_DOWNLOAD_REPLY;
+        msg.fileName = "отчёт 2026.txt";
+        msg.size = 64L << 30;
+        msg.offset = 1;
+        msg.length = 300;
+        msg.status = "OK";
+        msg.message = "";
+        msg.files = List.of("a.txt", "b/c.bin");
+        msg.hash = "ab".repeat(32);
+        msg.hashes = List.of("01", "02", "03");
+        msg.codec = "binary";
+        msg.cursor = "17";
+        msg.prefix = "b/";
+        msg.limit = 1000;
+        msg.seq = Long.MAX_VALUE;
+        msg.removed = List.of("old.txt");
+        msg.encoding = Compression.DEFLATE;
+        msg.stats = Map.of("requests", 5L, "bytes", 1L << 40);
+        msg.sizes = List.of(0L, 7L, 1L << 33);
+        msg.mtimes = List.of(1_700_000_000_000L);
+        msg.crc = Checksum.of(new byte[] {1, 2, 3});
+        msg.results = List.of("OK", "NOT_FOUND");
+        return msg;
+    }
+
+    private static JsonProtocol roundTrip(MetadataCodec codec, JsonProtocol msg) {
+        ByteBuffer buffer = codec.encode(msg, ProtocolWriter.HEADER_SIZE, 0);
+        buffer.flip();
+        buffer.position(ProtocolWriter.HEADER_SIZE);
+        return codec.decode(buffer);
+    }
+
+    @Test
+    void jsonRoundTripsEveryField() {
+        JsonProtocol msg = sample();
+        assertEquals(JsonProtocol.toJson(msg), JsonProtocol.toJson(roundTrip(MetadataCodec.JSON, msg)));
+    }
+
+    @Test
+    void binaryRoundTripsEveryField() {
+        JsonProtocol msg = sample();
+        assertEquals(JsonProtocol.toJson(msg), JsonProtocol.toJson(roundTrip(MetadataCodec.BINARY, msg)));
+    }
+
+    @Test
+    void binaryLeavesUnsetFieldsEmpty() {
+        JsonProtocol msg = new JsonProtocol();
+        msg.operation = Operation.LIST;
+
+        JsonProtocol decoded = roundTrip(MetadataCodec.BINARY, msg);
+        assertEquals(Operation.LIST, decoded.operation);
+        assertNull(decoded.fileName);
+        assertNull(decoded.files);
+        assertEquals(0, decoded.size);
+        assertEquals(0, decoded.crc);
+    }
+
+    @Test
+    void binaryDecodesFromPooledBuffers() {
+        BufferPool pool = new BufferPool();
+        JsonProtocol msg = sample();
+        ByteBuffer buffer = MetadataCodec.BINARY.encode(msg, 0, 0, pool);
+        buffer.flip();
+        try {
+            assertEquals(JsonProtocol.toJson(msg), JsonProtocol.toJson(MetadataCodec.BINARY.decode(buffer)));
+        }
+        finally {
+            pool.release(buffer);
+        }
+    }
+
+    @Test
+    void codecsAreFoundByMagicAndName() {
+        assertSame(MetadataCodec.JSON, MetadataCodec.forMagic(ProtocolWriter.MAGIC));
+        assertSame(MetadataCodec.BINARY, MetadataCodec.forMagic(ProtocolWriter.MAGIC_BINARY));
+        assertNull(MetadataCodec.forMagic((short) 0));
+        assertSame(MetadataCodec.BINARY, MetadataCodec.forName("binary"));
+        assertSame(MetadataCodec.JSON, MetadataCodec.forName("gzip"));
+    }
+}
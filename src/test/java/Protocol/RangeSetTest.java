@@ -0,0 +1,69 @@
+package Protocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class RangeSetTest {
+    @Test
+    void mergesOverlappingAndAdjacentRanges() {
+        RangeSet set = new RangeSet();
+        set.add(0, 10);
+        set.add(20, 30);
+        assertEquals(20, set.covered());
+        assertFalse(set.covers(0, 30));
+
+        set.add(10, 20);
+        assertEquals(30, set.covered());
+        assertTrue(set.covers(0, 30));
+    }
+
+    @Test
+    void ignoresEmptyAndContainedRanges() {
+        RangeSet set = new RangeSet();
+        set.add(5, 5);
+        set.add(9, 3);
+        assertEquals(0, set.covered());
+
+        set.add(0, 100);
+        set.add(10, 20);
+        assertEquals(100, set.covered());
+    }
+
+    @Test
+    void swallowsSeveralRangesAtOnce() {
+        RangeSet set = new RangeSet();
+        set.add(10, 20);
+        set.add(30, 40);
+        set.add(50, 60);
+        set.add(15, 55);
+        assertEquals(50, set.covered());
+        assertTrue(set.covers(10, 60));
+        assertFalse(set.covers(0, 60));
+    }
+
+    @Test
+    void coveredMatchesBitmapForRandomRanges() {
+        Random random = new Random(16);
+        RangeSet set = new RangeSet();
+        BitSet bits = new BitSet();
+        for (int i = 0; i < 2000; i++) {
+            int start = random.nextInt(10_000);
+            int end = start + random.nextInt(200);
+            set.add(start, end);
+            bits.set(start, end);
+            assertEquals(bits.cardinality(), set.covered());
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            int start = random.nextInt(10_000);
+            int end = start + 1 + random.nextInt(50);
+            assertEquals(bits.nextClearBit(start) >= end, set.covers(start, end));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import Protocol.Operation;
+
+class HistogramTest {
+    @Test
+    void bucketsBoundValuesWithinAnEighth() {
+        Random random = new Random(21);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int bucket = Histogram.bucket(value);
+            assertTrue(bucket >= 0 && bucket < Histogram.BUCKETS);
+            long upper = Histogram.upperBound(bucket);
+            assertTrue(upper >= value, value + " above its bucket bound " + upper);
+            assertTrue(upper - value <= value / 8, value + " too far from its bucket bound " + upper);
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.upperBound(Histogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    void bucketsAreMonotonic() {
+        int previous = 0;
+        for (long value = 0; value < 1 << 16; value++) {
+            int bucket = Histogram.bucket(value);
+            assertTrue(bucket >= previous);
+            previous = bucket;
+        }
+    }
+
+    @Test
+    void percentilesOfAUniformSpread() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+        long[] totals = new long[Histogram.BUCKETS];
+        histogram.addTo(totals);
+
+        assertEquals(10_000, Histogram.count(totals));
+        assertNear(5000, Histogram.percentile(totals, 0.5));
+        assertNear(9900, Histogram.percentile(totals, 0.99));
+        assertNear(10_000, Histogram.percentile(totals, 1.0));
+        assertEquals(1, Histogram.percentile(totals, 0));
+    }
+
+    @Test
+    void emptyAndNegativeSamples() {
+        Histogram histogram = new Histogram();
+        long[] totals = new long[Histogram.BUCKETS];
+        assertEquals(0, Histogram.percentile(totals, 0.99));
+
+        histogram.record(-5);
+        histogram.addTo(totals);
+        assertEquals(1, Histogram.count(totals));
+        assertEquals(0, Histogram.percentile(totals, 0.5));
+    }
+
+    @Test
+    void metricsCountRequestsErrorsAndBytes() {
+        Metrics metrics = new Metrics();
+        metrics.onRequest(Operation.UPLOAD, 100);
+        metrics.onReply(Operation.UPLOAD, 20, 1_000, false);
+        metrics.onRequest(Operation.UPLOAD, 50);
+        metrics.onReply(Operation.UPLOAD, 20, 3_000, true);
+
+        assertEquals(2, metrics.getRequests(Operation.UPLOAD));
+        assertEquals(1, metrics.getErrors(Operation.UPLOAD));
+        assertEquals(150, metrics.getBytesIn(Operation.UPLOAD));
+        assertEquals(40, metrics.getBytesOut(Operation.UPLOAD));
+        assertEquals(0, metrics.getRequests(Operation.LIST));
+
+        long[] totals = new long[Histogram.BUCKETS];
+        metrics.addServiceTimes(Operation.UPLOAD, totals);
+        assertEquals(2, Histogram.count(totals));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 8, "expected ~" + expected + " but was " + actual);
+    }
+}
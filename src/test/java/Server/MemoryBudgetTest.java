@@ -0,0 +1,76 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class MemoryBudgetTest {
+    @Test
+    void optionalReservationsStopAtTheHighWatermark() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        assertTrue(budget.tryReserve(700));
+        assertFalse(budget.tryReserve(51));
+        assertTrue(budget.tryReserve(50));
+        assertEquals(750, budget.getUsed());
+        assertFalse(budget.isExhausted());
+    }
+
+    @Test
+    void requiredReservationsStopAtTheLimit() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        assertTrue(budget.reserve(900));
+        assertFalse(budget.reserve(101));
+        assertTrue(budget.reserve(100));
+        assertTrue(budget.isExhausted());
+        assertFalse(budget.tryReserve(1));
+
+        budget.release(1000);
+        assertEquals(0, budget.getUsed());
+        assertFalse(budget.isExhausted());
+    }
+
+    @Test
+    void chargesAreCountedEvenOverTheLimit() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        budget.charge(1500);
+        assertTrue(budget.isExhausted());
+        assertFalse(budget.reserve(1));
+
+        budget.release(1500);
+        assertTrue(budget.reserve(1));
+    }
+
+    @Test
+    void concurrentReservationsNeverOvershoot() {
+        MemoryBudget budget = new MemoryBudget(4000);
+        AtomicLong granted = new AtomicLong();
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            workers.add(CompletableFuture.runAsync(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    if (budget.tryReserve(7)) {
+                        granted.addAndGet(7);
+                        assertTrue(budget.getUsed() <= 3000);
+                        budget.release(7);
+                    }
+                }
+            }));
+        }
+        workers.forEach(CompletableFuture::join);
+        assertTrue(granted.get() > 0);
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    void limitMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new MemoryBudget(0));
+    }
+}
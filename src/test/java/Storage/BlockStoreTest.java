@@ -0,0 +1,136 @@
+package Storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import Protocol.Chunker;
+
+class BlockStoreTest {
+    @TempDir
+    Path dir;
+
+    private BlockStore blocks;
+
+    @BeforeEach
+    void open() {
+        blocks = new BlockStore(dir.resolve("blocks"));
+    }
+
+    private static String hash(String content) {
+        return HexFormat.of().formatHex(Chunker.sha256().digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String adopt(String content) throws IOException {
+        Path temp = Files.writeString(dir.resolve("upload.tmp"), content);
+        String hash = hash(content);
+        blocks.adopt(temp, hash);
+        return hash;
+    }
+
+    private String plant(String content, long ageMillis) throws IOException {
+        String hash = hash(content);
+        Path path = blocks.path(hash);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - ageMillis));
+        return hash;
+    }
+
+    @Test
+    void adoptStoresVerifiedBlocks() throws IOException {
+        String hash = adopt("hello");
+        assertTrue(blocks.has(hash));
+        assertEquals(5, blocks.length(hash));
+        assertFalse(Files.exists(dir.resolve("upload.tmp")));
+
+        adopt("hello");
+        assertFalse(Files.exists(dir.resolve("upload.tmp")));
+        assertTrue(blocks.has(hash));
+    }
+
+    @Test
+    void adoptRejectsMismatchedContent() throws IOException {
+        Path temp = Files.writeString(dir.resolve("upload.tmp"), "tampered");
+        String hash = hash("original");
+        assertThrows(IOException.class, () -> blocks.adopt(temp, hash));
+        assertFalse(blocks.has(hash));
+        assertFalse(Files.exists(temp));
+
+        assertThrows(IOException.class, () -> blocks.adopt(temp, "../../etc/passwd"));
+    }
+
+    @Test
+    void missingListsAbsentHashesOnce() throws IOException {
+        String present = adopt("present");
+        String absent = hash("absent");
+        assertEquals(List.of(absent), blocks.missing(List.of(present, absent, absent)));
+        assertFalse(blocks.has("not-a-hash"));
+    }
+
+    @Test
+    void acquireMeasuresBlocksAndFailsOnMissingOnes() throws IOException {
+        String a = adopt("aaaa");
+        String b = adopt("bb");
+        assertArrayEquals(new long[] {4, 2, 4}, blocks.acquire(List.of(a, b, a)));
+        assertThrows(NoSuchFileException.class, () -> blocks.acquire(List.of(a, hash("gone"))));
+    }
+
+    @Test
+    void releaseDeletesUnleasedBlocksWithTheirLastReference() throws IOException {
+        String hash = plant("shared", 0);
+        blocks.retain(List.of(hash));
+        blocks.retain(List.of(hash));
+
+        blocks.release(List.of(hash));
+        assertTrue(blocks.has(hash));
+        blocks.release(List.of(hash));
+        assertFalse(blocks.has(hash));
+    }
+
+    @Test
+    void leasedBlocksSurviveTheirLastRelease() throws IOException {
+        String uploaded = adopt("uploaded");
+        blocks.acquire(List.of(uploaded));
+        blocks.release(List.of(uploaded));
+        assertTrue(blocks.has(uploaded));
+
+        String announced = plant("announced", 0);
+        blocks.retain(List.of(announced));
+        assertTrue(blocks.missing(List.of(announced)).isEmpty());
+        blocks.release(List.of(announced));
+        assertTrue(blocks.has(announced));
+    }
+
+    @Test
+    void sweepRemovesOnlyOldUnreferencedUnleasedBlocks() throws IOException {
+        long old = BlockStore.LEASE + 60_000;
+        String orphan = plant("orphan", old);
+        String referenced = plant("referenced", old);
+        String fresh = plant("fresh", 0);
+        String leased = plant("leased", old);
+        blocks.retain(List.of(referenced));
+        blocks.missing(List.of(leased));
+
+        assertEquals(1, blocks.sweep());
+        assertFalse(blocks.has(orphan));
+        assertTrue(blocks.has(referenced));
+        assertTrue(blocks.has(fresh));
+        assertTrue(blocks.has(leased));
+    }
+}
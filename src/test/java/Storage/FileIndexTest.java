@@ -0,0 +1,137 @@
+package Storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import Protocol.Checksum;
+
+class FileIndexTest {
+    private static FileIndex index(String... names) {
+        FileIndex index = new FileIndex();
+        for (String name : names) {
+            index.update(name, name.length(), 1);
+        }
+        return index;
+    }
+
+    @Test
+    void pagesWalkTheWholeIndexInOrder() {
+        FileIndex index = new FileIndex();
+        for (int i = 0; i < 25; i++) {
+            index.update(String.format("file-%02d", i), i, 1);
+        }
+
+        List<String> seen = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            FileIndex.Page page = index.page(cursor, null, 10);
+            seen.addAll(page.names());
+            cursor = page.next();
+            pages++;
+        }
+        while (cursor != null);
+
+        assertEquals(3, pages);
+        assertEquals(25, seen.size());
+        assertEquals("file-00", seen.get(0));
+        assertEquals("file-24", seen.get(24));
+    }
+
+    @Test
+    void pagesStayInsideThePrefix() {
+        FileIndex index = index("a/1", "a/2", "a/3", "b/1", "c");
+
+        FileIndex.Page first = index.page(null, "a/", 2);
+        assertEquals(List.of("a/1", "a/2"), first.names());
+        assertEquals("a/2", first.next());
+
+        FileIndex.Page second = index.page(first.next(), "a/", 2);
+        assertEquals(List.of("a/3"), second.names());
+        assertNull(second.next());
+
+        assertEquals(List.of("b/1"), index.page("a/9", "b/", 10).names());
+    }
+
+    @Test
+    void fullPageWithNothingAfterItHasNoCursor() {
+        FileIndex index = index("a", "b");
+        assertNull(index.page(null, null, 2).next());
+    }
+
+    @Test
+    void changesSinceReportsTheLatestStatePerName() {
+        FileIndex index = index("keep", "drop");
+        long cursor = index.version();
+
+        index.update("keep", 100, 2);
+        index.remove("drop");
+        index.update("new", 1, 1);
+        index.remove("new");
+        index.update("new", 2, 2);
+
+        FileIndex.Changes changes = index.changesSince(cursor);
+        assertEquals(index.version(), changes.version());
+        assertEquals(List.of("new", "keep"), changes.updated());
+        assertEquals(List.of("drop"), changes.removed());
+
+        FileIndex.Changes none = index.changesSince(index.version());
+        assertTrue(none.updated().isEmpty());
+        assertTrue(none.removed().isEmpty());
+    }
+
+    @Test
+    void unknownCursorsNeedAFullList() {
+        FileIndex index = index("a");
+        assertNull(index.changesSince(index.version() + 1));
+        assertNull(index.changesSince(0));
+    }
+
+    @Test
+    void unchangedUpdatesDoNotBumpTheVersion() {
+        FileIndex index = index("a");
+        long version = index.version();
+        AtomicInteger notified = new AtomicInteger();
+        index.setListener(notified::incrementAndGet);
+
+        index.update("a", 1, 1);
+        index.remove("missing");
+        assertEquals(version, index.version());
+
+        index.update("a", 2, 1);
+        assertEquals(version + 1, index.version());
+        assertEquals(1, notified.get());
+    }
+
+    @Test
+    void snapshotIsReusedUntilTheIndexChanges() {
+        FileIndex index = index("a", "b");
+        FileIndex.Snapshot snapshot = index.snapshot();
+        assertSame(snapshot, index.snapshot());
+        assertEquals(List.of("a", "b"), snapshot.names());
+
+        index.remove("a");
+        assertEquals(List.of("b"), index.snapshot().names());
+    }
+
+    @Test
+    void checksumIsOnlyRecordedForTheEntryItWasComputedFrom() {
+        FileIndex index = index("a");
+        FileIndex.Entry stale = index.get("a");
+        index.update("a", 5, 5);
+
+        assertFalse(index.setChecksum(stale, Checksum.of(new byte[1])));
+        FileIndex.Entry current = index.get("a");
+        assertTrue(index.setChecksum(current, Checksum.of(new byte[5])));
+        assertEquals(Checksum.of(new byte[5]), index.get("a").crc());
+    }
+}
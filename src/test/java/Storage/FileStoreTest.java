@@ -0,0 +1,247 @@
+package Storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import Protocol.Checksum;
+
+class FileStoreTest {
+    @TempDir
+    Path root;
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] read(FileStore store, String fileName) throws IOException {
+        try (Content content = store.openRead(fileName)) {
+            ByteBuffer data = ByteBuffer.allocate(Math.toIntExact(content.size()));
+            while (data.hasRemaining()) {
+                if (content.read(data, data.position()) < 0) {
+                    throw new IOException("Short read of " + fileName);
+                }
+            }
+            return data.array();
+        }
+    }
+
+    private static void put(FileStore store, String fileName, byte[] data) throws IOException {
+        Path temp = store.createTemp(fileName);
+        Files.write(temp, data);
+        store.commit(temp, fileName, Checksum.of(data));
+    }
+
+    private static Path batch(FileStore store, byte[]... files) throws IOException {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] file : files) {
+            joined.write(file);
+        }
+        Path temp = store.createTemp();
+        Files.write(temp, joined.toByteArray());
+        return temp;
+    }
+
+    @Test
+    void committedFilesAreIndexedAndReadable() throws IOException {
+        FileStore store = FileStore.open(root);
+        byte[] data = random(300_000, 1);
+        put(store, "a.bin", data);
+
+        assertArrayEquals(data, read(store, "a.bin"));
+        assertEquals(List.of("a.bin"), store.list());
+        assertEquals(data.length, store.index().get("a.bin").size());
+        assertEquals(Checksum.of(data), store.checksum("a.bin").crc());
+    }
+
+    @Test
+    void invalidNamesAreRejected() {
+        FileStore store = FileStore.open(root);
+        for (String name : Arrays.asList(null, "", ".", "..", "../x", "a/b", "a\\b")) {
+            assertThrows(IOException.class, () -> store.resolve(name), String.valueOf(name));
+        }
+    }
+
+    @Test
+    void commitBatchSplitsThePayloadIntoFiles() throws IOException {
+        FileStore store = FileStore.open(root);
+        byte[] a = random(1000, 1);
+        byte[] b = new byte[0];
+        byte[] c = random(70_000, 3);
+        byte[] bad = random(10, 4);
+
+        List<String> results = store.commitBatch(batch(store, a, b, bad, c), List.of("a", "b", "../bad", "c"),
+                List.of((long) a.length, 0L, (long) bad.length, (long) c.length));
+
+        assertEquals("OK", results.get(0));
+        assertEquals("OK", results.get(1));
+        assertTrue(results.get(2).startsWith("Invalid file name"));
+        assertEquals("OK", results.get(3));
+        assertArrayEquals(a, read(store, "a"));
+        assertArrayEquals(b, read(store, "b"));
+        assertArrayEquals(c, read(store, "c"));
+        assertEquals(Checksum.of(c), store.checksum("c").crc());
+        assertEquals(List.of("a", "b", "c"), store.list());
+    }
+
+    @Test
+    void commitBatchRejectsSizesThatDoNotAddUp() throws IOException {
+        FileStore store = FileStore.open(root);
+        Path temp = batch(store, random(100, 1));
+        assertThrows(IOException.class, () -> store.commitBatch(temp, List.of("a", "b"), List.of(60L, 60L)));
+        assertThrows(IOException.class, () -> store.commitBatch(temp, List.of("a"), List.of(60L, 40L)));
+        assertTrue(store.list().isEmpty());
+    }
+
+    @Test
+    void commitBatchPacksSmallFilesIntoSegments() throws IOException {
+        System.setProperty("dropbox.segments", "true");
+        FileStore store;
+        try {
+            store = FileStore.open(root);
+        }
+        finally {
+            System.clearProperty("dropbox.segments");
+        }
+        byte[] small = random(2000, 5);
+        byte[] large = random(200_000, 6);
+
+        assertEquals(List.of("OK", "OK"), store.commitBatch(batch(store, small, large), List.of("small", "large"),
+                List.of((long) small.length, (long) large.length)));
+        assertFalse(Files.exists(root.resolve("small")));
+        assertTrue(Files.exists(root.resolve("large")));
+        assertArrayEquals(small, read(store, "small"));
+        assertArrayEquals(large, read(store, "large"));
+    }
+
+    @Test
+    void deleteBatchReportsEachFile() throws IOException {
+        FileStore store = FileStore.open(root);
+        put(store, "a", random(10, 1));
+        put(store, "b", random(10, 2));
+
+        List<String> results = store.deleteBatch(List.of("a", "missing", "..", "b"));
+        assertEquals("OK", results.get(0));
+        assertEquals("NOT_FOUND", results.get(1));
+        assertTrue(results.get(2).startsWith("Invalid file name"));
+        assertEquals("OK", results.get(3));
+        assertTrue(store.list().isEmpty());
+        assertNull(store.index().get("a"));
+        assertThrows(NoSuchFileException.class, () -> store.openRead("a"));
+    }
+
+    @Test
+    void rangedUploadsAssembleOutOfOrderRanges() throws IOException {
+        FileStore store = FileStore.open(root);
+        byte[] data = random(500_000, 7);
+        RangedUpload upload = store.beginRanged("big.bin", data.length);
+        int[] starts = {400_000, 0, 250_000, 100_000};
+        int[] ends = {500_000, 100_000, 400_000, 260_000};
+        for (int i = 0; i < starts.length; i++) {
+            store.openRanged("big.bin").write(ByteBuffer.wrap(data, starts[i], ends[i] - starts[i]), starts[i]);
+        }
+        assertEquals(data.length, upload.received());
+        assertSame(upload, store.beginRanged("big.bin", data.length));
+
+        store.commitRanged("big.bin", data.length, null, Checksum.of(data));
+        assertArrayEquals(data, read(store, "big.bin"));
+        assertThrows(NoSuchFileException.class, () -> store.openRanged("big.bin"));
+    }
+
+    @Test
+    void rangedUploadsRejectGapsBadRangesAndWrongChecksums() throws IOException {
+        FileStore store = FileStore.open(root);
+        byte[] data = random(1000, 8);
+        RangedUpload upload = store.beginRanged("f", data.length);
+        assertThrows(IOException.class, () -> upload.write(ByteBuffer.wrap(data), 1));
+        assertThrows(IOException.class, () -> upload.write(ByteBuffer.wrap(data, 0, 10), -1));
+
+        upload.write(ByteBuffer.wrap(data, 0, 900), 0);
+        assertThrows(IOException.class, () -> store.commitRanged("f", data.length, null, Checksum.NONE));
+        upload.write(ByteBuffer.wrap(data, 900, 100), 900);
+        assertThrows(IOException.class, () -> store.commitRanged("f", data.length + 1, null, Checksum.NONE));
+
+        assertThrows(IOException.class, () -> store.commitRanged("f", data.length, null, Checksum.of(new byte[1])));
+        assertNull(store.index().get("f"));
+        assertThrows(NoSuchFileException.class, () -> store.openRanged("f"));
+    }
+
+    @Test
+    void rangedUploadsAreBounded() {
+        FileStore store = FileStore.open(root);
+        assertThrows(IOException.class, () -> store.beginRanged("f", -1));
+        assertThrows(IOException.class, () -> store.beginRanged("f", Long.MAX_VALUE));
+        assertThrows(IOException.class, () -> store.beginRanged("../f", 10));
+    }
+
+    @Test
+    void idleRangedUploadsExpire() throws IOException {
+        FileStore store = FileStore.open(root);
+        RangedUpload upload = store.beginRanged("f", 100);
+        store.expireRanged(System.currentTimeMillis());
+        assertSame(upload, store.openRanged("f"));
+
+        store.expireRanged(System.currentTimeMillis() + 24 * 60 * 60_000L);
+        assertThrows(NoSuchFileException.class, () -> store.openRanged("f"));
+        assertFalse(Files.exists(upload.temp()));
+    }
+
+    @Test
+    void reopeningRecoversTheIndexFromTheJournal() throws IOException {
+        FileStore store = FileStore.open(root);
+        byte[] kept = random(5000, 9);
+        put(store, "kept", kept);
+        put(store, "gone", random(10, 10));
+        store.delete("gone");
+        store.createTemp("unfinished");
+
+        FileStore reopened = FileStore.open(root);
+        assertEquals(List.of("kept"), reopened.list());
+        assertEquals(Checksum.of(kept), reopened.index().get("kept").crc());
+        assertArrayEquals(kept, read(reopened, "kept"));
+        try (Stream<Path> partials = Files.list(root.resolve(".partial"))) {
+            assertEquals(0, partials.count());
+        }
+    }
+
+    @Test
+    void replayFinishesJournaledCommitsAndDeletes() throws IOException {
+        byte[] data = random(4000, 11);
+        Files.createDirectories(root.resolve(".partial"));
+        Files.write(root.resolve(".partial").resolve("pending.part"), data);
+        Files.write(root.resolve("stale"), random(10, 12));
+
+        MetadataJournal journal = new MetadataJournal(root.resolve(".journal"));
+        journal.recover();
+        journal.append(MetadataJournal.Record.begin("pending", "pending.part"));
+        journal.append(MetadataJournal.Record.commit("pending", "pending.part", data.length, 1234, null,
+                Checksum.of(data)));
+        journal.await(journal.append(MetadataJournal.Record.delete("stale")));
+
+        FileStore store = FileStore.open(root);
+        assertEquals(List.of("pending"), store.list());
+        assertArrayEquals(data, read(store, "pending"));
+        assertEquals(1234, store.index().get("pending").mtime());
+        assertFalse(Files.exists(root.resolve("stale")));
+    }
+}
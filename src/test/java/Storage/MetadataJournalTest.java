@@ -0,0 +1,153 @@
+package Storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import Protocol.Checksum;
+
+class MetadataJournalTest {
+    @TempDir
+    Path dir;
+
+    private static MetadataJournal.Record commit(String name, long size) {
+        return MetadataJournal.Record.commit(name, name.replace(".txt", ".tmp"), size, 1000 + size, null,
+                Checksum.of(new byte[0]));
+    }
+
+    private MetadataJournal.Recovery reopen() throws IOException {
+        return new MetadataJournal(dir).recover();
+    }
+
+    @Test
+    void freshDirectoryRecoversNothing() throws IOException {
+        MetadataJournal.Recovery recovery = reopen();
+        assertFalse(recovery.found());
+        assertTrue(recovery.state().isEmpty());
+        assertEquals(0, recovery.records());
+    }
+
+    @Test
+    void replaysDurableRecords() throws IOException {
+        MetadataJournal journal = new MetadataJournal(dir);
+        journal.recover();
+        journal.append(MetadataJournal.Record.begin("a.txt", "a.tmp"));
+        journal.append(commit("a.txt", 10));
+        journal.append(MetadataJournal.Record.begin("b.txt", "b.tmp"));
+        journal.append(commit("c.txt", 30));
+        long seq = journal.append(MetadataJournal.Record.delete("c.txt"));
+        journal.await(seq);
+
+        MetadataJournal.Recovery recovery = reopen();
+        assertTrue(recovery.found());
+        assertEquals(5, recovery.records());
+        assertEquals(10, recovery.state().get("a.txt").size());
+        assertEquals(MetadataJournal.DELETE, recovery.state().get("c.txt").type());
+        assertEquals("b.txt", recovery.begun().get("b.tmp"));
+        assertFalse(recovery.begun().containsKey("a.tmp"));
+    }
+
+    @Test
+    void recordsThatWereNeverAwaitedAreNotWritten() throws IOException {
+        MetadataJournal journal = new MetadataJournal(dir);
+        journal.recover();
+        journal.await(journal.append(commit("kept.txt", 1)));
+        journal.append(commit("lost.txt", 2));
+
+        MetadataJournal.Recovery recovery = reopen();
+        assertTrue(recovery.state().containsKey("kept.txt"));
+        assertFalse(recovery.state().containsKey("lost.txt"));
+    }
+
+    @Test
+    void replayStopsAtATornTailAndTruncatesIt() throws IOException {
+        MetadataJournal journal = new MetadataJournal(dir);
+        journal.recover();
+        journal.await(journal.append(commit("one.txt", 1)));
+        journal.await(journal.append(commit("two.txt", 2)));
+        long intact = Files.size(dir.resolve("journal.log"));
+        journal.await(journal.append(commit("three.txt", 3)));
+
+        Path log = dir.resolve("journal.log");
+        try (FileChannel file = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            file.truncate(Files.size(log) - 3);
+        }
+
+        MetadataJournal.Recovery recovery = reopen();
+        assertEquals(2, recovery.records());
+        assertEquals(List.of("one.txt", "two.txt"), recovery.state().keySet().stream().sorted().toList());
+        assertEquals(intact, Files.size(log));
+    }
+
+    @Test
+    void replayStopsAtACorruptRecord() throws IOException {
+        MetadataJournal journal = new MetadataJournal(dir);
+        journal.recover();
+        journal.await(journal.append(commit("one.txt", 1)));
+        long intact = Files.size(dir.resolve("journal.log"));
+        journal.await(journal.append(commit("two.txt", 2)));
+        journal.await(journal.append(commit("three.txt", 3)));
+
+        try (FileChannel file = FileChannel.open(dir.resolve("journal.log"), StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(new byte[] {0x55}), intact + 12);
+        }
+
+        MetadataJournal.Recovery recovery = reopen();
+        assertEquals(1, recovery.records());
+        assertTrue(recovery.state().containsKey("one.txt"));
+        assertEquals(intact, Files.size(dir.resolve("journal.log")));
+    }
+
+    @Test
+    void checkpointFoldsTheJournalIntoASnapshot() throws IOException {
+        MetadataJournal journal = new MetadataJournal(dir);
+        journal.recover();
+        long applied = journal.append(commit("applied.txt", 5));
+        journal.await(journal.append(commit("unapplied.txt", 6)));
+        assertTrue(journal.claim("applied.txt", applied));
+
+        journal.checkpoint(List.of(new FileIndex.Entry("applied.txt", 5, 1005, null, Checksum.NONE)));
+        assertEquals(0, journal.size());
+        journal.await(journal.append(commit("later.txt", 7)));
+
+        MetadataJournal.Recovery recovery = reopen();
+        assertEquals(3, recovery.state().size());
+        assertEquals(6, recovery.state().get("unapplied.txt").size());
+        assertEquals(7, recovery.state().get("later.txt").size());
+    }
+
+    @Test
+    void claimedRecordsAreLeftOutOfTheSnapshot() throws IOException {
+        MetadataJournal journal = new MetadataJournal(dir);
+        journal.recover();
+        long seq = journal.append(commit("gone.txt", 1));
+        journal.await(seq);
+        assertTrue(journal.claim("gone.txt", seq));
+        assertFalse(journal.claim("gone.txt", seq));
+
+        journal.checkpoint(List.of());
+        assertFalse(reopen().state().containsKey("gone.txt"));
+    }
+
+    @Test
+    void damagedSnapshotIsAnError() throws IOException {
+        MetadataJournal journal = new MetadataJournal(dir);
+        journal.recover();
+        journal.checkpoint(List.of(new FileIndex.Entry("a.txt", 1, 1, null, Checksum.NONE)));
+        Files.write(dir.resolve("snapshot.dat"), new byte[] {1, 2, 3}, StandardOpenOption.APPEND);
+
+        assertThrows(IOException.class, this::reopen);
+    }
+}
@@ -0,0 +1,171 @@
+package Storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import Protocol.Checksum;
+
+class ReadCacheTest {
+    private static FileIndex.Entry entry(String name, long size, long mtime) {
+        return new FileIndex.Entry(name, size, mtime, null, Checksum.NONE);
+    }
+
+    private static ByteBuffer data(FileIndex.Entry entry) {
+        ByteBuffer data = ByteBuffer.allocate((int) entry.size());
+        data.put(0, (byte) entry.mtime());
+        return data;
+    }
+
+    private static void cache(ReadCache cache, FileIndex.Entry entry) throws IOException {
+        cache.get(entry);
+        cache.load(entry, () -> data(entry));
+    }
+
+    @Test
+    void servesLoadedEntriesUntilTheFileChanges() throws IOException {
+        ReadCache cache = new ReadCache(80_000);
+        FileIndex.Entry first = entry("a.txt", 100, 1);
+        cache(cache, first);
+
+        ByteBuffer hit = cache.get(first);
+        assertNotNull(hit);
+        assertEquals(1, hit.get(0));
+        assertEquals(1, cache.getHits());
+
+        assertNull(cache.get(entry("a.txt", 100, 2)));
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    void invalidateDropsEntries() throws IOException {
+        ReadCache cache = new ReadCache(80_000);
+        FileIndex.Entry entry = entry("a.txt", 100, 1);
+        cache(cache, entry);
+        cache.invalidate("a.txt");
+        assertNull(cache.get(entry));
+    }
+
+    @Test
+    void invalidateDuringALoadKeepsItsResultOutOfTheCache() throws IOException {
+        ReadCache cache = new ReadCache(80_000);
+        FileIndex.Entry entry = entry("a.txt", 100, 1);
+        ByteBuffer loaded = cache.load(entry, () -> {
+            cache.invalidate("a.txt");
+            return data(entry);
+        });
+        assertNotNull(loaded);
+        assertNull(cache.get(entry));
+    }
+
+    @Test
+    void failedLoadsAreNotCached() {
+        ReadCache cache = new ReadCache(80_000);
+        FileIndex.Entry entry = entry("a.txt", 100, 1);
+        assertThrows(IOException.class, () -> cache.load(entry, () -> {
+            throw new IOException("disk gone");
+        }));
+        assertNull(cache.get(entry));
+    }
+
+    @Test
+    void concurrentMissesShareOneLoad() throws Exception {
+        ReadCache cache = new ReadCache(80_000);
+        FileIndex.Entry entry = entry("hot.bin", 1000, 7);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        int readers = 8;
+
+        ExecutorService pool = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<ByteBuffer>> results = new ArrayList<>();
+            for (int i = 0; i < readers; i++) {
+                results.add(pool.submit(() -> cache.load(entry, () -> {
+                    loads.incrementAndGet();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return data(entry);
+                })));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (cache.getCoalesced() < readers - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            for (Future<ByteBuffer> result : results) {
+                assertEquals(7, result.get(10, TimeUnit.SECONDS).get(0));
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertEquals(readers - 1, cache.getCoalesced());
+    }
+
+    @Test
+    void frequentEntriesSurviveAScan() throws IOException {
+        ReadCache cache = new ReadCache(8000);
+        List<FileIndex.Entry> hot = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            FileIndex.Entry entry = entry("hot-" + i, 1000, 1);
+            for (int j = 0; j < 5; j++) {
+                cache.get(entry);
+            }
+            cache.load(entry, () -> data(entry));
+            hot.add(entry);
+        }
+        for (int i = 0; i < 100; i++) {
+            cache(cache, entry("cold-" + i, 1000, 1));
+        }
+
+        int survivors = 0;
+        for (FileIndex.Entry entry : hot) {
+            if (cache.get(entry) != null) {
+                survivors++;
+            }
+        }
+        assertTrue(survivors >= 5, "hot entries evicted by a scan: " + survivors + " left");
+        assertTrue(cache.getRejections() > 0);
+        assertTrue(cache.getBytes() <= 8000);
+    }
+
+    @Test
+    void onlyWantsRepeatedlyReadFilesThatFit() {
+        ReadCache cache = new ReadCache(8000);
+        FileIndex.Entry small = entry("small", 500, 1);
+        assertFalse(cache.wants(small));
+        cache.get(small);
+        cache.get(small);
+        assertTrue(cache.wants(small));
+
+        FileIndex.Entry large = entry("large", 1001, 1);
+        cache.get(large);
+        cache.get(large);
+        assertFalse(cache.wants(large));
+        assertFalse(cache.wants(entry("empty", 0, 1)));
+    }
+}
@@ -0,0 +1,148 @@
+package Storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentStoreTest {
+    private static final long SEGMENT_SIZE = 4096;
+
+    @TempDir
+    Path dir;
+
+    private static ByteBuffer data(String name, int version) {
+        return ByteBuffer.wrap((name + "#" + version + "-").repeat(10).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertContent(SegmentStore store, Map<String, ByteBuffer> expected, int names)
+            throws IOException {
+        for (int i = 0; i < names; i++) {
+            String name = "file-" + i;
+            ByteBuffer want = expected.get(name);
+            if (want == null) {
+                assertFalse(store.contains(name), name);
+                assertNull(store.read(name), name);
+            }
+            else {
+                assertEquals(want, store.read(name), name);
+            }
+        }
+    }
+
+    @Test
+    void readsBackWhatWasPut() throws IOException {
+        SegmentStore store = new SegmentStore(dir, SEGMENT_SIZE);
+        store.load();
+        store.put("a", data("a", 1), 100);
+        store.put("b", ByteBuffer.allocate(0), 200);
+
+        assertEquals(data("a", 1), store.read("a"));
+        assertEquals(0, store.read("b").remaining());
+        assertTrue(store.delete("a"));
+        assertFalse(store.delete("a"));
+        assertNull(store.read("a"));
+    }
+
+    @Test
+    void reloadReplaysPutsAndDeletes() throws IOException {
+        SegmentStore store = new SegmentStore(dir, SEGMENT_SIZE);
+        store.load();
+        store.put("kept", data("kept", 1), 100);
+        store.put("kept", data("kept", 2), 150);
+        store.put("gone", data("gone", 1), 200);
+        store.delete("gone");
+        store.sync();
+
+        SegmentStore reloaded = new SegmentStore(dir, SEGMENT_SIZE);
+        Map<String, SegmentStore.Location> locations = reloaded.load();
+        assertEquals(1, locations.size());
+        assertEquals(150, locations.get("kept").mtime());
+        assertEquals(data("kept", 2), reloaded.read("kept"));
+        assertFalse(reloaded.contains("gone"));
+    }
+
+    @Test
+    void compactionKeepsLiveRecords() throws IOException {
+        SegmentStore store = new SegmentStore(dir, SEGMENT_SIZE);
+        store.load();
+        Map<String, ByteBuffer> expected = new HashMap<>();
+        int names = 200;
+        for (int i = 0; i < names; i++) {
+            String name = "file-" + i;
+            store.put(name, data(name, 1), i);
+            expected.put(name, data(name, 1));
+        }
+        for (int i = 0; i < names; i++) {
+            String name = "file-" + i;
+            if (i % 5 == 0) {
+                store.delete(name);
+                expected.remove(name);
+            }
+            else if (i % 5 != 1) {
+                store.put(name, data(name, 2), 1000 + i);
+                expected.put(name, data(name, 2));
+            }
+        }
+        store.sync();
+
+        long total = store.getTotalBytes();
+        long live = store.getLiveBytes();
+        store.compact();
+
+        assertTrue(store.getTotalBytes() < total);
+        assertEquals(live, store.getLiveBytes());
+        assertContent(store, expected, names);
+
+        SegmentStore reloaded = new SegmentStore(dir, SEGMENT_SIZE);
+        assertEquals(expected.size(), reloaded.load().size());
+        assertContent(reloaded, expected, names);
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.noneMatch(path -> path.toString().endsWith(".compact")));
+        }
+    }
+
+    @Test
+    void compactionKeepsTombstonesThatShadowOlderSegments() throws IOException {
+        SegmentStore store = new SegmentStore(dir, SEGMENT_SIZE);
+        store.load();
+        for (int i = 0; i < 20; i++) {
+            store.put("file-" + i, data("file-" + i, 1), i);
+        }
+        for (int i = 0; i < 40; i++) {
+            store.put("filler", data("filler", i), i);
+        }
+        store.delete("file-3");
+        for (int i = 0; i < 40; i++) {
+            store.put("filler", data("filler", 100 + i), i);
+        }
+        store.sync();
+        store.compact();
+
+        SegmentStore reloaded = new SegmentStore(dir, SEGMENT_SIZE);
+        reloaded.load();
+        assertFalse(reloaded.contains("file-3"));
+        assertEquals(data("file-4", 1), reloaded.read("file-4"));
+        assertEquals(data("filler", 139), reloaded.read("filler"));
+    }
+
+    @Test
+    void leftoverCompactionFilesAreDiscardedOnLoad() throws IOException {
+        Files.write(dir.resolve("segment-000009.compact"), new byte[] {1, 2, 3});
+        SegmentStore store = new SegmentStore(dir, SEGMENT_SIZE);
+        assertTrue(store.load().isEmpty());
+        assertFalse(Files.exists(dir.resolve("segment-000009.compact")));
+    }
+}